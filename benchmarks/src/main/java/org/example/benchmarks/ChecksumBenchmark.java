@@ -0,0 +1,75 @@
+package org.example.benchmarks;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.netty.transfer.FileChecksum;
+import org.example.storage.ChunkStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-chunk cost of the checks done on every transferred chunk: CRC-32 and CRC-32C of typed
+ * transfers (CRC-32C falls back to CRC-32 on Java 8), MD5 of legacy clients and SHA-256 of the
+ * chunk store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+public class ChecksumBenchmark {
+
+    @Param({"65536", "1048576"})
+    private int chunkSize;
+
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setUp() {
+        byte[] content = new byte[chunkSize];
+        new Random(42).nextBytes(content);
+        heap = ByteBuffer.wrap(content);
+        direct = ByteBuffer.allocateDirect(chunkSize);
+        direct.put(content).flip();
+    }
+
+    @Benchmark
+    public long crc32() {
+        return FileChecksum.of(ChecksumType.CRC32, heap);
+    }
+
+    @Benchmark
+    public long crc32c() {
+        return FileChecksum.of(FileChecksum.preferred(), heap);
+    }
+
+    @Benchmark
+    public long crc32cDirect() {
+        return FileChecksum.of(FileChecksum.preferred(), direct);
+    }
+
+    @Benchmark
+    public byte[] md5() {
+        return DigestUtils.digest(DigestUtils.getMd5Digest(), heap.duplicate());
+    }
+
+    @Benchmark
+    public String sha256() {
+        return ChunkStore.hash(heap);
+    }
+}
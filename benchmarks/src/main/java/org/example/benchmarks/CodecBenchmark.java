@@ -0,0 +1,145 @@
+package org.example.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.serialization.ClassResolvers;
+import io.netty.handler.codec.serialization.ObjectDecoder;
+import io.netty.handler.codec.serialization.ObjectEncoder;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.CompressionType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.model.user.User;
+import org.example.netty.codec.BinaryCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of an upload chunk command with the serialization codec, the binary codec
+ * and the binary codec with chunk compression, on text-like and random content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+public class CodecBenchmark {
+
+    private static final int MAX_FRAME_SIZE = 64 << 20;
+
+    public enum Codec {
+        SERIALIZED,
+        BINARY,
+        BINARY_DEFLATE
+    }
+
+    @Param
+    private Codec codec;
+
+    @Param({"65536", "1048576"})
+    private int chunkSize;
+
+    @Param({"true", "false"})
+    private boolean text;
+
+    private byte[] content;
+    private EmbeddedChannel channel;
+    private ByteBuf frame;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        if (text) {
+            StringBuilder sb = new StringBuilder(chunkSize + 64);
+            while (sb.length() < chunkSize) {
+                sb.append(random.nextInt(100_000)).append(",user").append(random.nextInt(50)).append(",OK\n");
+            }
+            content = sb.substring(0, chunkSize).getBytes(StandardCharsets.US_ASCII);
+        } else {
+            content = new byte[chunkSize];
+            random.nextBytes(content);
+        }
+        channel = newChannel();
+        frame = encode();
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int encodeChunk() {
+        ByteBuf encoded = encode();
+        int length = encoded.readableBytes();
+        encoded.release();
+        return length;
+    }
+
+    @Benchmark
+    public Object decodeChunk() {
+        channel.writeInbound(frame.retainedDuplicate());
+        Command command = channel.readInbound();
+        FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+        dto.release();
+        return dto;
+    }
+
+    private EmbeddedChannel newChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline()
+                .addLast(BinaryCodec.ENCODER, new ObjectEncoder())
+                .addLast(BinaryCodec.DECODER, new ObjectDecoder(MAX_FRAME_SIZE, ClassResolvers.weakCachingConcurrentResolver(null)));
+        if (codec != Codec.SERIALIZED) {
+            BinaryCodec.install(channel.pipeline(), MAX_FRAME_SIZE, codec == Codec.BINARY_DEFLATE ? CompressionType.DEFLATE : null);
+        }
+        return channel;
+    }
+
+    /**
+     * @return the frame as one buffer, the binary encoder writes the content as a separate one
+     */
+    private ByteBuf encode() {
+        channel.writeOutbound(chunkCommand());
+        CompositeByteBuf encoded = Unpooled.compositeBuffer();
+        ByteBuf buffer;
+        while ((buffer = channel.readOutbound()) != null) {
+            encoded.addComponent(true, buffer);
+        }
+        return encoded;
+    }
+
+    private Command chunkCommand() {
+        FileDTO dto = FileDTO.builder()
+                .owner(User.builder().email("12345@email.com").password("12345").build())
+                .name(text ? "chunk.csv" : "chunk.bin")
+                .path("root")
+                .fullSize(16L * chunkSize)
+                .transferId("benchmark")
+                .offset(chunkSize)
+                .checksum(0x12345678L)
+                .content(content)
+                .part(2)
+                .build();
+        return new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, dto);
+    }
+}
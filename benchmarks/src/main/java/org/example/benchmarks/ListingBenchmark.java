@@ -0,0 +1,94 @@
+package org.example.benchmarks;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a directory through the command handler: the whole listing sent to legacy clients
+ * ({@code getUserFiles}) and the first page sent to paging clients, with the listing read from
+ * disk or taken from the listing cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+public class ListingBenchmark {
+
+    private static final String DIR = "listing";
+
+    @Param({"100", "10000", "100000"})
+    private int entries;
+
+    @Param({"true", "false"})
+    private boolean cached;
+
+    private StorageFixture storage;
+    private Path dir;
+    private EmbeddedChannel legacy;
+    private EmbeddedChannel paging;
+
+    @Setup
+    public void setUp() throws IOException {
+        storage = new StorageFixture(false);
+        dir = storage.getUserRoot().resolve(DIR);
+        Files.createDirectories(dir);
+        for (int i = 0; i < entries; i++) {
+            if (i % 100 == 0) {
+                Files.createDirectory(dir.resolve(String.format("dir-%06d", i)));
+            } else {
+                Files.write(dir.resolve(String.format("file-%06d.txt", i)), new byte[i % 1000]);
+            }
+        }
+        legacy = storage.connect(new Command(CommandType.AUTH_REQUEST));
+        paging = storage.connect(new Command(CommandType.AUTH_REQUEST).setParameter(ParameterType.LIMIT, 1000));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        legacy.finishAndReleaseAll();
+        paging.finishAndReleaseAll();
+        storage.delete();
+    }
+
+    @Benchmark
+    public Object open() {
+        return open(legacy);
+    }
+
+    @Benchmark
+    public Object firstPage() {
+        return open(paging);
+    }
+
+    private Object open(EmbeddedChannel channel) {
+        if (!cached) {
+            storage.getListings().invalidate(dir);
+        }
+        StorageFixture.send(channel, new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.OPEN)
+                .setParameter(ParameterType.CURRENT, "/" + DIR));
+        return channel.readOutbound();
+    }
+}
@@ -0,0 +1,66 @@
+package org.example.benchmarks;
+
+import org.example.storage.FileIndex;
+import org.example.storage.SearchQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of the {@code SEARCH} command on the file index of one user with a million entries in
+ * 1000 directories: a rare name, a common name part, a name with a size filter and a filter alone
+ * in one directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dlog4j.configuration=log4j-benchmarks.properties"})
+public class SearchBenchmark {
+
+    private static final String[] WORDS = {"report", "photo", "invoice", "backup", "draft", "scan", "notes", "music"};
+    private static final String[] EXTENSIONS = {".txt", ".jpg", ".pdf", ".zip", ".mp3"};
+
+    @Param({"1000000"})
+    private int entries;
+
+    @Param({"invoice-04217", "photo", "report size>500K", "in:/dir-0042 type:file"})
+    private String query;
+
+    private FileIndex index;
+    private SearchQuery parsed;
+
+    @Setup
+    public void setUp() {
+        index = new FileIndex();
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            String dir = String.format("dir-%04d", i % 1000);
+            if (i < 1000) {
+                index.put(dir, true, 0, now, null);
+            }
+            String name = WORDS[random.nextInt(WORDS.length)] + "-" + String.format("%05d", random.nextInt(100_000))
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            index.put(dir + "/" + name, false, random.nextInt(1 << 20), now - random.nextInt(1 << 30), null);
+        }
+        parsed = SearchQuery.parse(query);
+    }
+
+    @Benchmark
+    public Object search() {
+        return index.search(parsed, parsed.getDirectory(), 1000);
+    }
+}
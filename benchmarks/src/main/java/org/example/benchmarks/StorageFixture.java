@@ -0,0 +1,131 @@
+package org.example.benchmarks;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ParameterType;
+import org.example.metrics.ServerMetrics;
+import org.example.model.user.User;
+import org.example.netty.ServerCommandHandler;
+import org.example.service.SessionRegistry;
+import org.example.service.UserService;
+import org.example.storage.ChunkStore;
+import org.example.storage.DigestCache;
+import org.example.storage.ListingCache;
+import org.example.storage.MetadataIndex;
+import org.example.storage.Quotas;
+import org.example.storage.Trash;
+import org.example.traffic.TrafficShaper;
+import org.example.transfer.UploadSessionRegistry;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Server storage in a temporary directory with {@link ServerCommandHandler handlers} on embedded
+ * channels, wired up like {@code Server} does it but without sockets and executors, so commands
+ * are handled on the benchmark thread.
+ */
+final class StorageFixture implements UserService {
+
+    static final User USER = User.builder().email("bench@example.org").password("bench").build();
+
+    private final Path root;
+    private final ChunkStore chunks;
+    private final UploadSessionRegistry uploads;
+    private final DigestCache digests;
+    private final ListingCache listings;
+    private final MetadataIndex index;
+    private final Quotas quotas;
+    private final Trash trash;
+    private final ServerMetrics metrics;
+    private final TrafficShaper traffic;
+    private final SessionRegistry sessions;
+    private final ExecutorService downloads;
+
+    StorageFixture(boolean chunkStore) throws IOException {
+        root = Files.createTempDirectory("storage-benchmark");
+        chunks = chunkStore ? new ChunkStore(root.resolve(".chunks"), false) : null;
+        uploads = new UploadSessionRegistry(root.resolve(".partial"), chunks);
+        digests = new DigestCache(chunks, 10_000);
+        listings = new ListingCache(chunks, 64_000_000, 256);
+        trash = new Trash(root.resolve(".trash"), chunks, 1);
+        metrics = new ServerMetrics(uploads::getOpenSessions, () -> 0);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("fixture", true));
+        index = new MetadataIndex(root.resolve(".index"), chunks, executor, 60_000);
+        quotas = new Quotas(index, root.resolve(".quotas"), 0);
+        traffic = new TrafficShaper(executor, 0, 0, 0, 0, 1000, 1 << 16);
+        sessions = new SessionRegistry(executor, 60_000);
+        downloads = Executors.newCachedThreadPool(new DefaultThreadFactory("download", true));
+        Files.createDirectories(getUserRoot());
+    }
+
+    @Override
+    public boolean isAuthorized(User user) {
+        return USER.equals(user);
+    }
+
+    @Override
+    public Path getRootPath(User user) {
+        return getUserRoot();
+    }
+
+    Path getUserRoot() {
+        return root.resolve(USER.getEmail());
+    }
+
+    ChunkStore getChunks() {
+        return chunks;
+    }
+
+    ListingCache getListings() {
+        return listings;
+    }
+
+    /**
+     * @return a channel with an authorized handler and no pending outbound messages
+     */
+    EmbeddedChannel connect(Command auth) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline()
+                .addLast(TrafficShaper.GLOBAL, traffic.global())
+                .addLast(new ServerCommandHandler(this, sessions, uploads, chunks, digests, listings, index, quotas, trash, metrics, traffic, downloads));
+        send(channel, auth);
+        channel.outboundMessages().clear();
+        return channel;
+    }
+
+    /**
+     * Credentials go with the authorization only, like a client's, later commands rely on the session.
+     */
+    static void send(EmbeddedChannel channel, Command command) {
+        if (command.getCommandType() == CommandType.AUTH_REQUEST) {
+            command.setParameter(ParameterType.USER, USER);
+        }
+        channel.writeInbound(command);
+    }
+
+    void delete() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
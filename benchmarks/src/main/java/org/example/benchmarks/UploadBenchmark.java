@@ -0,0 +1,129 @@
+package org.example.benchmarks;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.transfer.FileChecksum;
+import org.example.storage.Manifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload of a file through the command handler: per-chunk checksum checks, writes to the partial
+ * file or the chunk store, the checkpoint and the commit of the finished file. Every upload has
+ * new content, so the chunk store doesn't just find the chunks of the previous one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+public class UploadBenchmark {
+
+    private static final int CHUNKS = 16;
+
+    @Param({"false", "true"})
+    private boolean chunkStore;
+
+    @Param({"65536", "1048576"})
+    private int chunkSize;
+
+    private StorageFixture storage;
+    private EmbeddedChannel channel;
+    private ChecksumType checksumType;
+    private final Random random = new Random(42);
+    private byte[][] content;
+    private List<Command> commands;
+    private Path target;
+    private int uploads;
+
+    @Setup
+    public void setUp() throws IOException {
+        storage = new StorageFixture(chunkStore);
+        checksumType = FileChecksum.preferred();
+        channel = storage.connect(new Command(CommandType.AUTH_REQUEST).setParameter(ParameterType.CHECKSUM, checksumType));
+        content = new byte[CHUNKS][chunkSize];
+        for (byte[] chunk : content) {
+            random.nextBytes(chunk);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.finishAndReleaseAll();
+        storage.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareUpload() {
+        String name = "upload-" + uploads++ + ".bin";
+        target = storage.getUserRoot().resolve(name);
+        FileChecksum fileChecksum = new FileChecksum(checksumType);
+        commands = new ArrayList<>(CHUNKS);
+        for (int i = 0; i < CHUNKS; i++) {
+            byte[] chunk = content[i];
+            chunk[random.nextInt(chunkSize)] ^= 1;
+            long checksum = FileChecksum.of(checksumType, chunk, 0, chunkSize);
+            fileChecksum.append(checksum, chunkSize);
+            FileDTO dto = FileDTO.builder()
+                    .name(name)
+                    .path("root")
+                    .fullSize((long) CHUNKS * chunkSize)
+                    .transferId(name)
+                    .offset((long) i * chunkSize)
+                    .isStart(i == 0)
+                    .isEnd(i == CHUNKS - 1)
+                    .checksum(checksum)
+                    .part(i + 1)
+                    .build();
+            commands.add(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, dto));
+        }
+        ((FileDTO) commands.get(CHUNKS - 1).getParameter(ParameterType.FILE_DTO)).setFileDigest(fileChecksum.digest());
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteUpload() throws IOException {
+        channel.outboundMessages().clear();
+        if (!Files.exists(target)) {
+            throw new IllegalStateException("Upload of " + target.getFileName() + " failed");
+        }
+        Manifest manifest = Manifest.read(storage.getChunks(), target);
+        Files.delete(target);
+        if (manifest != null) {
+            storage.getChunks().release(manifest);
+        }
+    }
+
+    @Benchmark
+    public void upload() {
+        for (int i = 0; i < CHUNKS; i++) {
+            Command command = commands.get(i);
+            ((FileDTO) command.getParameter(ParameterType.FILE_DTO)).setData(Unpooled.wrappedBuffer(content[i]));
+            StorageFixture.send(channel, command);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.example.controller;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import javafx.concurrent.Task;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.EntryDTO;
+import org.example.model.dto.FileDTO;
+import org.example.netty.NettyNetwork;
+import org.example.netty.transfer.ChunkBuffers;
+import org.example.netty.transfer.TransferWindow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Uploads many files, whole folder trees included, as one transfer: a manifest of all entries,
+ * then their contents packed one after another into chunks, so small files share chunks and there
+ * is no round trip per file. The server answers once, with the files stored and those skipped
+ * because they exist.
+ * <p>
+ * The manifest is sent in one frame, so a tree with more entries than fit in a frame is sent as
+ * several batches one after another, each with a part of the manifest. Part numbers go on across
+ * them, the window is shared.
+ */
+@Slf4j
+public class BatchUploadTask extends Task<Command> {
+    // well below the object size limit of the server, the size of an entry is only estimated
+    private static final int MANIFEST_BYTES = 4 << 20;
+    private static final int ENTRY_BYTES = 64;
+
+    private final List<File> files;
+    private final String path;
+    private final TransferWindow window;
+    private final Supplier<CompletableFuture<Command>> results;
+    private final NettyNetwork network;
+    private final List<EntryDTO> entries = new ArrayList<>();
+    private final List<Path> sources = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>();
+    private int part;
+    private long sent;
+
+    /**
+     * @param files   files and folders to upload into the directory, folders with their trees
+     * @param results creates the future completed with the answer of the server to the next batch
+     */
+    public BatchUploadTask(List<File> files, String path, TransferWindow window, Supplier<CompletableFuture<Command>> results,
+                           NettyNetwork network) {
+        this.files = files;
+        this.path = path;
+        this.window = window;
+        this.results = results;
+        this.network = network;
+    }
+
+    @Override
+    protected Command call() throws Exception {
+        try {
+            long size = manifest();
+            updateProgress(0, size);
+            int stored = 0;
+            List<String> skipped = new ArrayList<>();
+            int from = 0;
+            int source = 0;
+            do {
+                int to = slice(from);
+                List<EntryDTO> slice = new ArrayList<>(entries.subList(from, to));
+                int count = files(slice);
+                long sliceSize = 0;
+                for (int file = source; file < source + count; file++) {
+                    sliceSize += sizes.get(file);
+                }
+                CompletableFuture<Command> result = results.get();
+                network.writeMessage(new Command(CommandType.BATCH_UPLOAD)
+                        .setParameter(ParameterType.CURRENT, path)
+                        .setParameter(ParameterType.ENTRIES, slice));
+                send(source, sliceSize, size);
+                // the answer comes once the last file is in place, an error fails the future
+                Command answer = result.get(60, TimeUnit.SECONDS);
+                // the answer stands for the ack of the last chunk
+                window.ack(part);
+                stored += (Integer) answer.getParameter(ParameterType.TOTAL);
+                skipped.addAll(answer.getList(ParameterType.FILES, String.class));
+                from = to;
+                source += count;
+            } while (from < entries.size());
+            return new Command(CommandType.BATCH_UPLOAD)
+                    .setParameter(ParameterType.TOTAL, stored)
+                    .setParameter(ParameterType.FILES, skipped);
+        } finally {
+            network.setTransferWindow(null);
+        }
+    }
+
+    /**
+     * @return end of the entries from the given one whose manifest fits in a frame, one entry at least
+     */
+    private int slice(int from) {
+        long bytes = 0;
+        int to = from;
+        while (to < entries.size()) {
+            bytes += ENTRY_BYTES + entries.get(to).getName().getBytes(StandardCharsets.UTF_8).length;
+            if (bytes > MANIFEST_BYTES && to > from) {
+                break;
+            }
+            to++;
+        }
+        return to;
+    }
+
+    private static int files(List<EntryDTO> slice) {
+        int files = 0;
+        for (EntryDTO entry : slice) {
+            if (!entry.isDirectory()) {
+                files++;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Lists the entries, every directory before what it contains.
+     *
+     * @return bytes of all files
+     */
+    private long manifest() throws IOException {
+        long[] size = new long[1];
+        for (File file : files) {
+            Path base = file.toPath().toAbsolutePath().getParent();
+            Files.walkFileTree(file.toPath().toAbsolutePath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    entries.add(new EntryDTO(name(base, dir), true, 0, attributes.lastModifiedTime().toMillis()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        entries.add(new EntryDTO(name(base, file), false, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                        sources.add(file);
+                        sizes.add(attributes.size());
+                        size[0] += attributes.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return size[0];
+    }
+
+    private static String name(Path base, Path path) {
+        StringBuilder sb = new StringBuilder();
+        for (Path name : base.relativize(path)) {
+            sb.append(sb.length() == 0 ? "" : "/").append(name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends the contents of the files in manifest order, a chunk is filled from as many files as it
+     * takes. A batch of empty files is ended by one empty chunk.
+     *
+     * @param source first file of this batch
+     * @param size   bytes of the files of this batch
+     * @param total  bytes of all batches, for the progress
+     */
+    private void send(int source, long size, long total) throws Exception {
+        ChecksumType type = Config.getChecksumType();
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        long fileRemaining = 0;
+        FileChannel in = null;
+        long offset = 0;
+        boolean start = true;
+        try {
+            do {
+                if (!window.acquire(part + 1) || isCancelled()) {
+                    throw new IOException("Batch upload failed");
+                }
+                int length = (int) Math.min(size - offset, Config.getChunkSize());
+                ByteBuf data = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+                try {
+                    while (data.isWritable()) {
+                        if (fileRemaining == 0) {
+                            if (in != null) {
+                                in.close();
+                            }
+                            in = FileChannel.open(sources.get(source), StandardOpenOption.READ);
+                            fileRemaining = sizes.get(source++);
+                            continue;
+                        }
+                        int read = data.writeBytes(in, (int) Math.min(fileRemaining, data.writableBytes()));
+                        if (read < 0) {
+                            throw new IOException(sources.get(source - 1).getFileName() + " changed during the upload");
+                        }
+                        fileRemaining -= read;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    data.release();
+                    throw e;
+                }
+                FileDTO dto = FileDTO.builder()
+                        .name("batch")
+                        .path(path)
+                        .fullSize(size)
+                        .offset(offset)
+                        .isStart(start)
+                        .data(data)
+                        .part(++part)
+                        .build();
+                ChunkBuffers.sign(dto, data, type, md5);
+                offset += length;
+                sent += length;
+                start = false;
+                dto.setEnd(offset == size);
+                network.writeMessage(new Command(CommandType.BATCH_UPLOAD).setParameter(ParameterType.FILE_DTO, dto));
+                updateProgress(sent, total);
+            } while (offset < size);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.example.controller;
 import com.sun.javafx.scene.control.skin.ContextMenuContent;
 import javafx.application.Platform;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Insets;
@@ -20,30 +21,43 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.TilePane;
 import javafx.scene.text.Font;
 import javafx.scene.text.TextAlignment;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CodecType;
 import org.example.model.command.Command;
 import org.example.model.command.CommandType;
 import org.example.model.command.ContentActionType;
 import org.example.model.command.ParameterType;
+import org.example.model.dto.EntryDTO;
 import org.example.model.dto.FileDTO;
+import org.example.netty.FileStreamHandler;
 import org.example.netty.NettyNetwork;
+import org.example.netty.transfer.FileChecksum;
+import org.example.netty.transfer.TransferWindow;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
+import java.text.DateFormat;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 public class ClientMainController {
@@ -62,12 +76,20 @@ public class ClientMainController {
     private AnchorPane mainPane;
     @FXML
     private Button createButton;
+    @FXML
+    private Button uploadFolderButton;
     private NettyNetwork network;
     private boolean isManualDisconnect;
     private boolean isConnectWindowClosed;
-    private Semaphore semaphore;
-    private final AtomicBoolean hasError = new AtomicBoolean(false);
+    private volatile TransferWindow uploadWindow;
+    private volatile CompletableFuture<FileDTO> uploadStatus;
+    private volatile CompletableFuture<List<String>> knownChunks;
+    private volatile CompletableFuture<Command> batchResult;
+    private volatile DirectoryDownloadTask directoryDownload;
     private File fileForDownload;
+    private FileChecksum downloadChecksum;
+    private volatile List<String> shownPath;
+    private final Map<String, DeleteProgressWindow> deletions = new HashMap<>();
 
     @FXML
     private void connectionButtonHandling() {
@@ -84,15 +106,55 @@ public class ClientMainController {
     private void upload() {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setInitialDirectory(new File(System.getProperty("user.home")));
-        fileChooser.setTitle("Choose upload file");
-        File file = fileChooser.showOpenDialog(mainPane.getScene().getWindow());
-        UploadTask task = new UploadTask(file, getFullPath(new Label()), semaphore, network, hasError);
-        if (file != null) {
-            semaphore.release(semaphore.drainPermits());
+        fileChooser.setTitle("Choose upload files");
+        List<File> files = fileChooser.showOpenMultipleDialog(mainPane.getScene().getWindow());
+        File file = files != null && files.size() == 1 ? files.get(0) : null;
+        if (files != null && files.size() > 1) {
+            uploadBatch(files);
+        } else if (file != null && Config.getConnections() > 1 && file.length() >= 2 * Config.getMinRangeSize()) {
+            ParallelUploadTask task = new ParallelUploadTask(file, getFullPath(new Label()), network);
+            task.setOnFailed(event -> showAlertWindow(task.getException().getMessage(), Alert.AlertType.ERROR));
             new UploadProcessWindow(task);
+        } else if (file != null) {
+            uploadWindow = new TransferWindow(Config.getTransferWindow());
+            uploadStatus = new CompletableFuture<>();
+            knownChunks = new CompletableFuture<>();
+            network.setTransferWindow(uploadWindow);
+            new UploadProcessWindow(new UploadTask(file, getFullPath(new Label()), uploadWindow, uploadStatus, knownChunks, network));
+        }
+    }
+
+    @FXML
+    private void uploadFolder() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setInitialDirectory(new File(System.getProperty("user.home")));
+        directoryChooser.setTitle("Choose upload folder");
+        File dir = directoryChooser.showDialog(mainPane.getScene().getWindow());
+        if (dir != null) {
+            uploadBatch(Collections.singletonList(dir));
         }
     }
 
+    /**
+     * Uploads the files and folders as one transfer and shows what has been stored.
+     */
+    private void uploadBatch(List<File> files) {
+        uploadWindow = new TransferWindow(Config.getTransferWindow());
+        network.setTransferWindow(uploadWindow);
+        BatchUploadTask task = new BatchUploadTask(files, getFullPath(new Label()), uploadWindow,
+                () -> batchResult = new CompletableFuture<>(), network);
+        task.setOnSucceeded(event -> {
+            Command result = task.getValue();
+            List<String> skipped = result.getList(ParameterType.FILES, String.class);
+            String message = result.getParameter(ParameterType.TOTAL) + " files uploaded";
+            if (skipped != null && !skipped.isEmpty()) {
+                message += ", " + skipped.size() + " skipped as they exist:\n" + String.join("\n", skipped.subList(0, Math.min(skipped.size(), 20)));
+            }
+            showAlertWindow(message, Alert.AlertType.INFORMATION);
+        });
+        new UploadProcessWindow(task);
+    }
+
     @FXML
     private void createDir() {
         TextInputDialog dialog = new TextInputDialog();
@@ -121,14 +183,21 @@ public class ClientMainController {
                     log.info("Command received: {}", command);
                     switch (command.getCommandType()) {
                         case AUTH_OK:
+                            Integer window = (Integer) command.getParameter(ParameterType.WINDOW);
+                            if (window != null) {
+                                Config.setTransferWindow(window);
+                                Config.setChunkSize((Integer) command.getParameter(ParameterType.CHUNK_SIZE));
+                                Config.setDedup(Boolean.TRUE.equals(command.getParameter(ParameterType.DEDUP)));
+                            }
+                            Config.setChecksumType((ChecksumType) command.getParameter(ParameterType.CHECKSUM));
                             Platform.runLater(() -> {
                                 connectButton.setText("Disconnect");
                                 emailLabel.setText(Config.getUser().getEmail());
                                 filesTilePane.setAlignment(Pos.TOP_LEFT);
                                 filesTilePane.getChildren().clear();
                                 uploadButton.setDisable(false);
+                                uploadFolderButton.setDisable(false);
                                 createButton.setDisable(false);
-                                semaphore = new Semaphore(1);
                                 runConnectionInspector();
 
                             });
@@ -140,18 +209,62 @@ public class ClientMainController {
                         case CONTENT_RESPONSE:
                             refreshClientContent(command);
                             break;
+                        case LISTING:
+                            showListingPage(command);
+                            break;
+                        case DELETE_PROGRESS:
+                            Platform.runLater(() -> showDeleteProgress(command));
+                            break;
                         case ERROR:
+                            if (directoryDownload != null) {
+                                directoryDownload.failed();
+                            }
                             Platform.runLater(() -> showAlertWindow((String) command.getParameter(ParameterType.MESSAGE), Alert.AlertType.ERROR));
                             break;
                         case FILE_DOWNLOAD:
-                            Platform.runLater(() -> downloadFileSave(command));
+                            DirectoryDownloadTask directory = directoryDownload;
+                            if (directory != null) {
+                                directory.received((FileDTO) command.getParameter(ParameterType.FILE_DTO));
+                            } else {
+                                Platform.runLater(() -> downloadFileSave(command));
+                            }
+                            break;
+                        case DOWNLOAD_ERROR:
+                            if (directoryDownload != null) {
+                                directoryDownload.failed();
+                            }
+                            String message = (String) command.getParameter(ParameterType.MESSAGE);
+                            Platform.runLater(() -> showAlertWindow(message != null ? message : "Download error", Alert.AlertType.ERROR));
                             break;
                         case NEXT_PART:
-                            semaphore.release();
+                            if (uploadWindow != null) {
+                                uploadWindow.ack((Integer) command.getParameter(ParameterType.PART));
+                            }
+                            break;
+                        case TRANSFER_STATUS:
+                            FileDTO status = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+                            status.release();
+                            if (uploadStatus != null) {
+                                uploadStatus.complete(status);
+                            }
+                            break;
+                        case CHUNK_QUERY:
+                            if (knownChunks != null) {
+                                knownChunks.complete(command.getList(ParameterType.CHUNKS, String.class));
+                            }
+                            break;
+                        case BATCH_UPLOAD:
+                            if (batchResult != null) {
+                                batchResult.complete(command);
+                            }
                             break;
                         case UPLOAD_ERROR:
-                            hasError.set(true);
-                            semaphore.release();
+                            if (uploadWindow != null) {
+                                uploadWindow.fail();
+                            }
+                            if (batchResult != null) {
+                                batchResult.completeExceptionally(new IOException("Batch upload failed"));
+                            }
                             Platform.runLater(() -> showAlertWindow((String) command.getParameter(ParameterType.MESSAGE), Alert.AlertType.ERROR));
                             break;
                     }
@@ -171,20 +284,29 @@ public class ClientMainController {
             fileChooser.setTitle("Save file");
             fileChooser.setInitialFileName(dto.getName());
             fileForDownload = fileChooser.showSaveDialog(mainPane.getScene().getWindow());
+            downloadChecksum = Config.getChecksumType() != null ? new FileChecksum(Config.getChecksumType()) : null;
         }
         if (fileForDownload != null) {
             try (FileOutputStream os = new FileOutputStream(fileForDownload, true)) {
-                if (!DigestUtils.md5Hex(dto.getContent()).equals(dto.getMd5())) {
+                boolean valid = downloadChecksum != null
+                        ? FileChecksum.of(downloadChecksum.getType(), dto.contentBuffer()) == dto.getChecksum()
+                        : Hex.encodeHexString(DigestUtils.digest(DigestUtils.getMd5Digest(), dto.contentBuffer())).equals(dto.getMd5());
+                if (downloadChecksum != null) {
+                    downloadChecksum.append(dto.getChecksum(), dto.contentLength());
+                }
+                if (!valid) {
                     network.writeMessage(new Command(CommandType.DOWNLOAD_ERROR));
                     Files.deleteIfExists(fileForDownload.toPath());
+                    fileForDownload = null;
                     return;
                 }
                 if (!dto.isEnd()) {
-                    os.write(dto.getContent());
-                    network.writeMessage(new Command(CommandType.NEXT_PART));
+                    os.getChannel().write(dto.contentBuffer());
+                    network.writeMessage(new Command(CommandType.NEXT_PART).setParameter(ParameterType.PART, dto.getPart()));
                 } else {
-                    os.write(dto.getContent());
-                    if (fileForDownload.length() != dto.getFullSize()) {
+                    os.getChannel().write(dto.contentBuffer());
+                    if (fileForDownload.length() != dto.getFullSize()
+                            || downloadChecksum != null && !downloadChecksum.digest().equals(dto.getFileDigest())) {
                         network.writeMessage(new Command(CommandType.DOWNLOAD_ERROR));
                         Files.deleteIfExists(fileForDownload.toPath());
                     }
@@ -194,6 +316,19 @@ public class ClientMainController {
                 log.error("Download file exception: {}", e.getMessage(), e);
             }
         }
+        dto.release();
+    }
+
+    private void showDeleteProgress(Command command) {
+        String path = (String) command.getParameter(ParameterType.CURRENT);
+        long deleted = (Long) command.getParameter(ParameterType.DELETED);
+        long total = (Long) command.getParameter(ParameterType.TOTAL);
+        if (deleted >= total && !deletions.containsKey(path)) {
+            return;
+        }
+        if (deletions.computeIfAbsent(path, DeleteProgressWindow::new).update(deleted, total)) {
+            deletions.remove(path);
+        }
     }
 
     private void disconnectionProcess() {
@@ -204,7 +339,10 @@ public class ClientMainController {
         connectButton.setText("Connect");
         pathHBox.getChildren().clear();
         uploadButton.setDisable(true);
+        uploadFolderButton.setDisable(true);
         createButton.setDisable(true);
+        deletions.values().forEach(DeleteProgressWindow::close);
+        deletions.clear();
         network.close();
     }
 
@@ -235,6 +373,9 @@ public class ClientMainController {
                 .setParameter(ParameterType.CONTENT_ACTION, actionType)
                 .setParameter(ParameterType.CURRENT, curren);
         switch (actionType) {
+            case OPEN:
+                setListingView(command);
+                break;
             case DELETE:
                 Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
                 alert.setTitle("Delete");
@@ -258,7 +399,48 @@ public class ClientMainController {
                 }
                 break;
             case DOWNLOAD:
-                break;
+                if (network.isDownloading() || directoryDownload != null) {
+                    showAlertWindow("Another download is in progress", Alert.AlertType.ERROR);
+                    return;
+                }
+                FileChooser fileChooser = new FileChooser();
+                fileChooser.setInitialDirectory(new File(System.getProperty("user.home")));
+                fileChooser.setTitle("Save file");
+                fileChooser.setInitialFileName(curren.substring(curren.lastIndexOf("/") + 1));
+                File target = fileChooser.showSaveDialog(mainPane.getScene().getWindow());
+                if (target == null) {
+                    return;
+                }
+                File partial = FileStreamHandler.partialFile(target);
+                if (Config.getConnections() > 1 && !partial.exists()) {
+                    ParallelDownloadTask task = new ParallelDownloadTask(curren, target);
+                    task.setOnFailed(event -> showAlertWindow(task.getException().getMessage(), Alert.AlertType.ERROR));
+                    new UploadProcessWindow(task, "Download progress");
+                    return;
+                }
+                // the partial file is read to check the resumed download, not on the FX thread
+                Task<Void> download = new Task<Void>() {
+                    @Override
+                    protected Void call() throws Exception {
+                        long offset = network.setDownloadTarget(target, Config.getChecksumType());
+                        try {
+                            network.writeMessage(command.setParameter(ParameterType.STREAM, true)
+                                    .setParameter(ParameterType.OFFSET, offset));
+                        } catch (Exception e) {
+                            network.setDownloadTarget(null, null);
+                            throw e;
+                        }
+                        return null;
+                    }
+                };
+                download.setOnFailed(event -> {
+                    log.error("Content request exception: {}", download.getException().getMessage(), download.getException());
+                    showAlertWindow(download.getException().getMessage(), Alert.AlertType.ERROR);
+                });
+                Thread thread = new Thread(download);
+                thread.setDaemon(true);
+                thread.start();
+                return;
         }
         try {
             network.writeMessage(command);
@@ -268,6 +450,52 @@ public class ClientMainController {
         }
     }
 
+    /**
+     * Downloads the directory as a ZIP archive, saved as it is or unpacked into a folder.
+     */
+    private void downloadDirectory(String current) {
+        if (network.isDownloading() || directoryDownload != null) {
+            showAlertWindow("Another download is in progress", Alert.AlertType.ERROR);
+            return;
+        }
+        ButtonType zip = new ButtonType("Save ZIP");
+        ButtonType compressed = new ButtonType("Save compressed ZIP");
+        ButtonType unpack = new ButtonType("Unpack");
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION, null, zip, compressed, unpack, ButtonType.CANCEL);
+        alert.setTitle("Download directory");
+        alert.setHeaderText("Save the directory as an archive or unpack it into a folder?");
+        Optional<ButtonType> choice = alert.showAndWait();
+        if (!choice.isPresent() || choice.get() == ButtonType.CANCEL) {
+            return;
+        }
+        File target;
+        if (choice.get() == unpack) {
+            DirectoryChooser directoryChooser = new DirectoryChooser();
+            directoryChooser.setInitialDirectory(new File(System.getProperty("user.home")));
+            directoryChooser.setTitle("Unpack into");
+            target = directoryChooser.showDialog(mainPane.getScene().getWindow());
+        } else {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setInitialDirectory(new File(System.getProperty("user.home")));
+            fileChooser.setTitle("Save file");
+            String name = current.substring(current.lastIndexOf("/") + 1);
+            fileChooser.setInitialFileName((name.isEmpty() ? "root" : name) + ".zip");
+            target = fileChooser.showSaveDialog(mainPane.getScene().getWindow());
+        }
+        if (target == null) {
+            return;
+        }
+        DirectoryDownloadTask task = new DirectoryDownloadTask(current, target, choice.get() == unpack, choice.get() == compressed, network);
+        task.setOnFailed(event -> {
+            directoryDownload = null;
+            showAlertWindow(task.getException().getMessage(), Alert.AlertType.ERROR);
+        });
+        task.setOnSucceeded(event -> directoryDownload = null);
+        task.setOnCancelled(event -> directoryDownload = null);
+        directoryDownload = task;
+        new UploadProcessWindow(task, "Download progress");
+    }
+
     private boolean isValidName(String s) {
         if (s.trim().isEmpty()) {
             return false;
@@ -287,7 +515,12 @@ public class ClientMainController {
 
     private void authRequest() {
         try {
-            network.writeMessage(new Command(CommandType.AUTH_REQUEST));
+            network.writeMessage(new Command(CommandType.AUTH_REQUEST)
+                    .setParameter(ParameterType.CODEC, CodecType.BINARY)
+                    .setParameter(ParameterType.WINDOW, Integer.MAX_VALUE)
+                    .setParameter(ParameterType.CHECKSUM, FileChecksum.preferred())
+                    .setParameter(ParameterType.COMPRESSION, Config.getCompression())
+                    .setParameter(ParameterType.LIMIT, Config.getPageSize()));
         } catch (ConnectException e) {
             log.error("Connection exception: {}", e.getMessage(), e);
             showAlertWindow("No connection", Alert.AlertType.ERROR);
@@ -308,6 +541,55 @@ public class ClientMainController {
         fullPath.forEach(this::addDirToHBox);
     }
 
+    /**
+     * Shows a page of a directory listing and asks for the next one once it is on screen, so a
+     * large directory fills in gradually. Pages of a directory that is no longer shown are dropped.
+     */
+    private void showListingPage(Command command) {
+        List<String> fullPath = command.getList(ParameterType.CURRENT, String.class);
+        List<EntryDTO> entries = command.getList(ParameterType.ENTRIES, EntryDTO.class);
+        String cursor = (String) command.getParameter(ParameterType.CURSOR);
+        if (command.getParameter(ParameterType.TOTAL) != null) {
+            shownPath = fullPath;
+            Platform.runLater(() -> {
+                filesTilePane.getChildren().clear();
+                pathHBox.getChildren().clear();
+            });
+            fullPath.forEach(this::addDirToHBox);
+        } else if (!fullPath.equals(shownPath)) {
+            return;
+        }
+        List<Label> labels = new ArrayList<>(entries.size());
+        for (EntryDTO entry : entries) {
+            Label label = createElement(entry.getName(), entry.isDirectory());
+            label.setTooltip(new Tooltip((entry.isDirectory() ? "" : entry.getSize() + " bytes\n")
+                    + DateFormat.getDateTimeInstance().format(new Date(entry.getModified()))));
+            labels.add(label);
+        }
+        Platform.runLater(() -> filesTilePane.getChildren().addAll(labels));
+        if (cursor != null) {
+            Platform.runLater(() -> {
+                if (!fullPath.equals(shownPath)) {
+                    return;
+                }
+                Command next = new Command(CommandType.LISTING)
+                        .setParameter(ParameterType.CURRENT, fullPath.size() == 1 ? "root" : "/" + String.join("/", fullPath.subList(1, fullPath.size())))
+                        .setParameter(ParameterType.CURSOR, cursor);
+                try {
+                    network.writeMessage(setListingView(next));
+                } catch (ConnectException e) {
+                    log.error("Listing request exception: {}", e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    private Command setListingView(Command command) {
+        return command.setParameter(ParameterType.SORT, Config.getSort())
+                .setParameter(ParameterType.DESCENDING, Config.isDescending())
+                .setParameter(ParameterType.PREFIX, Config.getPrefix());
+    }
+
     private void addDirToHBox(String dir) {
         Label label = new Label(dir);
         label.setPadding(new Insets(2, 3, 2, 3));
@@ -342,6 +624,11 @@ public class ClientMainController {
     }
 
     private void addElementToPane(String name, Boolean isDirectory) {
+        Label label = createElement(name, isDirectory);
+        Platform.runLater(() -> filesTilePane.getChildren().add(label));
+    }
+
+    private Label createElement(String name, boolean isDirectory) {
         Label label = new Label(name);
         label.setPickOnBounds(true);
         label.setMinSize(60, 100);
@@ -359,13 +646,14 @@ public class ClientMainController {
                 }
                 event.consume();
             });
-            addLabelContextMenu(label, ContentActionType.OPEN, ContentActionType.RENAME, ContentActionType.DELETE);
+            label.setUserData(Boolean.TRUE);
+            addLabelContextMenu(label, ContentActionType.OPEN, ContentActionType.DOWNLOAD, ContentActionType.RENAME, ContentActionType.DELETE);
         } else {
             image = new Image("file.png");
             addLabelContextMenu(label, ContentActionType.DOWNLOAD, ContentActionType.RENAME, ContentActionType.DELETE);
         }
         label.setGraphic(new ImageView(image));
-        Platform.runLater(() -> filesTilePane.getChildren().add(label));
+        return label;
     }
 
     public void closeConnection() {
@@ -402,7 +690,11 @@ public class ClientMainController {
             if (event.isPrimaryButtonDown()) {
                 String s = ((ContextMenuContent.MenuItemContainer) event.getTarget()).getItem().getId();
                 ContentActionType type = ContentActionType.valueOf(s.toUpperCase(Locale.ROOT));
-                Platform.runLater(() -> contentRequest(getFullPath(label) + label.getText(), type));
+                if (type == ContentActionType.DOWNLOAD && Boolean.TRUE.equals(label.getUserData())) {
+                    Platform.runLater(() -> downloadDirectory(getFullPath(label) + label.getText()));
+                } else {
+                    Platform.runLater(() -> contentRequest(getFullPath(label) + label.getText(), type));
+                }
                 event.consume();
             }
         });
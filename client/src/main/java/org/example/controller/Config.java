@@ -1,11 +1,27 @@
 package org.example.controller;
 
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CompressionType;
+import org.example.model.command.SortType;
 import org.example.model.user.User;
 
 public class Config {
     private static User user;
+    private static volatile String session;
     private static String host;
     private static int port;
+    private static int transferWindow = 1;
+    private static int chunkSize = 30_000_000;
+    private static int connections = 4;
+    private static boolean dedup;
+    private static ChecksumType checksumType;
+    private static CompressionType compression = CompressionType.DEFLATE;
+    private static long minRangeSize = 16L << 20;
+    private static int pageSize = 500;
+    private static SortType sort = SortType.NAME;
+    private static boolean descending;
+    private static String prefix;
+    private static String transport = "auto";
     private static final char[] forbidden = new char[]{'/', '\\', '*', '?', ':', '|', '>', '<', '\"', '+', '%', '!', '\'', '@', '~'};
 
     private Config() {
@@ -22,9 +38,23 @@ public class Config {
         if (user.getPassword() == null || user.getPassword().isEmpty()) {
             throw new IllegalArgumentException("password can't be empty");
         }
+        if (!user.equals(Config.user)) {
+            session = null;
+        }
         Config.user = user;
     }
 
+    /**
+     * Session id of the user, connections resume it instead of sending the password.
+     */
+    public static String getSession() {
+        return session;
+    }
+
+    public static void setSession(String session) {
+        Config.session = session;
+    }
+
     public static String getHost() {
         return host;
     }
@@ -54,6 +84,114 @@ public class Config {
         }
     }
 
+    public static int getTransferWindow() {
+        return transferWindow;
+    }
+
+    public static void setTransferWindow(int transferWindow) {
+        Config.transferWindow = transferWindow;
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    public static void setChunkSize(int chunkSize) {
+        Config.chunkSize = chunkSize;
+    }
+
+    public static boolean isDedup() {
+        return dedup;
+    }
+
+    public static void setDedup(boolean dedup) {
+        Config.dedup = dedup;
+    }
+
+    /**
+     * @return the chunk checksum negotiated with the server, null if chunks are checked by md5
+     */
+    public static ChecksumType getChecksumType() {
+        return checksumType;
+    }
+
+    public static void setChecksumType(ChecksumType checksumType) {
+        Config.checksumType = checksumType;
+    }
+
+    /**
+     * Compression of file chunks asked for at connection, null for none.
+     */
+    public static CompressionType getCompression() {
+        return compression;
+    }
+
+    public static void setCompression(CompressionType compression) {
+        Config.compression = compression;
+    }
+
+    public static int getConnections() {
+        return connections;
+    }
+
+    public static void setConnections(int connections) {
+        Config.connections = Math.max(1, connections);
+    }
+
+    public static long getMinRangeSize() {
+        return minRangeSize;
+    }
+
+    public static void setMinRangeSize(long minRangeSize) {
+        Config.minRangeSize = minRangeSize;
+    }
+
+    public static int getPageSize() {
+        return pageSize;
+    }
+
+    public static void setPageSize(int pageSize) {
+        Config.pageSize = Math.max(1, pageSize);
+    }
+
+    public static SortType getSort() {
+        return sort;
+    }
+
+    public static void setSort(SortType sort) {
+        Config.sort = sort;
+    }
+
+    public static boolean isDescending() {
+        return descending;
+    }
+
+    public static void setDescending(boolean descending) {
+        Config.descending = descending;
+    }
+
+    /**
+     * @return only entries starting with it are listed, null for all
+     */
+    public static String getPrefix() {
+        return prefix;
+    }
+
+    public static void setPrefix(String prefix) {
+        Config.prefix = prefix;
+    }
+
+    /**
+     * @return io_uring, epoll, nio or auto for the first one available
+     */
+    public static String getTransport() {
+        return transport;
+    }
+
+    public static void setTransport(String transport) {
+        Config.transport = transport;
+    }
+
     public static char[] getForbidden() {
         return forbidden;
     }
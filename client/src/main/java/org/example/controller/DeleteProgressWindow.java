@@ -0,0 +1,39 @@
+package org.example.controller;
+
+import javafx.scene.Scene;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.AnchorPane;
+import javafx.stage.Stage;
+
+/**
+ * Progress of a directory deleted in the background by the server. The window doesn't block the
+ * main one and closes when the server reports the deletion done.
+ */
+public class DeleteProgressWindow extends Stage {
+
+    private final ProgressBar progressBar = new ProgressBar(0);
+
+    public DeleteProgressWindow(String path) {
+        AnchorPane anchorPane = new AnchorPane();
+        anchorPane.getChildren().add(progressBar);
+        AnchorPane.setLeftAnchor(progressBar, 0.0);
+        AnchorPane.setBottomAnchor(progressBar, 0.0);
+        AnchorPane.setRightAnchor(progressBar, 0.0);
+        AnchorPane.setTopAnchor(progressBar, 0.0);
+        setTitle("Deleting " + path.substring(path.lastIndexOf("/") + 1));
+        setScene(new Scene(anchorPane, 200, 20));
+        show();
+    }
+
+    /**
+     * @return whether the deletion is done
+     */
+    public boolean update(long deleted, long total) {
+        progressBar.setProgress(total == 0 ? 1 : (double) deleted / total);
+        if (deleted >= total) {
+            close();
+            return true;
+        }
+        return false;
+    }
+}
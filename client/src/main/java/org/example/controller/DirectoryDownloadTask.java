@@ -0,0 +1,235 @@
+package org.example.controller;
+
+import javafx.concurrent.Task;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.CompressionType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.FileStreamHandler;
+import org.example.netty.NettyNetwork;
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a directory as a ZIP archive the server builds while it sends it, saved as it is or
+ * unpacked into a folder as it arrives. Chunks are checked and acknowledged as they are read, so
+ * the window of the server bounds those kept in memory.
+ */
+@Slf4j
+public class DirectoryDownloadTask extends Task<Long> {
+    private static final FileDTO FAILED = FileDTO.builder().build();
+
+    private final String current;
+    private final File target;
+    private final boolean unpack;
+    private final boolean compress;
+    private final NettyNetwork network;
+    private final BlockingQueue<FileDTO> chunks = new LinkedBlockingQueue<>();
+
+    /**
+     * @param target   archive file, or the folder to unpack into
+     * @param compress deflate the entries, they are stored otherwise
+     */
+    public DirectoryDownloadTask(String current, File target, boolean unpack, boolean compress, NettyNetwork network) {
+        this.current = current;
+        this.target = target;
+        this.unpack = unpack;
+        this.compress = compress;
+        this.network = network;
+    }
+
+    /**
+     * Passes on a chunk received for the download.
+     */
+    public void received(FileDTO dto) {
+        chunks.add(dto);
+    }
+
+    /**
+     * Ends the download when the server has failed to send it.
+     */
+    public void failed() {
+        chunks.add(FAILED);
+    }
+
+    /**
+     * @return bytes of the archive
+     */
+    @Override
+    protected Long call() throws Exception {
+        network.writeMessage(new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.DOWNLOAD)
+                .setParameter(ParameterType.CURRENT, current)
+                .setParameter(ParameterType.COMPRESSION, compress ? CompressionType.DEFLATE : null));
+        ArchiveStream archive = new ArchiveStream();
+        File partial = FileStreamHandler.partialFile(target);
+        try {
+            if (unpack) {
+                log.info("Directory {} unpacked, {} files", current, unpack(archive));
+            } else {
+                Files.copy(archive, partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            // the central directory after the entries is not read by the unpacking
+            archive.skip(Long.MAX_VALUE);
+            archive.verify();
+            if (!unpack) {
+                Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return archive.received;
+        } catch (Exception e) {
+            if (!archive.ended) {
+                // stops the server
+                network.writeMessage(new Command(CommandType.DOWNLOAD_ERROR));
+            }
+            if (!unpack) {
+                Files.deleteIfExists(partial.toPath());
+            }
+            throw e;
+        } finally {
+            archive.close();
+        }
+    }
+
+    private int unpack(InputStream archive) throws IOException {
+        Path root = target.toPath().toAbsolutePath().normalize();
+        ZipInputStream zip = new ZipInputStream(archive);
+        int files = 0;
+        for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+            Path path = root.resolve(entry.getName()).normalize();
+            if (!path.startsWith(root) || path.equals(root)) {
+                throw new IOException("Wrong entry in the archive: " + entry.getName());
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(path);
+                continue;
+            }
+            Files.createDirectories(path.getParent());
+            Files.copy(zip, path, StandardCopyOption.REPLACE_EXISTING);
+            if (entry.getLastModifiedTime() != null) {
+                Files.setLastModifiedTime(path, entry.getLastModifiedTime());
+            }
+            files++;
+        }
+        return files;
+    }
+
+    /**
+     * The archive read from the chunks in the queue, each one checked and acknowledged when it is
+     * taken. The digest of the whole archive comes with the last chunk.
+     */
+    private class ArchiveStream extends InputStream {
+        private final ChecksumType type = Config.getChecksumType();
+        private final FileChecksum checksum = type != null ? new FileChecksum(type) : null;
+        private FileDTO chunk;
+        private ByteBuffer content;
+        private long received;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (content == null || !content.hasRemaining()) {
+                if (ended || !next()) {
+                    return -1;
+                }
+            }
+            int length = Math.min(len, content.remaining());
+            content.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && (content != null && content.hasRemaining() || !ended && next())) {
+                int length = (int) Math.min(n - skipped, content.remaining());
+                content.position(content.position() + length);
+                skipped += length;
+            }
+            return skipped;
+        }
+
+        private boolean next() throws IOException {
+            release();
+            FileDTO dto;
+            try {
+                dto = chunks.poll(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException("Download of " + current + " was cancelled");
+            }
+            if (dto == null || dto == FAILED) {
+                throw new IOException(dto == null ? "Download of " + current + " timed out" : "Download of " + current + " failed");
+            }
+            chunk = dto;
+            content = dto.contentBuffer();
+            boolean valid = checksum != null
+                    ? FileChecksum.of(type, content.duplicate()) == dto.getChecksum()
+                    : Hex.encodeHexString(DigestUtils.digest(DigestUtils.getMd5Digest(), content.duplicate())).equals(dto.getMd5());
+            if (!valid || dto.getOffset() != received) {
+                throw new IOException(dto.getName() + " is corrupted");
+            }
+            if (checksum != null) {
+                checksum.append(dto.getChecksum(), content.remaining());
+            }
+            received += content.remaining();
+            ended = dto.isEnd();
+            if (!ended) {
+                network.writeMessage(new Command(CommandType.NEXT_PART).setParameter(ParameterType.PART, dto.getPart()));
+            }
+            return true;
+        }
+
+        /**
+         * Without a negotiated checksum only the md5 of every chunk is checked.
+         */
+        void verify() throws IOException {
+            boolean valid = ended && received == chunk.getFullSize()
+                    && (checksum == null || checksum.digest().equals(chunk.getFileDigest()));
+            if (!valid) {
+                throw new IOException(chunk.getName() + " is corrupted");
+            }
+        }
+
+        private void release() {
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+            content = null;
+            for (FileDTO dto; (dto = chunks.poll()) != null; ) {
+                dto.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.example.controller;
+
+import javafx.concurrent.Task;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+import org.example.model.command.ChecksumType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.FileStreamHandler;
+import org.example.netty.TransferConnection;
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the file as several ranges, each over its own connection, into {@code <target>.part}.
+ * The whole file is checked against the digest sent by the server before it is moved to the target,
+ * with a negotiated checksum it is combined from the range checksums instead of read again.
+ * A partial file with missing ranges can't be continued by a single stream, so it is deleted on failure.
+ */
+@Slf4j
+public class ParallelDownloadTask extends Task<Long> {
+    private final String current;
+    private final File target;
+
+    public ParallelDownloadTask(String current, File target) {
+        this.current = current;
+        this.target = target;
+    }
+
+    @Override
+    protected Long call() throws Exception {
+        File partial = FileStreamHandler.partialFile(target);
+        List<TransferConnection> connections = new ArrayList<>();
+        ExecutorService executor = null;
+        boolean success = false;
+        try {
+            connections.add(new TransferConnection(Config.getHost(), Config.getPort()));
+            FileDTO header = connections.get(0).downloadRange(current, null, 0, 0);
+            long size = header.getFullSize();
+            long[] bounds = ParallelUploadTask.split(0, size, connections.get(0).getChunkSize());
+            while (connections.size() < bounds.length - 1) {
+                connections.add(new TransferConnection(Config.getHost(), Config.getPort()));
+            }
+            AtomicLong done = new AtomicLong();
+            executor = Executors.newFixedThreadPool(connections.size());
+            List<CompletableFuture<FileDTO>> ranges = new ArrayList<>();
+            for (int i = 0; i < bounds.length - 1; i++) {
+                TransferConnection connection = connections.get(i);
+                long start = bounds[i];
+                long length = bounds[i + 1] - start;
+                ranges.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        FileDTO range = connection.downloadRange(current, target, start, length);
+                        updateProgress(done.addAndGet(length), size);
+                        return range;
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).get();
+            if (!partial.exists() && size == 0) {
+                Files.createFile(partial.toPath());
+            }
+            ChecksumType type = FileChecksum.typeOf(header.getFileDigest());
+            String digest;
+            if (type != null) {
+                FileChecksum checksum = new FileChecksum(type);
+                for (int i = 0; i < ranges.size(); i++) {
+                    checksum.append(ranges.get(i).get().getChecksum(), bounds[i + 1] - bounds[i]);
+                }
+                digest = checksum.digest();
+            } else {
+                digest = new DigestUtils(MessageDigestAlgorithms.MD5).digestAsHex(partial);
+            }
+            if (partial.length() != size || !digest.equals(type != null ? header.getFileDigest() : header.getMd5())) {
+                throw new IOException(header.getName() + " is corrupted");
+            }
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Parallel download finished file: {}, ranges {}", target.getAbsolutePath(), connections.size());
+            success = true;
+            return size;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            connections.forEach(TransferConnection::close);
+            if (!success) {
+                Files.deleteIfExists(partial.toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.example.controller;
+
+import javafx.concurrent.Task;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.NettyNetwork;
+import org.example.netty.TransferConnection;
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads the file as several ranges, each over its own connection. Every chunk is checked by the
+ * server as it arrives. The checksum of the whole file is combined from the range checksums, so
+ * the file is read once, and sent when every range is acknowledged; the server completes the file
+ * only if it matches the checksum it has combined from the chunks.
+ */
+@Slf4j
+public class ParallelUploadTask extends Task<Long> {
+    private final File file;
+    private final String path;
+    private final NettyNetwork network;
+
+    public ParallelUploadTask(File file, String path, NettyNetwork network) {
+        this.file = file;
+        this.path = path;
+        this.network = network;
+    }
+
+    @Override
+    protected Long call() throws Exception {
+        long size = file.length();
+        String transferId = UploadTask.transferId(file, path);
+        List<TransferConnection> connections = new ArrayList<>();
+        ExecutorService executor = null;
+        try {
+            connections.add(new TransferConnection(Config.getHost(), Config.getPort()));
+            FileDTO probe = FileDTO.builder()
+                    .transferId(transferId)
+                    .name(file.getName())
+                    .path(path)
+                    .fullSize(size)
+                    .build();
+            long from = connections.get(0).status(probe).getOffset();
+            ChecksumType type = connections.get(0).getChecksumType();
+            if (from >= size) {
+                // every byte is stored, the server only waits for the digest to complete the file
+                log.info("Upload of {} resumed at its end", file.getName());
+                String digest;
+                try (FileInputStream is = new FileInputStream(file)) {
+                    if (type != null) {
+                        FileChecksum checksum = new FileChecksum(type);
+                        checksum.update(is, size);
+                        digest = checksum.digest();
+                    } else {
+                        digest = DigestUtils.md5Hex(is);
+                    }
+                }
+                finish(connections.get(0), transferId, 1, digest);
+                updateProgress(size, size);
+                return size;
+            }
+            if (from > 0) {
+                log.info("Upload of {} resumed at {}", file.getName(), from);
+            }
+            long[] bounds = split(from, size, connections.get(0).getChunkSize());
+            while (connections.size() < bounds.length - 1) {
+                connections.add(new TransferConnection(Config.getHost(), Config.getPort()));
+            }
+            AtomicLong done = new AtomicLong(from);
+            updateProgress(from, size);
+            executor = Executors.newFixedThreadPool(connections.size());
+            List<CompletableFuture<FileChecksum>> ranges = new ArrayList<>();
+            for (int i = 0; i < bounds.length - 1; i++) {
+                TransferConnection connection = connections.get(i);
+                int range = i + 1;
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                ranges.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return connection.uploadRange(file, path, transferId, range, start, end,
+                                l -> updateProgress(done.addAndGet(l), size));
+                    } catch (Exception e) {
+                        log.error("Upload range {} exception: {}", range, e.getMessage(), e);
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }, executor));
+            }
+            try {
+                CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).get();
+            } catch (ExecutionException e) {
+                throw new IOException("Upload of " + file.getName() + " failed", e.getCause());
+            }
+            if (type != null) {
+                FileChecksum checksum = new FileChecksum(type);
+                try (FileInputStream is = new FileInputStream(file)) {
+                    checksum.update(is, from);
+                }
+                for (int i = 0; i < ranges.size(); i++) {
+                    checksum.append(ranges.get(i).get().getValue(), bounds[i + 1] - bounds[i]);
+                }
+                finish(connections.get(0), transferId, bounds.length, checksum.digest());
+            } else {
+                refresh();
+            }
+            return size;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            connections.forEach(TransferConnection::close);
+        }
+    }
+
+    private void finish(TransferConnection connection, String transferId, int range, String digest) throws Exception {
+        if (!connection.finishUpload(file, path, transferId, range, digest)) {
+            throw new IOException(file.getName() + " is corrupted");
+        }
+        refresh();
+    }
+
+    private void refresh() throws IOException {
+        network.writeMessage(new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.OPEN)
+                .setParameter(ParameterType.CURRENT, path));
+    }
+
+    /**
+     * Splits {@code [from, to)} into at most {@link Config#getConnections()} ranges of at least
+     * {@link Config#getMinRangeSize()} bytes, aligned to the chunk size.
+     *
+     * @return range bounds, range i is {@code [bounds[i], bounds[i + 1])}
+     */
+    static long[] split(long from, long to, long chunkSize) {
+        long length = to - from;
+        int count = (int) Math.max(1, Math.min(Config.getConnections(), length / Math.max(1, Config.getMinRangeSize())));
+        long rangeSize = (length + count - 1) / count;
+        rangeSize = (rangeSize + chunkSize - 1) / chunkSize * chunkSize;
+        List<Long> bounds = new ArrayList<>();
+        for (long start = from; start < to; start += rangeSize) {
+            bounds.add(start);
+        }
+        bounds.add(to);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -12,6 +12,10 @@ import javafx.stage.StageStyle;
 public class UploadProcessWindow extends Stage {
 
     public UploadProcessWindow(Task<?> task) {
+        this(task, "Upload progress");
+    }
+
+    public UploadProcessWindow(Task<?> task, String title) {
         ProgressBar progressBar = new ProgressBar();
         progressBar.progressProperty().bind(task.progressProperty());
         AnchorPane anchorPane = new AnchorPane();
@@ -23,7 +27,7 @@ public class UploadProcessWindow extends Stage {
         task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, event -> close());
         task.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, event -> close());
         Scene scene = new Scene(anchorPane, 200, 20);
-        setTitle("Upload progress");
+        setTitle(title);
         setScene(scene);
         setOnCloseRequest(event -> task.cancel());
         initModality(Modality.APPLICATION_MODAL);
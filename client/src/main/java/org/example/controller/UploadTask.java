@@ -1,67 +1,158 @@
 package org.example.controller;
 
+import io.netty.buffer.ByteBuf;
 import javafx.concurrent.Task;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
 import org.example.model.command.Command;
 import org.example.model.command.CommandType;
 import org.example.model.command.ParameterType;
 import org.example.model.dto.FileDTO;
+import org.example.netty.ChunkHashes;
 import org.example.netty.NettyNetwork;
+import org.example.netty.transfer.ChunkBuffers;
+import org.example.netty.transfer.FileChecksum;
+import org.example.netty.transfer.TransferWindow;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
 public class UploadTask extends Task<Long> {
     private final File file;
     private final String path;
-    private final Semaphore semaphore;
+    private final TransferWindow window;
+    private final CompletableFuture<FileDTO> status;
+    private final CompletableFuture<List<String>> knownChunks;
     private final NettyNetwork network;
-    private final AtomicBoolean hasError;
 
-    public UploadTask(File file, String path, Semaphore semaphore, NettyNetwork network, AtomicBoolean hasError) {
+    public UploadTask(File file, String path, TransferWindow window, CompletableFuture<FileDTO> status,
+                      CompletableFuture<List<String>> knownChunks, NettyNetwork network) {
         this.file = file;
         this.path = path;
-        this.semaphore = semaphore;
+        this.window = window;
+        this.status = status;
+        this.knownChunks = knownChunks;
         this.network = network;
-        this.hasError = hasError;
     }
 
+    /**
+     * Sends every chunk with its checksum and the checksum of the whole file, built from the chunk
+     * checksums, with the last one. A resumed upload reads the part the server already has once.
+     */
     @Override
     protected Long call() throws Exception {
-        hasError.set(false);
-        semaphore.release(semaphore.drainPermits());
         long size = file.length();
-        FileDTO fileDTO = FileDTO.builder()
-                .owner(Config.getUser())
-                .name(file.getName())
-                .path(path)
-                .fullSize(size)
-                .build();
-        long readBytes = 0;
+        String transferId = transferId(file, path);
+        long readBytes = requestOffset(transferId, size);
+        ChecksumType type = Config.getChecksumType();
+        ChunkHashes hashes = Config.isDedup() ? ChunkHashes.of(file, readBytes, size, Config.getChunkSize(), type) : null;
+        Set<String> known = hashes != null ? requestKnownChunks(hashes.getHashes()) : Collections.emptySet();
+        FileChecksum checksum = type != null ? new FileChecksum(type) : null;
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        int part = 0;
+        updateProgress(readBytes, size);
         try (FileInputStream is = new FileInputStream(file)) {
-            while (!fileDTO.isEnd()) {
-                semaphore.acquire();
-                if (hasError.get()) {
+            if (checksum != null) {
+                checksum.update(is, readBytes);
+            }
+            is.getChannel().position(readBytes);
+            do {
+                if (!window.acquire(part + 1) || isCancelled()) {
                     failed();
                     break;
                 }
-                fileDTO.setStart(readBytes == 0);
-                long l = (size - readBytes) > 30_000_000 ? 30_000_000 : size - readBytes;
-                byte[] buffer = new byte[(int) l];
-                readBytes += is.read(buffer, 0, (int) l);
-                String md5 = DigestUtils.md5Hex(buffer);
-                fileDTO.setMd5(md5);
-                fileDTO.setContent(buffer);
-                fileDTO.setPart(fileDTO.getPart() + 1);
+                long l = Math.min(size - readBytes, Config.getChunkSize());
+                FileDTO fileDTO;
+                if (hashes != null && part < hashes.getHashes().size() && known.contains(hashes.getHash(part))) {
+                    fileDTO = FileDTO.builder()
+                            .name(file.getName())
+                            .path(path)
+                            .fullSize(size)
+                            .transferId(transferId)
+                            .offset(readBytes)
+                            .chunkHash(hashes.getHash(part))
+                            .checksum(hashes.getChecksum(part))
+                            .part(++part)
+                            .build();
+                    is.getChannel().position(readBytes + l);
+                } else {
+                    ByteBuf data = ChunkBuffers.read(is.getChannel(), (int) l);
+                    fileDTO = FileDTO.builder()
+                            .name(file.getName())
+                            .path(path)
+                            .fullSize(size)
+                            .transferId(transferId)
+                            .offset(readBytes)
+                            .isStart(readBytes == 0)
+                            .data(data)
+                            .part(++part)
+                            .build();
+                    ChunkBuffers.sign(fileDTO, data, type, md5);
+                }
+                readBytes += l;
                 fileDTO.setEnd(readBytes == size);
+                if (checksum != null) {
+                    checksum.append(fileDTO.getChecksum(), l);
+                    if (fileDTO.isEnd()) {
+                        fileDTO.setFileDigest(checksum.digest());
+                    }
+                }
                 network.writeMessage(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, fileDTO));
                 updateProgress(readBytes, size);
-            }
+            } while (readBytes < size);
+        } finally {
+            network.setTransferWindow(null);
         }
         return readBytes;
     }
+
+    /**
+     * The same file uploaded to the same directory gets the same id, so its upload can be resumed.
+     */
+    static String transferId(File file, String path) {
+        return UUID.nameUUIDFromBytes((file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + path)
+                .getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private Set<String> requestKnownChunks(List<String> hashes) throws Exception {
+        network.writeMessage(new Command(CommandType.CHUNK_QUERY).setParameter(ParameterType.CHUNKS, hashes));
+        try {
+            return new HashSet<>(knownChunks.get(10, TimeUnit.SECONDS));
+        } catch (TimeoutException e) {
+            log.warn("No chunk query answer for {}, all chunks are sent", file.getName());
+            return Collections.emptySet();
+        }
+    }
+
+    private long requestOffset(String transferId, long size) throws Exception {
+        FileDTO probe = FileDTO.builder()
+                .transferId(transferId)
+                .name(file.getName())
+                .path(path)
+                .fullSize(size)
+                .build();
+        network.writeMessage(new Command(CommandType.TRANSFER_STATUS).setParameter(ParameterType.FILE_DTO, probe));
+        try {
+            long offset = status.get(10, TimeUnit.SECONDS).getOffset();
+            if (offset > 0) {
+                log.info("Upload of {} resumed at {}", file.getName(), offset);
+            }
+            return offset <= size ? offset : 0;
+        } catch (TimeoutException e) {
+            log.warn("No transfer status for {}, upload starts from the beginning", file.getName());
+            return 0;
+        }
+    }
 }
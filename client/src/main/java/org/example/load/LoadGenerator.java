@@ -0,0 +1,235 @@
+package org.example.load;
+
+import org.example.model.user.User;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator. Simulated users connect to a running server and make requests drawn
+ * from the operation mix, one at a time each, for the warmup and then the measured duration.
+ * Throughput, latency percentiles and failures of the measured part are printed at the end, see
+ * {@link LoadOptions} for the arguments.
+ * <p>
+ * {@code java -cp client-jar-with-dependencies.jar org.example.load.LoadGenerator users=32 duration=120}
+ */
+public class LoadGenerator {
+
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final long RECONNECT_DELAY = 500;
+
+    private final LoadOptions options;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private volatile long measureFrom;
+    private volatile long stopAt;
+
+    public LoadGenerator(LoadOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // set before the first logger is made, request logging at INFO would slow the clients down
+        if (System.getProperty("log4j.configuration") == null) {
+            System.setProperty("log4j.configuration", "log4j-load.properties");
+        }
+        LoadOptions options = LoadOptions.parse(args);
+        System.out.println("Load: " + options);
+        new LoadGenerator(options).run();
+    }
+
+    public void run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(options.getWarmup());
+        stopAt = measureFrom + TimeUnit.SECONDS.toNanos(options.getDuration());
+        List<SimulatedUser> users = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.getUsers(); i++) {
+            SimulatedUser user = new SimulatedUser(i, options.getAccount(i));
+            Thread thread = new Thread(user, "load-user-" + i);
+            thread.setDaemon(true);
+            users.add(user);
+            threads.add(thread);
+            thread.start();
+        }
+        long lastCompleted = 0;
+        long lastReport = start;
+        while (System.nanoTime() < stopAt) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(1000, Math.max(1, TimeUnit.NANOSECONDS.toMillis(stopAt - System.nanoTime()))));
+            long now = System.nanoTime();
+            if (now - lastReport >= REPORT_INTERVAL) {
+                long done = completed.get();
+                System.out.printf("%4d s %s: %d ops, %.1f ops/s, %d failed%n", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        now < measureFrom ? "warmup" : "measured", done, (done - lastCompleted) * 1e9 / (now - lastReport), failed.get());
+                lastCompleted = done;
+                lastReport = now;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(options.getTimeout()) * 2);
+        }
+        Map<Operation, OperationStats> total = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            total.put(operation, new OperationStats());
+        }
+        users.forEach(user -> user.stats.forEach((operation, stats) -> total.get(operation).add(stats)));
+        report(total);
+    }
+
+    private void report(Map<Operation, OperationStats> total) {
+        double seconds = options.getDuration();
+        System.out.println();
+        System.out.printf("%-9s %9s %7s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "failed", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "MB/s");
+        OperationStats all = new OperationStats();
+        for (Map.Entry<Operation, OperationStats> entry : total.entrySet()) {
+            print(entry.getKey().name(), entry.getValue(), seconds);
+            all.add(entry.getValue());
+        }
+        print("all", all, seconds);
+        double throughput = all.getCount() / seconds;
+        System.out.printf("%nthroughput %.1f ops/s, %.1f ops/s per core over %d cores, %d users%n",
+                throughput, throughput / options.getCores(), options.getCores(), options.getUsers());
+        if (!errors.isEmpty()) {
+            System.out.println("failures:");
+            errors.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                    .limit(10)
+                    .forEach(entry -> System.out.printf("%9d %s%n", entry.getValue().sum(), entry.getKey()));
+        }
+    }
+
+    private static void print(String name, OperationStats stats, double seconds) {
+        System.out.printf("%-9s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, stats.getCount(), stats.getFailures(),
+                stats.getCount() / seconds, millis(stats.quantile(0.5)), millis(stats.quantile(0.9)), millis(stats.quantile(0.99)),
+                millis(stats.quantile(1)), stats.getBytes() / seconds / (1 << 20));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * One user working in a directory of its own under the root of its account. Files it has
+     * uploaded are downloaded, renamed and deleted, an operation on a file is an upload while it
+     * has none. The directory is deleted at the end unless cleanup is off.
+     */
+    private class SimulatedUser implements Runnable {
+        private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+        private final LoadSession session;
+        private final String directory;
+        private final List<String> files = new ArrayList<>();
+        private final Random random = new Random();
+        private int names;
+
+        SimulatedUser(int index, User account) {
+            this.session = new LoadSession(options, account);
+            this.directory = "/load-" + runId + "-" + index;
+            for (Operation operation : Operation.values()) {
+                stats.put(operation, new OperationStats());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                session.connect();
+                session.createDir("root", directory.substring(1));
+            } catch (Exception e) {
+                failed(Operation.AUTH, e, System.nanoTime());
+                session.close();
+                return;
+            }
+            while (System.nanoTime() < stopAt) {
+                Operation operation = session.isConnected() ? options.nextOperation(random) : Operation.AUTH;
+                if (files.isEmpty() && (operation == Operation.DOWNLOAD || operation == Operation.RENAME || operation == Operation.DELETE)) {
+                    operation = Operation.UPLOAD;
+                }
+                long start = System.nanoTime();
+                try {
+                    long bytes = execute(operation);
+                    long end = System.nanoTime();
+                    completed.incrementAndGet();
+                    if (start >= measureFrom && end <= stopAt) {
+                        stats.get(operation).success(end - start, bytes);
+                    }
+                } catch (Exception e) {
+                    failed(operation, e, start);
+                    session.close();
+                }
+                long pause = session.isConnected() ? options.getThink() : RECONNECT_DELAY;
+                if (pause > 0) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(pause);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            if (options.isCleanup()) {
+                try {
+                    if (!session.isConnected()) {
+                        session.connect();
+                    }
+                    session.delete(directory);
+                } catch (Exception e) {
+                    errors.computeIfAbsent("cleanup: " + e.getMessage(), key -> new LongAdder()).increment();
+                }
+            }
+            session.close();
+        }
+
+        /**
+         * @return bytes transferred
+         */
+        private long execute(Operation operation) throws Exception {
+            switch (operation) {
+                case AUTH:
+                    session.connect();
+                    return 0;
+                case LIST:
+                    session.list(directory);
+                    return 0;
+                case UPLOAD:
+                    String name = nextName();
+                    long sent = session.upload(directory, name);
+                    files.add(name);
+                    return sent;
+                case DOWNLOAD:
+                    return session.download(directory + "/" + files.get(random.nextInt(files.size())));
+                case RENAME:
+                    String from = files.remove(random.nextInt(files.size()));
+                    String to = nextName();
+                    session.rename(directory + "/" + from, to);
+                    files.add(to);
+                    return 0;
+                case DELETE:
+                    session.delete(directory + "/" + files.remove(random.nextInt(files.size())));
+                    return 0;
+                default:
+                    throw new IllegalArgumentException(operation.name());
+            }
+        }
+
+        private String nextName() {
+            return "f" + names++ + ".bin";
+        }
+
+        private void failed(Operation operation, Exception e, long start) {
+            failed.incrementAndGet();
+            if (start >= measureFrom) {
+                stats.get(operation).failure();
+            }
+            errors.computeIfAbsent(operation + ": " + e.getMessage(), key -> new LongAdder()).increment();
+        }
+    }
+}
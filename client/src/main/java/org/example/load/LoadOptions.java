@@ -0,0 +1,149 @@
+package org.example.load;
+
+import lombok.Getter;
+import org.example.model.user.User;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Settings of a load run, given as {@code key=value} arguments:
+ * <pre>
+ * host=localhost port=8888 users=8 duration=60 warmup=5 size=1048576 think=0 timeout=30
+ * pageSize=500 compression=false cores=&lt;processors&gt; cleanup=true
+ * accounts=12345@email.com:12345,xxxxx@yandex.ru:xxxxx
+ * mix=auth:1,list:4,upload:2,download:2,rename:1,delete:1
+ * </pre>
+ * Simulated users take the accounts in turn, each works in a directory of its own.
+ */
+@Getter
+public class LoadOptions {
+
+    private String host = "localhost";
+    private int port = 8888;
+    private int users = 8;
+    private int duration = 60;
+    private int warmup = 5;
+    private int size = 1 << 20;
+    private int think;
+    private int timeout = 30;
+    private int pageSize = 500;
+    private boolean compression;
+    private int cores = Runtime.getRuntime().availableProcessors();
+    private boolean cleanup = true;
+    private final List<User> accounts = new ArrayList<>();
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+    public static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        options.parseAccounts("12345@email.com:12345");
+        options.parseMix("auth:1,list:4,upload:2,download:2,rename:1,delete:1");
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            String value = arg.substring(split + 1);
+            switch (arg.substring(0, split)) {
+                case "host":
+                    options.host = value;
+                    break;
+                case "port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "users":
+                    options.users = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "duration":
+                    options.duration = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "warmup":
+                    options.warmup = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "size":
+                    options.size = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "think":
+                    options.think = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "timeout":
+                    options.timeout = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "pageSize":
+                    options.pageSize = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "compression":
+                    options.compression = Boolean.parseBoolean(value);
+                    break;
+                case "cores":
+                    options.cores = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "cleanup":
+                    options.cleanup = Boolean.parseBoolean(value);
+                    break;
+                case "accounts":
+                    options.parseAccounts(value);
+                    break;
+                case "mix":
+                    options.parseMix(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private void parseAccounts(String value) {
+        accounts.clear();
+        for (String account : value.split(",")) {
+            int split = account.indexOf(':');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Expected email:password: " + account);
+            }
+            accounts.add(User.builder().email(account.substring(0, split)).password(account.substring(split + 1)).build());
+        }
+    }
+
+    private void parseMix(String value) {
+        mix.clear();
+        for (String weight : value.split(",")) {
+            String[] fields = weight.split(":");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Expected operation:weight: " + weight);
+            }
+            mix.put(Operation.valueOf(fields[0].trim().toUpperCase()), Math.max(0, Integer.parseInt(fields[1].trim())));
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new IllegalArgumentException("Operation mix is empty");
+        }
+    }
+
+    public User getAccount(int userIndex) {
+        return accounts.get(userIndex % accounts.size());
+    }
+
+    /**
+     * @return an operation drawn with the weights of the mix
+     */
+    public Operation nextOperation(Random random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int draw = random.nextInt(total);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            draw -= entry.getValue();
+            if (draw < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public String toString() {
+        return "host=" + host + ":" + port + " users=" + users + " duration=" + duration + "s warmup=" + warmup
+                + "s size=" + size + " think=" + think + "ms compression=" + compression + " mix=" + mix;
+    }
+}
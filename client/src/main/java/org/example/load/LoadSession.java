@@ -0,0 +1,276 @@
+package org.example.load;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CodecType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.CompressionType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.model.user.User;
+import org.example.netty.CallBack;
+import org.example.netty.NettyNetwork;
+import org.example.netty.transfer.ChunkBuffers;
+import org.example.netty.transfer.FileChecksum;
+import org.example.netty.transfer.TransferWindow;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connection of one simulated user. Requests are made one at a time and each waits for the reply
+ * the server ends it with: a listing, or the last chunk of a download. After a failed request the
+ * state of the connection is unknown, so it is closed and the next request connects again.
+ */
+class LoadSession implements CallBack, AutoCloseable {
+
+    private final LoadOptions options;
+    private final User user;
+    private final byte[] random;
+    private volatile NettyNetwork network;
+    private volatile CompletableFuture<Command> reply;
+    private volatile TransferWindow window;
+    private volatile int windowSize = 1;
+    private volatile int chunkSize;
+    private volatile ChecksumType checksumType;
+    private volatile long downloaded;
+    private String session;
+
+    LoadSession(LoadOptions options, User user) {
+        this.options = options;
+        this.user = user;
+        this.random = new byte[2 * options.getSize()];
+        ThreadLocalRandom.current().nextBytes(random);
+    }
+
+    @Override
+    public void call(Command command) {
+        switch (command.getCommandType()) {
+            case AUTH_OK:
+                Integer size = (Integer) command.getParameter(ParameterType.WINDOW);
+                windowSize = size != null ? size : 1;
+                chunkSize = (Integer) command.getParameter(ParameterType.CHUNK_SIZE);
+                checksumType = (ChecksumType) command.getParameter(ParameterType.CHECKSUM);
+                break;
+            case CONTENT_RESPONSE:
+            case LISTING:
+                complete(command);
+                break;
+            case NEXT_PART:
+                TransferWindow current = window;
+                if (current != null) {
+                    current.ack((Integer) command.getParameter(ParameterType.PART));
+                }
+                break;
+            case FILE_DOWNLOAD:
+                FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+                downloaded += dto.contentLength();
+                dto.release();
+                if (dto.isEnd()) {
+                    complete(command);
+                } else {
+                    try {
+                        network.writeMessage(new Command(CommandType.NEXT_PART).setParameter(ParameterType.PART, dto.getPart()));
+                    } catch (ConnectException e) {
+                        CompletableFuture<Command> pending = reply;
+                        if (pending != null) {
+                            pending.completeExceptionally(e);
+                        }
+                    }
+                }
+                break;
+            case AUTH_NO:
+            case ERROR:
+            case UPLOAD_ERROR:
+            case DOWNLOAD_ERROR:
+                TransferWindow failed = window;
+                if (failed != null) {
+                    failed.fail();
+                }
+                complete(command);
+                break;
+        }
+    }
+
+    private void complete(Command command) {
+        CompletableFuture<Command> current = reply;
+        if (current != null) {
+            current.complete(command);
+        }
+    }
+
+    boolean isConnected() {
+        return network != null && network.isConnected();
+    }
+
+    /**
+     * Connects, authenticates and waits for the listing of the root directory. A reconnect resumes
+     * the session of the last connection.
+     */
+    void connect() throws Exception {
+        close();
+        NettyNetwork connection = new NettyNetwork(this, options.getHost(), options.getPort());
+        connection.setUser(user);
+        connection.setSession(session);
+        network = connection;
+        request(new Command(CommandType.AUTH_REQUEST)
+                .setParameter(ParameterType.CODEC, CodecType.BINARY)
+                .setParameter(ParameterType.WINDOW, Integer.MAX_VALUE)
+                .setParameter(ParameterType.CHECKSUM, FileChecksum.preferred())
+                .setParameter(ParameterType.COMPRESSION, options.isCompression() ? CompressionType.DEFLATE : null)
+                .setParameter(ParameterType.LIMIT, options.getPageSize()));
+        session = connection.getSession();
+    }
+
+    void createDir(String current, String name) throws Exception {
+        request(new Command(CommandType.CREATE_DIR)
+                .setParameter(ParameterType.CURRENT, current)
+                .setParameter(ParameterType.DIR_NAME, name));
+    }
+
+    void list(String current) throws Exception {
+        request(content(ContentActionType.OPEN, current));
+    }
+
+    void rename(String current, String newName) throws Exception {
+        request(content(ContentActionType.RENAME, current).setParameter(ParameterType.NEW_NAME, newName));
+    }
+
+    void delete(String current) throws Exception {
+        request(content(ContentActionType.DELETE, current));
+    }
+
+    /**
+     * @return bytes received
+     */
+    long download(String current) throws Exception {
+        downloaded = 0;
+        request(content(ContentActionType.DOWNLOAD, current));
+        return downloaded;
+    }
+
+    /**
+     * Uploads a file of random chunks, every upload has content of its own so that a server with
+     * a chunk store doesn't skip storing it.
+     *
+     * @return bytes sent
+     */
+    long upload(String path, String name) throws Exception {
+        long size = options.getSize();
+        ChecksumType type = checksumType;
+        FileChecksum checksum = type != null ? new FileChecksum(type) : null;
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        TransferWindow window = new TransferWindow(windowSize);
+        CompletableFuture<Command> future = new CompletableFuture<>();
+        reply = future;
+        this.window = window;
+        network.setTransferWindow(window);
+        try {
+            long sent = 0;
+            int part = 0;
+            do {
+                if (!window.acquire(part + 1)) {
+                    break;
+                }
+                int l = (int) Math.min(size - sent, chunkSize);
+                int from = ThreadLocalRandom.current().nextInt(random.length - l + 1);
+                long stamp = ThreadLocalRandom.current().nextLong();
+                ByteBuf data = PooledByteBufAllocator.DEFAULT.directBuffer(l, l).writeBytes(random, from, l);
+                for (int i = 0; i < Math.min(8, l); i++) {
+                    data.setByte(i, (byte) (stamp >>> (8 * i)));
+                }
+                FileDTO fileDTO = FileDTO.builder()
+                        .name(name)
+                        .path(path)
+                        .fullSize(size)
+                        .offset(sent)
+                        .isStart(sent == 0)
+                        .data(data)
+                        .part(++part)
+                        .build();
+                ChunkBuffers.sign(fileDTO, data, type, md5);
+                if (checksum != null) {
+                    checksum.append(fileDTO.getChecksum(), l);
+                }
+                sent += l;
+                fileDTO.setEnd(sent == size);
+                if (checksum != null && fileDTO.isEnd()) {
+                    fileDTO.setFileDigest(checksum.digest());
+                }
+                network.writeMessage(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, fileDTO));
+            } while (sent < size);
+            await(future);
+            return sent;
+        } finally {
+            network.setTransferWindow(null);
+            this.window = null;
+        }
+    }
+
+    private static Command content(ContentActionType action, String current) {
+        return new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, action)
+                .setParameter(ParameterType.CURRENT, current);
+    }
+
+    private void request(Command command) throws Exception {
+        CompletableFuture<Command> future = new CompletableFuture<>();
+        reply = future;
+        network.writeMessage(command);
+        await(future);
+    }
+
+    /**
+     * Waits for the reply and fails on an error reply, a timeout or a lost connection.
+     */
+    private void await(CompletableFuture<Command> future) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getTimeout());
+        Command command;
+        try {
+            while (true) {
+                try {
+                    command = future.get(1, TimeUnit.SECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (!network.isConnected()) {
+                        throw new IOException("Connection lost");
+                    }
+                    if (System.nanoTime() > deadline) {
+                        throw new IOException("No reply in " + options.getTimeout() + " s");
+                    }
+                } catch (ExecutionException e) {
+                    throw (Exception) e.getCause();
+                }
+            }
+        } finally {
+            reply = null;
+        }
+        switch (command.getCommandType()) {
+            case AUTH_NO:
+                throw new IOException("Bad credentials of " + user.getEmail());
+            case ERROR:
+            case UPLOAD_ERROR:
+            case DOWNLOAD_ERROR:
+                throw new IOException(command.getCommandType() + ": " + command.getParameter(ParameterType.MESSAGE));
+        }
+    }
+
+    @Override
+    public void close() {
+        NettyNetwork connection = network;
+        network = null;
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
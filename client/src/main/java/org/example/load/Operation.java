@@ -0,0 +1,16 @@
+package org.example.load;
+
+/**
+ * Requests a simulated user makes, each one timed from the request to the reply it waits for.
+ */
+public enum Operation {
+    /**
+     * Connects again and authenticates, until the first listing arrives.
+     */
+    AUTH,
+    LIST,
+    UPLOAD,
+    DOWNLOAD,
+    RENAME,
+    DELETE
+}
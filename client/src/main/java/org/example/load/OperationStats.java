@@ -0,0 +1,67 @@
+package org.example.load;
+
+import java.util.Arrays;
+
+/**
+ * Latencies, failures and bytes of one operation. Each simulated user fills its own, they are
+ * merged once the run is over, so every latency is kept and percentiles are exact.
+ */
+class OperationStats {
+
+    private long[] latencies = new long[256];
+    private int count;
+    private long failures;
+    private long bytes;
+    private boolean sorted;
+
+    void success(long nanos, long bytes) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+        this.bytes += bytes;
+        sorted = false;
+    }
+
+    void failure() {
+        failures++;
+    }
+
+    void add(OperationStats other) {
+        if (count + other.count > latencies.length) {
+            latencies = Arrays.copyOf(latencies, Math.max(latencies.length * 2, count + other.count));
+        }
+        System.arraycopy(other.latencies, 0, latencies, count, other.count);
+        count += other.count;
+        failures += other.failures;
+        bytes += other.bytes;
+        sorted = false;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFailures() {
+        return failures;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the latency under which the given fraction of the requests completed, 0 without requests
+     */
+    long quantile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(latencies, 0, count);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(q * count) - 1;
+        return latencies[Math.max(0, Math.min(count - 1, index))];
+    }
+}
@@ -0,0 +1,67 @@
+package org.example.netty;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 of every chunk an upload will send, asked with {@code CHUNK_QUERY} so the chunks the
+ * server already stores are referenced instead of sent. The chunk checksums are read in the same
+ * pass, a referenced chunk is still part of the whole-file checksum.
+ */
+public final class ChunkHashes {
+
+    private final List<String> hashes;
+    private final long[] checksums;
+
+    private ChunkHashes(List<String> hashes, long[] checksums) {
+        this.hashes = hashes;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Hashes {@code [from, to)} of the file split into chunks the same way the upload splits it.
+     *
+     * @param type checksum of the chunks, null for none
+     */
+    public static ChunkHashes of(File file, long from, long to, int chunkSize, ChecksumType type) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        long[] checksums = new long[(int) ((Math.max(0, to - from) + chunkSize - 1) / chunkSize)];
+        byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(0, to - from))];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(from);
+            for (long position = from; position < to; ) {
+                int l = (int) Math.min(to - position, chunkSize);
+                raf.readFully(buffer, 0, l);
+                MessageDigest digest = DigestUtils.getSha256Digest();
+                digest.update(buffer, 0, l);
+                if (type != null) {
+                    checksums[hashes.size()] = FileChecksum.of(type, buffer, 0, l);
+                }
+                hashes.add(Hex.encodeHexString(digest.digest()));
+                position += l;
+            }
+        }
+        return new ChunkHashes(hashes, checksums);
+    }
+
+    public List<String> getHashes() {
+        return hashes;
+    }
+
+    public String getHash(int chunk) {
+        return hashes.get(chunk);
+    }
+
+    public long getChecksum(int chunk) {
+        return checksums[chunk];
+    }
+}
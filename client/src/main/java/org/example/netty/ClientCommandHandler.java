@@ -3,12 +3,19 @@ package org.example.netty;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import lombok.extern.slf4j.Slf4j;
+import org.example.model.command.CodecType;
 import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.CompressionType;
+import org.example.model.command.ParameterType;
+import org.example.netty.codec.BinaryCodec;
+import org.example.netty.transfer.TransferWindow;
 
 @Slf4j
 public class ClientCommandHandler extends SimpleChannelInboundHandler<Command> {
 
     private final CallBack callBack;
+    private volatile TransferWindow transferWindow;
 
     public ClientCommandHandler(CallBack callBack) {
         this.callBack = callBack;
@@ -17,5 +24,31 @@ public class ClientCommandHandler extends SimpleChannelInboundHandler<Command> {
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Command command) throws Exception {
         callBack.call(command);
+        // after the callback: replacing the decoder passes on frames read with this one at once
+        if (command.getCommandType() == CommandType.AUTH_OK && command.getParameter(ParameterType.CODEC) == CodecType.BINARY) {
+            BinaryCodec.install(ctx.pipeline(), Integer.MAX_VALUE, (CompressionType) command.getParameter(ParameterType.COMPRESSION));
+        }
+    }
+
+    public void setTransferWindow(TransferWindow transferWindow) {
+        this.transferWindow = transferWindow;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        TransferWindow window = transferWindow;
+        if (window != null) {
+            window.setWritable(ctx.channel().isWritable());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        TransferWindow window = transferWindow;
+        if (window != null) {
+            window.fail();
+        }
+        super.channelInactive(ctx);
     }
 }
\ No newline at end of file
@@ -0,0 +1,230 @@
+package org.example.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.codec.BinaryCodec;
+import org.example.netty.codec.StreamingDecoder;
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+@Slf4j
+public class FileStreamHandler extends ChannelInboundHandlerAdapter {
+
+    private volatile File target;
+    private volatile long rangeLength = -1;
+    private volatile ChecksumType rangeChecksum;
+    private volatile long prefixLength;
+    private volatile FileChecksum prefixChecksum;
+    private volatile MessageDigest prefixDigest;
+    private FileChannel fileChannel;
+    private MessageDigest digest;
+    private FileChecksum checksum;
+    private FileDTO header;
+    private boolean ranged;
+    private long received;
+    private long end;
+
+    /**
+     * The whole file is written into {@code <target>.part}. What the partial file holds already is
+     * read here, on the calling thread, into the checksum of the given type (md5 without one) the
+     * download is checked with, so the event loop only hashes what it receives.
+     *
+     * @return the length of the partial file, the offset to continue the download from
+     */
+    public long setTarget(File target, ChecksumType type) throws IOException {
+        long length = 0;
+        FileChecksum checksum = null;
+        MessageDigest digest = null;
+        if (target != null) {
+            File partial = partialFile(target);
+            length = partial.exists() ? partial.length() : 0;
+            checksum = type != null ? new FileChecksum(type) : null;
+            digest = type == null ? DigestUtils.getMd5Digest() : null;
+            if (length > 0) {
+                try (InputStream is = new FileInputStream(partial)) {
+                    if (checksum != null) {
+                        checksum.update(is, length);
+                    } else {
+                        DigestUtils.updateDigest(digest, is);
+                    }
+                }
+            }
+        }
+        prefixLength = length;
+        prefixChecksum = checksum;
+        prefixDigest = digest;
+        setTarget(target, -1, null);
+        return length;
+    }
+
+    /**
+     * With a range length only that part of the file is written into {@code <target>.part} at its
+     * offset, the caller checks the whole file when all of its ranges are received: the header
+     * passed on carries the checksum of the range, which combine into the file checksum.
+     */
+    public void setTarget(File target, long rangeLength, ChecksumType rangeChecksum) {
+        this.rangeLength = rangeLength;
+        this.rangeChecksum = rangeChecksum;
+        this.target = target;
+    }
+
+    public boolean isBusy() {
+        return target != null;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Command && ((Command) msg).getCommandType() == CommandType.FILE_STREAM) {
+            startReceive(ctx, (FileDTO) ((Command) msg).getParameter(ParameterType.FILE_DTO));
+        } else if (msg instanceof ByteBuf && header != null) {
+            ByteBuf buf = (ByteBuf) msg;
+            try {
+                receive(ctx, buf);
+            } finally {
+                buf.release();
+            }
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * The file is received into {@code <target>.part}, which is kept if the connection is lost,
+     * so the download can be continued from its length.
+     */
+    public static File partialFile(File target) {
+        return new File(target.getPath() + ".part");
+    }
+
+    private void startReceive(ChannelHandlerContext ctx, FileDTO dto) throws Exception {
+        dto.release();
+        header = dto;
+        received = dto.getOffset();
+        ranged = rangeLength >= 0;
+        end = ranged ? Math.min(dto.getFullSize(), received + rangeLength) : dto.getFullSize();
+        ChecksumType type = ranged ? rangeChecksum : FileChecksum.typeOf(dto.getFileDigest());
+        checksum = type != null ? new FileChecksum(type) : null;
+        digest = ranged || checksum != null ? null : DigestUtils.getMd5Digest();
+        try {
+            if (target != null) {
+                fileChannel = FileChannel.open(partialFile(target).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (!ranged) {
+                    fileChannel.truncate(received);
+                    if (received == prefixLength && (prefixChecksum != null ? prefixChecksum.getType() == type : type == null)) {
+                        checksum = prefixChecksum;
+                        digest = prefixDigest;
+                    } else if (received > 0) {
+                        throw new IOException("Download of " + dto.getName() + " does not continue the partial file");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Download file open exception: {}", e.getMessage(), e);
+            closeFile();
+        }
+        log.info("Stream download started file: {}, size {}, offset {}", dto.getName(), dto.getFullSize(), dto.getOffset());
+        ((StreamingDecoder) ctx.pipeline().get(BinaryCodec.DECODER)).expectRaw(end - received);
+        if (received == end) {
+            finishReceive(ctx);
+        }
+    }
+
+    private void receive(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
+        int length = buf.readableBytes();
+        if (digest != null) {
+            digest.update(buf.nioBuffer());
+        } else if (checksum != null) {
+            checksum.update(buf.nioBuffer());
+        }
+        if (fileChannel != null) {
+            try {
+                int index = buf.readerIndex();
+                while (buf.isReadable()) {
+                    buf.readBytes(fileChannel, received + buf.readerIndex() - index, buf.readableBytes());
+                }
+            } catch (IOException e) {
+                log.error("Download file write exception: {}", e.getMessage(), e);
+                closeFile();
+            }
+        }
+        received += length;
+        if (received >= end) {
+            finishReceive(ctx);
+        }
+    }
+
+    private void finishReceive(ChannelHandlerContext ctx) throws Exception {
+        File file = target;
+        FileDTO dto = header;
+        boolean valid = (fileChannel != null || ranged && file == null) && received == end;
+        if (valid && !ranged) {
+            valid = checksum != null ? checksum.digest().equals(dto.getFileDigest())
+                    : Hex.encodeHexString(digest.digest()).equals(dto.getMd5());
+        } else if (ranged && checksum != null) {
+            dto.setChecksum(checksum.getValue());
+        }
+        closeFile();
+        header = null;
+        digest = null;
+        checksum = null;
+        target = null;
+        rangeLength = -1;
+        rangeChecksum = null;
+        prefixChecksum = null;
+        prefixDigest = null;
+        if (!valid) {
+            if (file != null && !ranged) {
+                Files.deleteIfExists(partialFile(file).toPath());
+            }
+            ctx.fireChannelRead(new Command(CommandType.DOWNLOAD_ERROR)
+                    .setParameter(ParameterType.MESSAGE, dto.getName() + " is corrupted"));
+            return;
+        }
+        if (!ranged) {
+            Files.move(partialFile(file).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Stream download finished file: {}", file.getAbsolutePath());
+        }
+        ctx.fireChannelRead(new Command(CommandType.FILE_STREAM).setParameter(ParameterType.FILE_DTO, dto));
+    }
+
+    private void closeFile() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                log.error("Download file close exception: {}", e.getMessage(), e);
+            }
+            fileChannel = null;
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        closeFile();
+        target = null;
+        rangeLength = -1;
+        rangeChecksum = null;
+        prefixChecksum = null;
+        prefixDigest = null;
+        super.channelInactive(ctx);
+    }
+}
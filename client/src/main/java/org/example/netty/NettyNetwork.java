@@ -4,17 +4,24 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.serialization.ClassResolvers;
-import io.netty.handler.codec.serialization.ObjectDecoder;
 import io.netty.handler.codec.serialization.ObjectEncoder;
 import lombok.extern.slf4j.Slf4j;
 import org.example.controller.Config;
+import org.example.model.command.ChecksumType;
 import org.example.model.command.Command;
+import org.example.model.command.CommandType;
 import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.model.user.User;
+import org.example.netty.codec.BinaryCodec;
+import org.example.netty.codec.StreamingObjectDecoder;
+import org.example.netty.transfer.TransferWindow;
+import org.example.netty.transport.Transport;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.ConnectException;
 import java.util.concurrent.CountDownLatch;
 
@@ -22,26 +29,38 @@ import java.util.concurrent.CountDownLatch;
 public class NettyNetwork {
 
     private SocketChannel channel;
+    private final FileStreamHandler fileStreamHandler = new FileStreamHandler();
+    private final ClientCommandHandler commandHandler;
+    private volatile User user;
+    private volatile String session;
+    private volatile Command authRequest;
+    private volatile boolean resuming;
     EventLoopGroup worker;
 
     public NettyNetwork(CallBack callBack, String host, int port) throws Exception {
         CountDownLatch countDownLatch = new CountDownLatch(1);
-        log.info("NettyNetwork constructor started: host {}, port {}", host, port);
+        commandHandler = new ClientCommandHandler(command -> {
+            if (sessionReply(command)) {
+                callBack.call(command);
+            }
+        });
+        Transport transport = Transport.select(Config.getTransport());
+        log.info("NettyNetwork constructor started: host {}, port {}, transport {}", host, port, transport);
         Thread thread = new Thread(() -> {
-            worker = new NioEventLoopGroup();
+            worker = transport.newGroup(1, "client");
             try {
                 Bootstrap bootstrap = new Bootstrap();
                 bootstrap.group(worker)
-                        .channel(NioSocketChannel.class)
+                        .channel(transport.channel())
                         .handler(new ChannelInitializer<SocketChannel>() {
                             @Override
                             protected void initChannel(SocketChannel c) {
                                 channel = c;
-                                c.pipeline().addLast(
-                                        new ObjectEncoder(),
-                                        new ObjectDecoder(Integer.MAX_VALUE, ClassResolvers.cacheDisabled(null)),
-                                        new ClientCommandHandler(callBack)
-                                );
+                                c.pipeline()
+                                        .addLast(BinaryCodec.ENCODER, new ObjectEncoder())
+                                        .addLast(BinaryCodec.DECODER, new StreamingObjectDecoder(Integer.MAX_VALUE, ClassResolvers.cacheDisabled(null)))
+                                        .addLast(fileStreamHandler)
+                                        .addLast(commandHandler);
                             }
                         });
                 ChannelFuture future = bootstrap.connect(host, port).sync();
@@ -59,16 +78,110 @@ public class NettyNetwork {
         countDownLatch.await();
     }
 
+    /**
+     * Credentials go with the authorization request only, or the session id when there is one to
+     * resume. Later commands rely on the session of the channel. A file chunk data buffer is
+     * released once the command is written or has failed.
+     */
     public void writeMessage(Command command) throws ConnectException {
+        FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
         if (isConnected()) {
-            command.setParameter(ParameterType.USER, Config.getUser());
-            channel.writeAndFlush(command);
+            if (command.getCommandType() == CommandType.AUTH_REQUEST) {
+                authorize(command);
+            }
+            ChannelFuture future = channel.writeAndFlush(command);
+            if (dto != null) {
+                future.addListener(written -> dto.release());
+            }
             log.info("Command sent: {}", command);
         } else {
+            if (dto != null) {
+                dto.release();
+            }
             throw new ConnectException("NettyNetwork not connected");
         }
     }
 
+    private void authorize(Command command) {
+        String token = session != null ? session : user == null ? Config.getSession() : null;
+        authRequest = command;
+        resuming = token != null;
+        if (resuming) {
+            command.getParameters().remove(ParameterType.USER);
+            command.setParameter(ParameterType.SESSION, token);
+        } else {
+            command.getParameters().remove(ParameterType.SESSION);
+            command.setParameter(ParameterType.USER, user != null ? user : Config.getUser());
+        }
+    }
+
+    /**
+     * Keeps the session id of the authorization. A session that could not be resumed is dropped
+     * and the request is sent again with credentials, the callback only sees the answer to that.
+     *
+     * @return whether the callback gets the command
+     */
+    private boolean sessionReply(Command command) {
+        if (command.getCommandType() == CommandType.AUTH_OK) {
+            setSession((String) command.getParameter(ParameterType.SESSION));
+        } else if (command.getCommandType() == CommandType.AUTH_NO && resuming) {
+            log.info("Session expired, authorizing with credentials");
+            setSession(null);
+            try {
+                writeMessage(authRequest);
+                return false;
+            } catch (ConnectException e) {
+                log.error("Authorization exception: {}", e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    /**
+     * Session to resume by the next authorization, sessions of the {@link Config} user are kept
+     * there for the other connections of the client.
+     */
+    public void setSession(String session) {
+        this.session = session;
+        if (user == null) {
+            Config.setSession(session);
+        }
+    }
+
+    /**
+     * Sends commands as this user instead of the one in {@link Config}, so one process can hold
+     * connections of several users.
+     */
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public void setTransferWindow(TransferWindow window) {
+        if (window != null && channel != null) {
+            window.setWritable(channel.isWritable());
+        }
+        commandHandler.setTransferWindow(window);
+    }
+
+    /**
+     * @return the offset to request the download from
+     */
+    public long setDownloadTarget(File target, ChecksumType type) throws IOException {
+        return fileStreamHandler.setTarget(target, type);
+    }
+
+    public void setDownloadTarget(File target, long rangeLength, ChecksumType rangeChecksum) {
+        fileStreamHandler.setTarget(target, rangeLength, rangeChecksum);
+    }
+
+    public boolean isDownloading() {
+        return fileStreamHandler.isBusy();
+    }
+
     public boolean isConnected() {
         return channel != null && channel.isActive();
     }
@@ -0,0 +1,280 @@
+package org.example.netty;
+
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.controller.Config;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CodecType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.transfer.ChunkBuffers;
+import org.example.netty.transfer.FileChecksum;
+import org.example.netty.transfer.TransferWindow;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+
+/**
+ * Additional authenticated connection that carries one range of a file, so a large file can be
+ * transferred over several connections at once.
+ */
+@Slf4j
+public class TransferConnection implements CallBack, AutoCloseable {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final NettyNetwork network;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile CompletableFuture<FileDTO> response;
+    private volatile CompletableFuture<List<String>> knownChunks;
+    private volatile TransferWindow window;
+    private volatile int windowSize = 1;
+    private volatile int chunkSize = Config.getChunkSize();
+    private volatile boolean dedup;
+    private volatile ChecksumType checksumType;
+
+    public TransferConnection(String host, int port) throws Exception {
+        network = new NettyNetwork(this, host, port);
+        network.writeMessage(new Command(CommandType.AUTH_REQUEST)
+                .setParameter(ParameterType.CODEC, CodecType.BINARY)
+                .setParameter(ParameterType.WINDOW, Integer.MAX_VALUE)
+                .setParameter(ParameterType.CHECKSUM, FileChecksum.preferred())
+                .setParameter(ParameterType.COMPRESSION, Config.getCompression()));
+        try {
+            ready.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            network.close();
+            throw new IOException("Transfer connection failed", e);
+        }
+    }
+
+    @Override
+    public void call(Command command) {
+        switch (command.getCommandType()) {
+            case AUTH_OK:
+                Integer size = (Integer) command.getParameter(ParameterType.WINDOW);
+                if (size != null) {
+                    windowSize = size;
+                    chunkSize = (Integer) command.getParameter(ParameterType.CHUNK_SIZE);
+                    dedup = Boolean.TRUE.equals(command.getParameter(ParameterType.DEDUP));
+                }
+                checksumType = (ChecksumType) command.getParameter(ParameterType.CHECKSUM);
+                break;
+            case AUTH_NO:
+                ready.completeExceptionally(new IOException("Bad credentials"));
+                break;
+            case CONTENT_RESPONSE:
+                if (!ready.isDone()) {
+                    ready.complete(null);
+                } else if (window != null) {
+                    window.ack(Integer.MAX_VALUE);
+                }
+                break;
+            case CHUNK_QUERY:
+                if (knownChunks != null) {
+                    knownChunks.complete(command.getList(ParameterType.CHUNKS, String.class));
+                }
+                break;
+            case NEXT_PART:
+                if (window != null) {
+                    window.ack((Integer) command.getParameter(ParameterType.PART));
+                }
+                break;
+            case TRANSFER_STATUS:
+            case FILE_STREAM:
+                FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+                dto.release();
+                if (response != null) {
+                    response.complete(dto);
+                }
+                break;
+            case ERROR:
+            case UPLOAD_ERROR:
+            case DOWNLOAD_ERROR:
+                IOException e = new IOException((String) command.getParameter(ParameterType.MESSAGE));
+                if (window != null) {
+                    window.fail();
+                }
+                if (response != null) {
+                    response.completeExceptionally(e);
+                }
+                break;
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the negotiated chunk checksum, null if the server checks chunks by md5
+     */
+    public ChecksumType getChecksumType() {
+        return checksumType;
+    }
+
+    public FileDTO status(FileDTO probe) throws Exception {
+        CompletableFuture<FileDTO> future = new CompletableFuture<>();
+        response = future;
+        network.writeMessage(new Command(CommandType.TRANSFER_STATUS).setParameter(ParameterType.FILE_DTO, probe));
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the hashes of the list that the server stores, so their chunks don't have to be sent
+     */
+    public Set<String> knownChunks(List<String> hashes) throws Exception {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        knownChunks = future;
+        network.writeMessage(new Command(CommandType.CHUNK_QUERY).setParameter(ParameterType.CHUNKS, hashes));
+        return new HashSet<>(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Sends bytes {@code [from, to)} of the file as the given range and waits until every part is acknowledged.
+     *
+     * @return the checksum of the range, null without a negotiated checksum
+     */
+    public FileChecksum uploadRange(File file, String path, String transferId, int range,
+                                    long from, long to, LongConsumer progress) throws Exception {
+        ChecksumType type = checksumType;
+        ChunkHashes hashes = dedup ? ChunkHashes.of(file, from, to, chunkSize, type) : null;
+        Set<String> known = hashes != null ? knownChunks(hashes.getHashes()) : Collections.emptySet();
+        FileChecksum checksum = type != null ? new FileChecksum(type) : null;
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        TransferWindow window = new TransferWindow(windowSize);
+        this.window = window;
+        network.setTransferWindow(window);
+        long readBytes = from;
+        int part = 0;
+        try (FileInputStream is = new FileInputStream(file)) {
+            is.getChannel().position(from);
+            while (readBytes < to) {
+                if (!window.acquire(part + 1)) {
+                    throw new IOException("Upload of range " + range + " failed");
+                }
+                long l = Math.min(to - readBytes, chunkSize);
+                FileDTO fileDTO;
+                if (hashes != null && known.contains(hashes.getHash(part))) {
+                    fileDTO = FileDTO.builder()
+                            .name(file.getName())
+                            .path(path)
+                            .fullSize(file.length())
+                            .transferId(transferId)
+                            .offset(readBytes)
+                            .range(range)
+                            .chunkHash(hashes.getHash(part))
+                            .checksum(hashes.getChecksum(part))
+                            .part(++part)
+                            .build();
+                    is.getChannel().position(readBytes + l);
+                } else {
+                    ByteBuf data = ChunkBuffers.read(is.getChannel(), (int) l);
+                    fileDTO = FileDTO.builder()
+                            .name(file.getName())
+                            .path(path)
+                            .fullSize(file.length())
+                            .transferId(transferId)
+                            .offset(readBytes)
+                            .range(range)
+                            .isStart(readBytes == 0)
+                            .data(data)
+                            .part(++part)
+                            .build();
+                    ChunkBuffers.sign(fileDTO, data, type, md5);
+                }
+                if (checksum != null) {
+                    checksum.append(fileDTO.getChecksum(), l);
+                }
+                readBytes += l;
+                fileDTO.setEnd(readBytes == file.length());
+                network.writeMessage(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, fileDTO));
+                progress.accept(l);
+            }
+            if (!window.awaitAcked(part)) {
+                throw new IOException("Upload of range " + range + " failed");
+            }
+            return checksum;
+        } finally {
+            network.setTransferWindow(null);
+            this.window = null;
+        }
+    }
+
+    /**
+     * Sends the digest of a file whose ranges are all uploaded, the server completes the upload
+     * when it matches.
+     *
+     * @return false if the file was not completed
+     */
+    public boolean finishUpload(File file, String path, String transferId, int range, String fileDigest) throws Exception {
+        TransferWindow window = new TransferWindow(1);
+        this.window = window;
+        try {
+            network.writeMessage(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, FileDTO.builder()
+                    .name(file.getName())
+                    .path(path)
+                    .fullSize(file.length())
+                    .transferId(transferId)
+                    .offset(file.length())
+                    .range(range)
+                    .fileDigest(fileDigest)
+                    .md5(checksumType == null ? DigestUtils.md5Hex(new byte[0]) : null)
+                    .isEnd(true)
+                    .part(1)
+                    .build()));
+            return window.awaitAcked(1) && window.getAcked() == Integer.MAX_VALUE;
+        } finally {
+            this.window = null;
+        }
+    }
+
+    /**
+     * Streams {@code length} bytes of the file from the offset into {@code <target>.part}. Without a
+     * target and with length 0 only the file header is requested.
+     *
+     * @return the file header, with the checksum of the received range
+     */
+    public FileDTO downloadRange(String current, File target, long offset, long length) throws Exception {
+        CompletableFuture<FileDTO> future = new CompletableFuture<>();
+        response = future;
+        network.setDownloadTarget(target, length, checksumType);
+        network.writeMessage(new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.DOWNLOAD)
+                .setParameter(ParameterType.CURRENT, current)
+                .setParameter(ParameterType.STREAM, true)
+                .setParameter(ParameterType.OFFSET, offset)
+                .setParameter(ParameterType.LENGTH, length));
+        while (true) {
+            try {
+                return future.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (!network.isConnected()) {
+                    throw new IOException("Connection lost");
+                }
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        network.close();
+    }
+}
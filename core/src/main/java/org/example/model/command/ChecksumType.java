@@ -0,0 +1,6 @@
+package org.example.model.command;
+
+public enum ChecksumType {
+    CRC32,
+    CRC32C
+}
@@ -0,0 +1,6 @@
+package org.example.model.command;
+
+public enum CodecType {
+    SERIALIZED,
+    BINARY
+}
@@ -3,7 +3,9 @@ package org.example.model.command;
 import lombok.ToString;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @ToString
@@ -20,10 +22,30 @@ public class Command implements Serializable {
         return commandType;
     }
 
+    public Map<ParameterType, Object> getParameters() {
+        return parameters;
+    }
+
     public Object getParameter(ParameterType type) {
         return parameters.getOrDefault(type, null);
     }
 
+    /**
+     * @return a copy of the list parameter, null if it is not set
+     * @throws ClassCastException if an element is not of the given type
+     */
+    public <T> List<T> getList(ParameterType type, Class<T> elementType) {
+        List<?> list = (List<?>) parameters.get(type);
+        if (list == null) {
+            return null;
+        }
+        List<T> typed = new ArrayList<>(list.size());
+        for (Object element : list) {
+            typed.add(elementType.cast(element));
+        }
+        return typed;
+    }
+
     public Command setParameter(ParameterType type, Object o) {
         parameters.put(type, o);
         return this;
@@ -12,5 +12,13 @@ public enum CommandType {
     CREATE_DIR,
     NEXT_PART,
     UPLOAD_ERROR,
-    DOWNLOAD_ERROR
+    DOWNLOAD_ERROR,
+    FILE_STREAM,
+    TRANSFER_STATUS,
+    CHUNK_QUERY,
+    LISTING,
+    DELETE_PROGRESS,
+    SEARCH,
+    USAGE,
+    BATCH_UPLOAD
 }
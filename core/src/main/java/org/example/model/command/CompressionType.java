@@ -0,0 +1,5 @@
+package org.example.model.command;
+
+public enum CompressionType {
+    DEFLATE
+}
@@ -9,5 +9,29 @@ public enum ParameterType {
     MESSAGE,
     FILE_DTO,
     NEW_NAME,
-    DIR_NAME
+    DIR_NAME,
+    STREAM,
+    CODEC,
+    PART,
+    WINDOW,
+    CHUNK_SIZE,
+    OFFSET,
+    LENGTH,
+    DEDUP,
+    CHUNKS,
+    CHECKSUM,
+    ENTRIES,
+    CURSOR,
+    LIMIT,
+    SORT,
+    DESCENDING,
+    PREFIX,
+    TOTAL,
+    DELETED,
+    COMPRESSION,
+    SESSION,
+    QUERY,
+    USED,
+    RESERVED,
+    QUOTA
 }
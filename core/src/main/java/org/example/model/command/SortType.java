@@ -0,0 +1,7 @@
+package org.example.model.command;
+
+public enum SortType {
+    NAME,
+    SIZE,
+    MODIFIED
+}
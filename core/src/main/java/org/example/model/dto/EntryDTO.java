@@ -0,0 +1,16 @@
+package org.example.model.dto;
+
+import lombok.Value;
+
+import java.io.Serializable;
+
+/**
+ * One entry of a directory listing.
+ */
+@Value
+public class EntryDTO implements Serializable {
+    String name;
+    boolean directory;
+    long size;
+    long modified;
+}
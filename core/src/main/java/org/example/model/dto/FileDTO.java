@@ -1,11 +1,17 @@
 package org.example.model.dto;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.ReferenceCountUtil;
 import lombok.Builder;
 import lombok.Data;
 import lombok.ToString;
 import org.example.model.user.User;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 @Data
 @Builder
@@ -15,9 +21,47 @@ public class FileDTO implements Serializable {
     private String path;
     private Long fullSize;
     private String md5;
+    private String transferId;
+    private long offset;
+    private int range;
+    private String fileDigest;
+    private String chunkHash;
+    private long checksum;
     @ToString.Exclude
     private byte[] content;
+    @ToString.Exclude
+    private transient ByteBuf data;
     private boolean isStart;
     private boolean isEnd;
     private int part;
+
+    public int contentLength() {
+        if (data != null) {
+            return data.readableBytes();
+        }
+        return content == null ? 0 : content.length;
+    }
+
+    public ByteBuffer contentBuffer() {
+        if (data != null) {
+            return data.nioBuffer();
+        }
+        return ByteBuffer.wrap(content == null ? new byte[0] : content);
+    }
+
+    public void release() {
+        ReferenceCountUtil.release(data);
+        data = null;
+    }
+
+    /**
+     * The object codec has no place for the data buffer, it goes out as content.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (data != null) {
+            content = ByteBufUtil.getBytes(data);
+            release();
+        }
+        out.defaultWriteObject();
+    }
 }
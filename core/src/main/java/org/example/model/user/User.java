@@ -2,6 +2,7 @@ package org.example.model.user;
 
 import lombok.Builder;
 import lombok.Data;
+import lombok.ToString;
 
 import java.io.Serializable;
 
@@ -10,6 +11,7 @@ import java.io.Serializable;
 public class User implements Serializable {
     private Long id;
     private String email;
+    @ToString.Exclude
     private String password;
     private String rootPath;
 }
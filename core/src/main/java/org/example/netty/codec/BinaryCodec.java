@@ -0,0 +1,423 @@
+package org.example.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import io.netty.util.ReferenceCountUtil;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CodecType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.CompressionType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.example.model.command.SortType;
+import org.example.model.dto.EntryDTO;
+import org.example.model.dto.FileDTO;
+import org.example.model.user.User;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Field layouts of the binary protocol.
+ * <pre>
+ * frame     = length:int32 commandType:byte paramCount:varint (paramType:byte value)*
+ * value     = tag:byte body
+ * string    = (byteLength + 1):varint utf8, 0 for null
+ * list      = count:varint string*
+ * entries   = count:varint (directory:boolean name size:int64 modified:int64)*
+ * user      = id:int64 (-1 for null) email password rootPath
+ * fileDTO   = flags:byte part:varint name path fullSize:int64 (-1 for null) md5 transferId offset:int64
+ *             range:varint fileDigest chunkHash checksum:uint32
+ *             owner(flag) originalLength:varint(compressed flag) contentLength:varint bytes
+ * </pre>
+ * File content is always the last field of a frame, so it is written and read as a buffer slice.
+ * Compressed content is deflated, see {@link ChunkCompression}.
+ */
+public final class BinaryCodec {
+
+    public static final String ENCODER = "encoder";
+    public static final String DECODER = "decoder";
+
+    static final int LENGTH_FIELD = 4;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte STRING_LIST = 5;
+    private static final byte CONTENT_ACTION = 6;
+    private static final byte USER = 7;
+    private static final byte FILE_DTO = 8;
+    private static final byte CODEC = 9;
+    private static final byte CHECKSUM = 10;
+    private static final byte ENTRY_LIST = 11;
+    private static final byte SORT = 12;
+    private static final byte COMPRESSION = 13;
+
+    private static final int FLAG_START = 1;
+    private static final int FLAG_END = 1 << 1;
+    private static final int FLAG_OWNER = 1 << 2;
+    private static final int FLAG_COMPRESSED = 1 << 3;
+
+    private static final CommandType[] COMMAND_TYPES = CommandType.values();
+    private static final ParameterType[] PARAMETER_TYPES = ParameterType.values();
+    private static final ContentActionType[] CONTENT_ACTIONS = ContentActionType.values();
+    private static final CodecType[] CODECS = CodecType.values();
+    private static final ChecksumType[] CHECKSUMS = ChecksumType.values();
+    private static final SortType[] SORTS = SortType.values();
+    private static final CompressionType[] COMPRESSIONS = CompressionType.values();
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Replaces the serialization codec of the pipeline with the binary one. The switch is done on
+     * the channel event loop, so frames written before the call still go out with the old codec.
+     *
+     * @param compression compression of file chunks sent, null for none. Compressed chunks are
+     *                    always accepted
+     */
+    public static void install(ChannelPipeline pipeline, int maxFrameSize, CompressionType compression) {
+        EventLoop eventLoop = pipeline.channel().eventLoop();
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(() -> install(pipeline, maxFrameSize, compression));
+            return;
+        }
+        if (pipeline.get(ENCODER) instanceof BinaryCommandEncoder) {
+            return;
+        }
+        pipeline.replace(ENCODER, ENCODER, new BinaryCommandEncoder(compression != null ? new ChunkCompression(maxFrameSize) : null));
+        pipeline.replace(DECODER, DECODER, new BinaryCommandDecoder(maxFrameSize));
+    }
+
+    /**
+     * Writes the frame header and all fields except file content, which is returned to be sent as is.
+     *
+     * @param compression null to send content as it is
+     */
+    static ByteBuf writeCommand(Command command, ByteBuf out, ChunkCompression compression) {
+        out.writeInt(0);
+        out.writeByte(command.getCommandType().ordinal());
+        Map<ParameterType, Object> parameters = command.getParameters();
+        writeVarInt(out, parameters.size());
+        Map.Entry<ParameterType, Object> file = null;
+        for (Map.Entry<ParameterType, Object> entry : parameters.entrySet()) {
+            if (entry.getValue() instanceof FileDTO) {
+                file = entry;
+                continue;
+            }
+            out.writeByte(entry.getKey().ordinal());
+            writeValue(out, entry.getValue());
+        }
+        if (file == null) {
+            return null;
+        }
+        FileDTO dto = (FileDTO) file.getValue();
+        ByteBuf content = dto.getData() != null ? dto.getData()
+                : dto.getContent() == null ? null : Unpooled.wrappedBuffer(dto.getContent());
+        // the encoder owns the data from here, a release by the sender after the write is a no-op
+        dto.setData(null);
+        try {
+            int originalLength = -1;
+            if (compression != null && content != null) {
+                ByteBuf compressed = compression.compress(dto.getName(), content, out.alloc());
+                if (compressed != null) {
+                    originalLength = content.readableBytes();
+                    content.release();
+                    content = compressed;
+                }
+            }
+            out.writeByte(file.getKey().ordinal());
+            out.writeByte(FILE_DTO);
+            writeFileDTO(out, dto, originalLength, content == null ? 0 : content.readableBytes());
+        } catch (RuntimeException e) {
+            ReferenceCountUtil.release(content);
+            throw e;
+        }
+        return content;
+    }
+
+    /**
+     * @param compression inflates compressed content, created on the first compressed frame
+     */
+    static Command readCommand(ByteBuf in, Supplier<ChunkCompression> compression) {
+        Command command = new Command(readEnum(in, COMMAND_TYPES));
+        try {
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                ParameterType type = readEnum(in, PARAMETER_TYPES);
+                command.setParameter(type, readValue(in, compression));
+            }
+        } catch (RuntimeException e) {
+            // content of a file read before the corrupt part
+            command.getParameters().values().forEach(value -> {
+                if (value instanceof FileDTO) {
+                    ((FileDTO) value).release();
+                }
+            });
+            throw e instanceof IndexOutOfBoundsException ? new CorruptedFrameException("Truncated frame") : e;
+        }
+        return command;
+    }
+
+    private static void writeValue(ByteBuf out, Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof List && !((List<?>) value).isEmpty() && ((List<?>) value).get(0) instanceof EntryDTO) {
+            out.writeByte(ENTRY_LIST);
+            List<?> list = (List<?>) value;
+            writeVarInt(out, list.size());
+            for (Object o : list) {
+                EntryDTO entry = (EntryDTO) o;
+                out.writeBoolean(entry.isDirectory());
+                writeString(out, entry.getName());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getModified());
+            }
+        } else if (value instanceof List) {
+            out.writeByte(STRING_LIST);
+            List<?> list = (List<?>) value;
+            writeVarInt(out, list.size());
+            for (Object o : list) {
+                writeString(out, (String) o);
+            }
+        } else if (value instanceof ContentActionType) {
+            out.writeByte(CONTENT_ACTION);
+            out.writeByte(((ContentActionType) value).ordinal());
+        } else if (value instanceof CodecType) {
+            out.writeByte(CODEC);
+            out.writeByte(((CodecType) value).ordinal());
+        } else if (value instanceof SortType) {
+            out.writeByte(SORT);
+            out.writeByte(((SortType) value).ordinal());
+        } else if (value instanceof CompressionType) {
+            out.writeByte(COMPRESSION);
+            out.writeByte(((CompressionType) value).ordinal());
+        } else if (value instanceof ChecksumType) {
+            out.writeByte(CHECKSUM);
+            out.writeByte(((ChecksumType) value).ordinal());
+        } else if (value instanceof User) {
+            out.writeByte(USER);
+            writeUser(out, (User) value);
+        } else if (value instanceof FileDTO) {
+            out.writeByte(FILE_DTO);
+            writeFileDTO(out, (FileDTO) value, -1, ((FileDTO) value).contentLength());
+        } else {
+            throw new EncoderException("Unsupported parameter value: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(ByteBuf in, Supplier<ChunkCompression> compression) {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case BOOLEAN:
+                return in.readBoolean();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case STRING_LIST:
+                int size = readCount(in);
+                List<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readString(in));
+                }
+                return list;
+            case ENTRY_LIST:
+                int count = readCount(in);
+                List<EntryDTO> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    boolean directory = in.readBoolean();
+                    entries.add(new EntryDTO(readString(in), directory, in.readLong(), in.readLong()));
+                }
+                return entries;
+            case CONTENT_ACTION:
+                return readEnum(in, CONTENT_ACTIONS);
+            case CODEC:
+                return readEnum(in, CODECS);
+            case CHECKSUM:
+                return readEnum(in, CHECKSUMS);
+            case SORT:
+                return readEnum(in, SORTS);
+            case COMPRESSION:
+                return readEnum(in, COMPRESSIONS);
+            case USER:
+                return readUser(in);
+            case FILE_DTO:
+                return readFileDTO(in, compression);
+            default:
+                throw new CorruptedFrameException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static void writeUser(ByteBuf out, User user) {
+        out.writeLong(user.getId() == null ? -1 : user.getId());
+        writeString(out, user.getEmail());
+        writeString(out, user.getPassword());
+        writeString(out, user.getRootPath());
+    }
+
+    private static User readUser(ByteBuf in) {
+        long id = in.readLong();
+        return User.builder()
+                .id(id == -1 ? null : id)
+                .email(readString(in))
+                .password(readString(in))
+                .rootPath(readString(in))
+                .build();
+    }
+
+    private static void writeFileDTO(ByteBuf out, FileDTO dto, int originalLength, int contentLength) {
+        int flags = (dto.isStart() ? FLAG_START : 0) | (dto.isEnd() ? FLAG_END : 0) | (dto.getOwner() != null ? FLAG_OWNER : 0)
+                | (originalLength >= 0 ? FLAG_COMPRESSED : 0);
+        out.writeByte(flags);
+        writeVarInt(out, dto.getPart());
+        writeString(out, dto.getName());
+        writeString(out, dto.getPath());
+        out.writeLong(dto.getFullSize() == null ? -1 : dto.getFullSize());
+        writeString(out, dto.getMd5());
+        writeString(out, dto.getTransferId());
+        out.writeLong(dto.getOffset());
+        writeVarInt(out, dto.getRange());
+        writeString(out, dto.getFileDigest());
+        writeString(out, dto.getChunkHash());
+        out.writeInt((int) dto.getChecksum());
+        if (dto.getOwner() != null) {
+            writeUser(out, dto.getOwner());
+        }
+        if (originalLength >= 0) {
+            writeVarInt(out, originalLength);
+        }
+        writeVarInt(out, contentLength);
+    }
+
+    private static FileDTO readFileDTO(ByteBuf in, Supplier<ChunkCompression> compression) {
+        int flags = in.readUnsignedByte();
+        int part = readVarInt(in);
+        String name = readString(in);
+        String path = readString(in);
+        long fullSize = in.readLong();
+        String md5 = readString(in);
+        String transferId = readString(in);
+        long offset = in.readLong();
+        int range = readVarInt(in);
+        String fileDigest = readString(in);
+        String chunkHash = readString(in);
+        long checksum = in.readUnsignedInt();
+        User owner = (flags & FLAG_OWNER) != 0 ? readUser(in) : null;
+        int originalLength = (flags & FLAG_COMPRESSED) != 0 ? readVarInt(in) : -1;
+        int contentLength = readVarInt(in);
+        ByteBuf data;
+        if (originalLength >= 0) {
+            data = compression.get().decompress(in.readSlice(contentLength), originalLength, in.alloc());
+        } else {
+            data = in.readRetainedSlice(contentLength);
+        }
+        return FileDTO.builder()
+                .isStart((flags & FLAG_START) != 0)
+                .isEnd((flags & FLAG_END) != 0)
+                .part(part)
+                .name(name)
+                .path(path)
+                .fullSize(fullSize == -1 ? null : fullSize)
+                .md5(md5)
+                .transferId(transferId)
+                .offset(offset)
+                .range(range)
+                .fileDigest(fileDigest)
+                .chunkHash(chunkHash)
+                .checksum(checksum)
+                .owner(owner)
+                .data(data)
+                .build();
+    }
+
+    private static void writeString(ByteBuf out, String s) {
+        if (s == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, ByteBufUtil.utf8Bytes(s) + 1);
+        ByteBufUtil.writeUtf8(out, s);
+    }
+
+    private static String readString(ByteBuf in) {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        String s = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return s;
+    }
+
+    /**
+     * @throws CorruptedFrameException if the ordinal is not one of the values
+     */
+    private static <T extends Enum<T>> T readEnum(ByteBuf in, T[] values) {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= values.length) {
+            throw new CorruptedFrameException("Unknown " + values.getClass().getComponentType().getSimpleName() + " ordinal: " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static void writeVarInt(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads the number of elements of a list, each of which takes one byte at least.
+     *
+     * @throws CorruptedFrameException if the elements can't be in the rest of the frame
+     */
+    private static int readCount(ByteBuf in) {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.readableBytes()) {
+            throw new CorruptedFrameException("Malformed list size: " + count);
+        }
+        return count;
+    }
+
+    private static int readVarInt(ByteBuf in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varint");
+    }
+}
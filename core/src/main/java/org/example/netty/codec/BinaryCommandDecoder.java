@@ -0,0 +1,73 @@
+package org.example.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.List;
+
+/**
+ * Reads binary frames written by {@link BinaryCommandEncoder}. File content of a {@code FileDTO}
+ * is a retained slice of the frame, or a copy when it was sent compressed, and must be released by
+ * the handler that consumes it. A frame that can't be read closes the channel.
+ */
+public class BinaryCommandDecoder extends ByteToMessageDecoder implements StreamingDecoder {
+
+    private final int maxFrameSize;
+    private long rawRemaining;
+    private ChunkCompression compression;
+
+    public BinaryCommandDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public void expectRaw(long length) {
+        rawRemaining = length;
+    }
+
+    private ChunkCompression compression() {
+        if (compression == null) {
+            compression = new ChunkCompression(maxFrameSize);
+        }
+        return compression;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (rawRemaining > 0) {
+            int length = (int) Math.min(in.readableBytes(), rawRemaining);
+            if (length > 0) {
+                rawRemaining -= length;
+                out.add(in.readRetainedSlice(length));
+            }
+            return;
+        }
+        if (in.readableBytes() < BinaryCodec.LENGTH_FIELD) {
+            return;
+        }
+        int length = in.getInt(in.readerIndex());
+        if (length < 0 || length > maxFrameSize) {
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            throw new TooLongFrameException("Frame length " + length + " exceeds " + maxFrameSize);
+        }
+        if (in.readableBytes() < BinaryCodec.LENGTH_FIELD + length) {
+            return;
+        }
+        in.skipBytes(BinaryCodec.LENGTH_FIELD);
+        ByteBuf frame = in.readRetainedSlice(length);
+        try {
+            out.add(BinaryCodec.readCommand(frame, this::compression));
+        } catch (CorruptedFrameException e) {
+            // what follows can't be trusted either
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            throw e;
+        } finally {
+            frame.release();
+        }
+    }
+}
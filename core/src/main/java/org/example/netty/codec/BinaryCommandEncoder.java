@@ -0,0 +1,43 @@
+package org.example.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import org.example.model.command.Command;
+
+import java.util.List;
+
+/**
+ * Writes a {@link Command} as a binary frame. File content goes out as a separate buffer right
+ * after the header, a {@code FileDTO} data buffer is released once it has been written.
+ */
+public class BinaryCommandEncoder extends MessageToMessageEncoder<Command> {
+
+    private final ChunkCompression compression;
+
+    public BinaryCommandEncoder() {
+        this(null);
+    }
+
+    BinaryCommandEncoder(ChunkCompression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Command command, List<Object> out) {
+        ByteBuf header = ctx.alloc().ioBuffer();
+        ByteBuf content;
+        try {
+            content = BinaryCodec.writeCommand(command, header, compression);
+        } catch (RuntimeException e) {
+            header.release();
+            throw e;
+        }
+        int contentLength = content == null ? 0 : content.readableBytes();
+        header.setInt(0, header.readableBytes() - BinaryCodec.LENGTH_FIELD + contentLength);
+        out.add(header);
+        if (content != null) {
+            out.add(content);
+        }
+    }
+}
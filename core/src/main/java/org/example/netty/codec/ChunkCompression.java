@@ -0,0 +1,132 @@
+package org.example.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate of file chunks on the wire. A chunk is sent compressed only when a sample of it shrinks
+ * and the whole chunk shrinks too, chunks of files that are compressed already are never tried.
+ * The receiving side inflates them in the decoder, so handlers and storage only see the original
+ * bytes. One instance per channel, used on its event loop.
+ */
+final class ChunkCompression {
+
+    private static final int SAMPLE_SIZE = 4096;
+    private static final double MIN_RATIO = 0.9;
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "war", "apk",
+            "docx", "xlsx", "pptx", "odt", "ods", "epub",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm"));
+
+    private final int maxLength;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    /**
+     * @param maxLength largest chunk inflated
+     */
+    ChunkCompression(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    static boolean isCompressedType(String name) {
+        int dot = name == null ? -1 : name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the compressed chunk, null if it is not worth sending compressed
+     */
+    ByteBuf compress(String name, ByteBuf content, ByteBufAllocator alloc) {
+        int length = content.readableBytes();
+        if (length < SAMPLE_SIZE || isCompressedType(name)) {
+            return null;
+        }
+        byte[] input = bytes(content, length);
+        if (deflate(input, SAMPLE_SIZE) > SAMPLE_SIZE * MIN_RATIO) {
+            return null;
+        }
+        int compressed = deflate(input, length);
+        if (compressed > length * MIN_RATIO) {
+            return null;
+        }
+        return alloc.ioBuffer(compressed).writeBytes(output, 0, compressed);
+    }
+
+    /**
+     * @return size of the deflated input in {@link #output}, more than the input size if it
+     * doesn't fit into it
+     */
+    private int deflate(byte[] input, int length) {
+        if (output.length < length) {
+            output = new byte[length];
+        }
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < length) {
+            size += deflater.deflate(output, size, length - size);
+        }
+        return deflater.finished() ? size : length + 1;
+    }
+
+    /**
+     * The deflater and inflater take arrays only, the content is copied into one kept for the channel.
+     */
+    private byte[] bytes(ByteBuf content, int length) {
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        content.getBytes(content.readerIndex(), input, 0, length);
+        return input;
+    }
+
+    /**
+     * @return the inflated content in a pooled heap buffer, to be released by the caller
+     */
+    ByteBuf decompress(ByteBuf content, int originalLength, ByteBufAllocator alloc) {
+        if (originalLength > maxLength) {
+            throw new TooLongFrameException("Compressed content length " + originalLength + " exceeds " + maxLength);
+        }
+        int length = content.readableBytes();
+        ByteBuf original = alloc.heapBuffer(originalLength, originalLength);
+        try {
+            inflater.reset();
+            inflater.setInput(bytes(content, length), 0, length);
+            byte[] array = original.array();
+            int offset = original.arrayOffset();
+            int size = 0;
+            while (!inflater.finished() && size < originalLength) {
+                int n = inflater.inflate(array, offset + size, originalLength - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != originalLength || !inflater.finished()) {
+                throw new CorruptedFrameException("Compressed content doesn't match its length " + originalLength);
+            }
+            return original.writerIndex(originalLength);
+        } catch (DataFormatException e) {
+            original.release();
+            throw new CorruptedFrameException("Malformed compressed content: " + e.getMessage());
+        } catch (RuntimeException e) {
+            original.release();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.example.netty.codec;
+
+/**
+ * Decoder that can pass a known number of following bytes on as raw {@code ByteBuf} slices.
+ * Must be called on the channel event loop, e.g. from the handler that received the header frame.
+ */
+public interface StreamingDecoder {
+
+    void expectRaw(long length);
+}
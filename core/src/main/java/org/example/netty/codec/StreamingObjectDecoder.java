@@ -0,0 +1,39 @@
+package org.example.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.serialization.ClassResolver;
+import io.netty.handler.codec.serialization.ObjectDecoder;
+
+/**
+ * {@link ObjectDecoder} that can be switched to raw mode for a known number of bytes.
+ * In raw mode the incoming bytes are passed on as {@link ByteBuf} slices instead of being
+ * deserialized, so a file written by the other side with a {@code FileRegion} can be received
+ * right after its header frame without being buffered as one object.
+ */
+public class StreamingObjectDecoder extends ObjectDecoder implements StreamingDecoder {
+
+    private long rawRemaining;
+
+    public StreamingObjectDecoder(int maxObjectSize, ClassResolver classResolver) {
+        super(maxObjectSize, classResolver);
+    }
+
+    @Override
+    public void expectRaw(long length) {
+        rawRemaining = length;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        if (rawRemaining > 0) {
+            int length = (int) Math.min(in.readableBytes(), rawRemaining);
+            if (length == 0) {
+                return null;
+            }
+            rawRemaining -= length;
+            return in.readRetainedSlice(length);
+        }
+        return super.decode(ctx, in);
+    }
+}
@@ -0,0 +1,60 @@
+package org.example.netty.transfer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.dto.FileDTO;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * File chunks read straight into pooled direct buffers, which the encoder writes to the socket and
+ * gives back to the pool. Chunks of a steady transfer reuse the same pool memory instead of a new
+ * heap array each.
+ */
+public final class ChunkBuffers {
+
+    private ChunkBuffers() {
+    }
+
+    public static ByteBuf read(ReadableByteChannel in, int length) throws IOException {
+        return read(PooledByteBufAllocator.DEFAULT, in, length);
+    }
+
+    /**
+     * @return the next length bytes of the channel, to be released by the caller
+     */
+    public static ByteBuf read(ByteBufAllocator alloc, ReadableByteChannel in, int length) throws IOException {
+        ByteBuf buf = alloc.directBuffer(length, length);
+        try {
+            ByteBuffer target = buf.nioBuffer(0, length);
+            while (target.hasRemaining()) {
+                if (in.read(target) < 0) {
+                    throw new EOFException("Content ended " + target.remaining() + " bytes before the chunk end");
+                }
+            }
+            return buf.writerIndex(length);
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the chunk checksum of the type, or the MD5 with the digest when there is no type.
+     */
+    public static void sign(FileDTO dto, ByteBuf data, ChecksumType type, MessageDigest md5) {
+        if (type != null) {
+            dto.setChecksum(FileChecksum.of(type, data.nioBuffer()));
+        } else {
+            dto.setMd5(Hex.encodeHexString(DigestUtils.digest(md5, data.nioBuffer())));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.example.netty.transfer;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Running CRC-32 or CRC-32C of a file. Checksums of adjacent blocks can be combined without their
+ * data, so a whole-file checksum is built from the chunk checksums, also when chunks are received
+ * out of order or over several connections, and never needs a second pass over the file.
+ * CRC-32C is used when the JVM has it (Java 9+, hardware accelerated), CRC-32 otherwise.
+ */
+public class FileChecksum {
+
+    private static final MethodHandle CRC32C;
+    private static final MethodHandle CRC32C_UPDATE;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            constructor = null;
+        }
+        CRC32C = constructor;
+        CRC32C_UPDATE = update;
+    }
+
+    private final ChecksumType type;
+    private final Checksum checksum;
+    private long prefix;
+    private long length;
+    private long running;
+
+    public FileChecksum(ChecksumType type) {
+        this(type, 0, 0);
+    }
+
+    /**
+     * Continues a checksum of the first {@code length} bytes of a file.
+     */
+    public FileChecksum(ChecksumType type, long prefix, long length) {
+        this.type = type;
+        this.checksum = newChecksum(type);
+        this.prefix = prefix;
+        this.length = length;
+    }
+
+    public static ChecksumType preferred() {
+        return CRC32C != null ? ChecksumType.CRC32C : ChecksumType.CRC32;
+    }
+
+    public static boolean isAvailable(ChecksumType type) {
+        return type == ChecksumType.CRC32 || type == ChecksumType.CRC32C && CRC32C != null;
+    }
+
+    public static long of(ChecksumType type, ByteBuffer buffer) {
+        Checksum checksum = newChecksum(type);
+        update(checksum, buffer.duplicate());
+        return checksum.getValue();
+    }
+
+    public static long of(ChecksumType type, byte[] bytes, int offset, int length) {
+        Checksum checksum = newChecksum(type);
+        checksum.update(bytes, offset, length);
+        return checksum.getValue();
+    }
+
+    /**
+     * Checksum of two adjacent blocks from their checksums (zlib {@code crc32_combine}).
+     */
+    public static long combine(ChecksumType type, long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = type == ChecksumType.CRC32C ? 0x82F63B78L : 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    /**
+     * Whole-file digest as sent in {@code FileDTO.fileDigest}, {@code <type>:<hex>}.
+     */
+    public static String digest(ChecksumType type, long value) {
+        return type.name().toLowerCase(Locale.ROOT) + ":" + String.format("%08x", value);
+    }
+
+    /**
+     * @return the checksum type of a digest, null for an MD5 digest
+     */
+    public static ChecksumType typeOf(String digest) {
+        int index = digest == null ? -1 : digest.indexOf(':');
+        return index < 0 ? null : ChecksumType.valueOf(digest.substring(0, index).toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads the stream to its end in the format of the given digest, MD5 when it is not typed.
+     */
+    public static String digest(String format, InputStream in) throws IOException {
+        ChecksumType type = typeOf(format);
+        if (type == null) {
+            return DigestUtils.md5Hex(in);
+        }
+        FileChecksum checksum = new FileChecksum(type);
+        checksum.update(in, Long.MAX_VALUE);
+        return checksum.digest();
+    }
+
+    public void update(ByteBuffer buffer) {
+        running += buffer.remaining();
+        update(checksum, buffer.duplicate());
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        running += length;
+        checksum.update(bytes, offset, length);
+    }
+
+    /**
+     * Reads at most {@code limit} bytes of the stream.
+     */
+    public void update(InputStream in, long limit) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        for (int n; limit > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, limit))) > 0; limit -= n) {
+            update(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Appends a block by its checksum.
+     */
+    public void append(long value, long blockLength) {
+        prefix = combine(type, getValue(), value, blockLength);
+        length += running + blockLength;
+        running = 0;
+        checksum.reset();
+    }
+
+    public long getValue() {
+        return combine(type, prefix, checksum.getValue(), running);
+    }
+
+    public long getLength() {
+        return length + running;
+    }
+
+    public ChecksumType getType() {
+        return type;
+    }
+
+    public String digest() {
+        return digest(type, getValue());
+    }
+
+    private static Checksum newChecksum(ChecksumType type) {
+        if (type == ChecksumType.CRC32C && CRC32C != null) {
+            try {
+                return (Checksum) CRC32C.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (type == ChecksumType.CRC32C) {
+            throw new IllegalStateException("CRC32C is not available");
+        }
+        return new CRC32();
+    }
+
+    private static void update(Checksum checksum, ByteBuffer buffer) {
+        if (checksum instanceof CRC32) {
+            ((CRC32) checksum).update(buffer);
+            return;
+        }
+        try {
+            CRC32C_UPDATE.invokeExact(checksum, buffer);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
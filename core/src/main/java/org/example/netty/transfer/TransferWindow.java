@@ -0,0 +1,65 @@
+package org.example.netty.transfer;
+
+/**
+ * Sliding window of chunks sent but not yet acknowledged. Acknowledgements are cumulative:
+ * acking part N acknowledges every part up to N. The sender also pauses while the channel
+ * is not writable, so unsent chunks are not piled up in the outbound buffer.
+ */
+public class TransferWindow {
+
+    private final int size;
+    private int acked;
+    private boolean writable = true;
+    private boolean failed;
+
+    public TransferWindow(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    /**
+     * Blocks until the given part may be sent.
+     *
+     * @return false if the transfer has failed in the meantime
+     */
+    public synchronized boolean acquire(int part) throws InterruptedException {
+        while (!failed && (part - acked > size || !writable)) {
+            wait();
+        }
+        return !failed;
+    }
+
+    /**
+     * Blocks until every part up to the given one has been acknowledged.
+     *
+     * @return false if the transfer has failed in the meantime
+     */
+    public synchronized boolean awaitAcked(int part) throws InterruptedException {
+        while (!failed && acked < part) {
+            wait();
+        }
+        return !failed;
+    }
+
+    public synchronized void ack(Integer part) {
+        acked = Math.max(acked, part == null ? acked + 1 : part);
+        notifyAll();
+    }
+
+    public synchronized void setWritable(boolean writable) {
+        this.writable = writable;
+        notifyAll();
+    }
+
+    public synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    public synchronized int getAcked() {
+        return acked;
+    }
+}
@@ -0,0 +1,157 @@
+package org.example.netty.transport;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.lang.reflect.Constructor;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Socket transport of the event loops. Native epoll comes with Netty on Linux; io_uring is used
+ * when the incubator transport is on the class path and the kernel supports it, it is looked up
+ * by reflection, so there is no compile dependency on it. NIO works everywhere.
+ */
+public enum Transport {
+    IO_URING {
+        @Override
+        public boolean isAvailable() {
+            return IOUring.AVAILABLE;
+        }
+
+        @Override
+        public EventLoopGroup newGroup(int threads, String name) {
+            try {
+                return (EventLoopGroup) IOUring.GROUP.newInstance(threads, new DefaultThreadFactory(name));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("io_uring event loop group failed", e);
+            }
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannel() {
+            return IOUring.SERVER_CHANNEL;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> channel() {
+            return IOUring.CHANNEL;
+        }
+    },
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newGroup(int threads, String name) {
+            return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> channel() {
+            return EpollSocketChannel.class;
+        }
+    },
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newGroup(int threads, String name) {
+            return new NioEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannel() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> channel() {
+            return NioSocketChannel.class;
+        }
+    };
+
+    public abstract boolean isAvailable();
+
+    /**
+     * @param threads 0 for twice the number of processors
+     */
+    public abstract EventLoopGroup newGroup(int threads, String name);
+
+    public abstract Class<? extends ServerSocketChannel> serverChannel();
+
+    public abstract Class<? extends SocketChannel> channel();
+
+    /**
+     * @param name io_uring, epoll or nio, auto or null for the first one available in that order;
+     *             a transport that is not available falls back to auto
+     */
+    public static Transport select(String name) {
+        if (name != null && !name.equalsIgnoreCase("auto")) {
+            Transport transport = valueOf(name.toUpperCase(Locale.ROOT));
+            if (transport.isAvailable()) {
+                return transport;
+            }
+        }
+        for (Transport transport : values()) {
+            if (transport.isAvailable()) {
+                return transport;
+            }
+        }
+        return NIO;
+    }
+
+    /**
+     * The io_uring transport takes byte buffers only, files are sent to its channels in chunks.
+     */
+    public static boolean isFileRegionSupported(Channel channel) {
+        return !(IOUring.AVAILABLE && IOUring.CHANNEL.isInstance(channel));
+    }
+
+    private static final class IOUring {
+        private static final boolean AVAILABLE;
+        private static final Constructor<?> GROUP;
+        private static final Class<? extends ServerSocketChannel> SERVER_CHANNEL;
+        private static final Class<? extends SocketChannel> CHANNEL;
+
+        static {
+            boolean available = false;
+            Constructor<?> group = null;
+            Class<? extends ServerSocketChannel> serverChannel = null;
+            Class<? extends SocketChannel> channel = null;
+            try {
+                String pkg = "io.netty.incubator.channel.uring.";
+                available = (Boolean) Class.forName(pkg + "IOUring").getMethod("isAvailable").invoke(null);
+                group = Class.forName(pkg + "IOUringEventLoopGroup").getConstructor(int.class, ThreadFactory.class);
+                serverChannel = Class.forName(pkg + "IOUringServerSocketChannel").asSubclass(ServerSocketChannel.class);
+                channel = Class.forName(pkg + "IOUringSocketChannel").asSubclass(SocketChannel.class);
+            } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+                available = false;
+            }
+            AVAILABLE = available;
+            GROUP = group;
+            SERVER_CHANNEL = serverChannel;
+            CHANNEL = channel;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paranoid leak detection for tests: every buffer is tracked and the buffers collected without
+ * being released are counted. It has to be installed before the first buffer is allocated, the
+ * detector of the buffers is created once.
+ */
+public final class LeakDetection {
+
+    private static final AtomicInteger LEAKS = new AtomicInteger();
+    private static boolean installed;
+
+    private LeakDetection() {
+    }
+
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+                return new ResourceLeakDetector<T>(resource, samplingInterval) {
+                    @Override
+                    protected boolean needReport() {
+                        return true;
+                    }
+
+                    @Override
+                    protected void reportTracedLeak(String resourceType, String records) {
+                        LEAKS.incrementAndGet();
+                        super.reportTracedLeak(resourceType, records);
+                    }
+
+                    @Override
+                    protected void reportUntracedLeak(String resourceType) {
+                        LEAKS.incrementAndGet();
+                        super.reportUntracedLeak(resourceType);
+                    }
+                };
+            }
+        });
+        installed = true;
+    }
+
+    /**
+     * Collects garbage until the lost buffers are reported, which happens when the next ones are tracked.
+     *
+     * @return leaks reported since the detection was installed
+     */
+    public static int leaks() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            ByteBufAllocator.DEFAULT.directBuffer(1).release();
+            ByteBufAllocator.DEFAULT.heapBuffer(1).release();
+        }
+        return LEAKS.get();
+    }
+
+    public static long usedDirectMemory() {
+        return PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory();
+    }
+}
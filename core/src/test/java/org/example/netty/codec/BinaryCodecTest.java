@@ -0,0 +1,244 @@
+package org.example.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.netty.LeakDetection;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryCodecTest {
+
+    private static final int MAX_FRAME = 8 << 20;
+    private static final int CHUNK = 1 << 20;
+
+    private final Random random = new Random(42);
+
+    @BeforeClass
+    public static void installLeakDetection() {
+        LeakDetection.install();
+    }
+
+    @After
+    public void checkLeaks() throws InterruptedException {
+        assertEquals("leaked buffers", 0, LeakDetection.leaks());
+    }
+
+    @Test
+    public void fileContentRoundTrip() {
+        byte[] content = new byte[CHUNK];
+        random.nextBytes(content);
+        ByteBuf data = direct(content);
+        EmbeddedChannel sender = new EmbeddedChannel(new BinaryCommandEncoder());
+        EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+
+        Command received = roundTrip(sender, receiver, upload(data, 3));
+        assertEquals("the encoder releases the data once it is written", 0, data.refCnt());
+        FileDTO dto = (FileDTO) received.getParameter(ParameterType.FILE_DTO);
+        assertEquals(CommandType.FILE_UPLOAD, received.getCommandType());
+        assertEquals(ChecksumType.CRC32, received.getParameter(ParameterType.CHECKSUM));
+        assertEquals("chunk.bin", dto.getName());
+        assertEquals(3, dto.getPart());
+        assertEquals(3L * CHUNK, dto.getOffset());
+        assertTrue(dto.isEnd());
+        assertArrayEquals(content, bytes(dto.contentBuffer()));
+        ByteBuf slice = dto.getData();
+        dto.release();
+        assertEquals(0, slice.refCnt());
+        assertFalse(sender.finishAndReleaseAll());
+        assertFalse(receiver.finishAndReleaseAll());
+    }
+
+    @Test
+    public void compressedContentRoundTrip() {
+        byte[] content = new byte[CHUNK];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 7);
+        }
+        ByteBuf data = direct(content);
+        EmbeddedChannel sender = new EmbeddedChannel(new BinaryCommandEncoder(new ChunkCompression(MAX_FRAME)));
+        EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+
+        sender.writeOutbound(upload(data, 1).setParameter(ParameterType.CURRENT, "root"));
+        long sent = 0;
+        for (ByteBuf buf; (buf = sender.readOutbound()) != null; ) {
+            sent += buf.readableBytes();
+            receiver.writeInbound(buf);
+        }
+        assertTrue("content was sent deflated", sent < CHUNK / 4);
+        Command received = receiver.readInbound();
+        FileDTO dto = (FileDTO) received.getParameter(ParameterType.FILE_DTO);
+        assertArrayEquals(content, bytes(dto.contentBuffer()));
+        assertEquals(0, data.refCnt());
+        dto.release();
+        assertFalse(sender.finishAndReleaseAll());
+        assertFalse(receiver.finishAndReleaseAll());
+    }
+
+    @Test
+    public void chunkStreamKeepsDirectMemoryBounded() {
+        EmbeddedChannel sender = new EmbeddedChannel(new BinaryCommandEncoder());
+        EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+        byte[] content = new byte[CHUNK];
+        random.nextBytes(content);
+        long before = LeakDetection.usedDirectMemory();
+        long peak = before;
+        for (int part = 1; part <= 256; part++) {
+            Command received = roundTrip(sender, receiver, upload(direct(content), part));
+            FileDTO dto = (FileDTO) received.getParameter(ParameterType.FILE_DTO);
+            assertEquals(CHUNK, dto.contentLength());
+            dto.release();
+            peak = Math.max(peak, LeakDetection.usedDirectMemory());
+        }
+        // 256 MB went through, the pool holds a few chunks of it at most
+        assertTrue("direct memory grew by " + (peak - before), peak - before <= 32 << 20);
+        assertFalse(sender.finishAndReleaseAll());
+        assertFalse(receiver.finishAndReleaseAll());
+    }
+
+    @Test
+    public void unknownCommandTypeClosesChannel() {
+        EmbeddedChannel sender = new EmbeddedChannel(new BinaryCommandEncoder());
+        EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+        sender.writeOutbound(new Command(CommandType.CONTENT_REQUEST).setParameter(ParameterType.CURRENT, "root"));
+        ByteBuf frame = sender.readOutbound();
+        frame.setByte(frame.readerIndex() + BinaryCodec.LENGTH_FIELD, 0xff);
+        try {
+            receiver.writeInbound(frame);
+            fail("a frame with an unknown command type was read");
+        } catch (CorruptedFrameException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("CommandType"));
+        }
+        assertFalse(receiver.isActive());
+        assertNull(receiver.readInbound());
+        assertFalse(sender.finishAndReleaseAll());
+        receiver.finishAndReleaseAll();
+    }
+
+    @Test
+    public void truncatedFileFrameIsReleased() {
+        ByteBuf data = direct(new byte[1024]);
+        EmbeddedChannel sender = new EmbeddedChannel(new BinaryCommandEncoder());
+        EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+        sender.writeOutbound(upload(data, 1));
+        ByteBuf header = sender.readOutbound();
+        ByteBuf content = sender.readOutbound();
+        // the frame ends inside the file fields, before the content
+        int length = header.readableBytes() - BinaryCodec.LENGTH_FIELD - 4;
+        ByteBuf frame = ByteBufAllocator.DEFAULT.directBuffer();
+        frame.writeInt(length).writeBytes(header, header.readerIndex() + BinaryCodec.LENGTH_FIELD, length);
+        header.release();
+        content.release();
+        try {
+            receiver.writeInbound(frame);
+            fail("a truncated frame was read");
+        } catch (CorruptedFrameException e) {
+            assertEquals("Truncated frame", e.getMessage());
+        }
+        assertFalse(receiver.isActive());
+        receiver.finishAndReleaseAll();
+    }
+
+    @Test
+    public void tooLongFrameClosesChannel() {
+        EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+        ByteBuf frame = ByteBufAllocator.DEFAULT.directBuffer();
+        frame.writeInt(MAX_FRAME + 1).writeZero(16);
+        try {
+            receiver.writeInbound(frame);
+            fail("a frame longer than the limit was read");
+        } catch (TooLongFrameException e) {
+            assertFalse(receiver.isActive());
+        }
+        receiver.finishAndReleaseAll();
+    }
+
+    @Test
+    public void listSizeOutsideFrameClosesChannel() {
+        for (int size : new int[]{-1, Integer.MAX_VALUE}) {
+            EmbeddedChannel receiver = new EmbeddedChannel(new BinaryCommandDecoder(MAX_FRAME));
+            try {
+                receiver.writeInbound(listFrame(size));
+                fail("a list of " + size + " elements was read");
+            } catch (CorruptedFrameException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("list size"));
+            }
+            assertFalse(receiver.isActive());
+            receiver.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * @return frame of a command with a list of one string that declares the given number of strings
+     */
+    private static ByteBuf listFrame(int size) {
+        EmbeddedChannel sender = new EmbeddedChannel(new BinaryCommandEncoder());
+        sender.writeOutbound(new Command(CommandType.CHUNK_QUERY).setParameter(ParameterType.CHUNKS, Collections.singletonList("hash")));
+        ByteBuf encoded = sender.readOutbound();
+        // the command type, the parameter count, the parameter type and the value tag come before the size
+        int sizeIndex = encoded.readerIndex() + BinaryCodec.LENGTH_FIELD + 4;
+        ByteBuf frame = ByteBufAllocator.DEFAULT.directBuffer();
+        frame.writeBytes(encoded, encoded.readerIndex(), sizeIndex - encoded.readerIndex());
+        for (int shift = 0; shift < 28; shift += 7) {
+            frame.writeByte(size >>> shift & 0x7F | 0x80);
+        }
+        frame.writeByte(size >>> 28);
+        frame.writeBytes(encoded, sizeIndex + 1, encoded.writerIndex() - sizeIndex - 1);
+        frame.setInt(0, frame.readableBytes() - BinaryCodec.LENGTH_FIELD);
+        encoded.release();
+        assertFalse(sender.finishAndReleaseAll());
+        return frame;
+    }
+
+    private static Command upload(ByteBuf data, int part) {
+        FileDTO dto = FileDTO.builder()
+                .name("chunk.bin")
+                .path("root")
+                .fullSize((long) (part + 1) * CHUNK)
+                .offset((long) part * CHUNK)
+                .data(data)
+                .isEnd(true)
+                .part(part)
+                .build();
+        return new Command(CommandType.FILE_UPLOAD)
+                .setParameter(ParameterType.FILE_DTO, dto)
+                .setParameter(ParameterType.CHECKSUM, ChecksumType.CRC32);
+    }
+
+    private static Command roundTrip(EmbeddedChannel sender, EmbeddedChannel receiver, Command command) {
+        sender.writeOutbound(command);
+        for (ByteBuf buf; (buf = sender.readOutbound()) != null; ) {
+            receiver.writeInbound(buf);
+        }
+        return receiver.readInbound();
+    }
+
+    private static ByteBuf direct(byte[] content) {
+        return ByteBufAllocator.DEFAULT.directBuffer(content.length).writeBytes(content);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
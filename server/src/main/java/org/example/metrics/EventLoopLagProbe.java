@@ -0,0 +1,35 @@
+package org.example.metrics;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules a task on every executor of a group at a fixed interval and records how late it ran.
+ * On the IO event loops that is time spent in handlers or blocked, on the storage executor it is
+ * mostly time the task waited behind queued commands.
+ */
+public final class EventLoopLagProbe {
+
+    private EventLoopLagProbe() {
+    }
+
+    public static void start(String group, EventExecutorGroup executors, ServerMetrics metrics, long intervalMillis) {
+        long interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        for (EventExecutor executor : executors) {
+            schedule(group, executor, metrics, interval);
+        }
+    }
+
+    private static void schedule(String group, EventExecutor executor, ServerMetrics metrics, long interval) {
+        if (executor.isShuttingDown()) {
+            return;
+        }
+        long due = System.nanoTime() + interval;
+        executor.schedule(() -> {
+            metrics.eventLoopLag(group, Math.max(0, System.nanoTime() - due));
+            schedule(group, executor, metrics, interval);
+        }, interval, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,87 @@
+package org.example.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in power-of-two nanosecond buckets, from about 1 us to about
+ * 69 s and one bucket above. Recording is two {@link LongAdder} increments, so it is cheap enough
+ * for every command; quantiles are the upper bound of their bucket, at most twice the real value.
+ */
+public class Histogram {
+
+    static final int MIN_SHIFT = 10;
+    static final int BUCKETS = 27;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[bucket(nanos)].increment();
+        sum.add(nanos);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos <= 1L << MIN_SHIFT) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(nanos - 1) - MIN_SHIFT, BUCKETS);
+    }
+
+    /**
+     * @return upper bound of the bucket in nanoseconds, {@link Long#MAX_VALUE} for the last one
+     */
+    static long upperBound(int bucket) {
+        return bucket < BUCKETS ? 1L << (bucket + MIN_SHIFT) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return counts by bucket, not cumulative. Taken without a lock, so it may miss values recorded
+     * meanwhile
+     */
+    public long[] snapshot() {
+        long[] snapshot = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the upper bound in nanoseconds of the bucket holding the quantile, 0 if nothing was
+     * recorded
+     */
+    public long quantile(double quantile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+}
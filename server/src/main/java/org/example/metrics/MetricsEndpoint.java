@@ -0,0 +1,85 @@
+package org.example.metrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.example.netty.transport.Transport;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain HTTP endpoint serving {@code GET /metrics} in the Prometheus text format. Meant to be
+ * bound to a local address, there is no authentication.
+ */
+@Slf4j
+public final class MetricsEndpoint {
+
+    private MetricsEndpoint() {
+    }
+
+    public static Channel start(Transport transport, EventLoopGroup group, String host, int port, ServerMetrics metrics) throws InterruptedException {
+        Channel channel = new ServerBootstrap()
+                .group(group)
+                .channel(transport.serverChannel())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline()
+                                .addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(1 << 16))
+                                .addLast(new MetricsHandler(metrics));
+                    }
+                })
+                .bind(host, port).sync().channel();
+        log.info("Metrics endpoint listening at http://{}:{}/metrics", host, port);
+        return channel;
+    }
+
+    private static class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final ServerMetrics metrics;
+
+        MetricsHandler(ServerMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response;
+            if (request.method() == HttpMethod.GET && request.uri().startsWith("/metrics")) {
+                ByteBuf body = Unpooled.copiedBuffer(metrics.prometheus(), StandardCharsets.UTF_8);
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+            } else {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+            }
+            response.headers()
+                    .setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes())
+                    .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error("Metrics endpoint exception: {}", cause.getMessage(), cause);
+            ctx.close();
+        }
+    }
+}
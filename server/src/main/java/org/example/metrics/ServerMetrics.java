@@ -0,0 +1,229 @@
+package org.example.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.model.command.CommandType;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms of the server, read over JMX and by the {@link MetricsEndpoint} in the
+ * Prometheus text format. Everything is recorded without locks from the handler, event loop and
+ * download threads.
+ */
+@Slf4j
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<CommandType, Histogram> commands = new EnumMap<>(CommandType.class);
+    private final Map<CommandType, LongAdder> errors = new EnumMap<>(CommandType.class);
+    private final ConcurrentMap<String, LongAdder> received = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> sent = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> eventLoopLag = new ConcurrentHashMap<>();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final IntSupplier activeUploads;
+    private final LongSupplier queueDepth;
+
+    /**
+     * @param activeUploads number of open upload sessions
+     * @param queueDepth    number of commands waiting for the storage executor
+     */
+    public ServerMetrics(IntSupplier activeUploads, LongSupplier queueDepth) {
+        this.activeUploads = activeUploads;
+        this.queueDepth = queueDepth;
+        for (CommandType type : CommandType.values()) {
+            commands.put(type, new Histogram());
+            errors.put(type, new LongAdder());
+        }
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=ServerMetrics"));
+        } catch (JMException e) {
+            log.error("Metrics MBean registration exception: {}", e.getMessage(), e);
+        }
+    }
+
+    public void command(CommandType type, long nanos) {
+        commands.get(type).record(nanos);
+    }
+
+    public void error(CommandType type) {
+        errors.get(type).increment();
+    }
+
+    public void received(String user, long bytes) {
+        adder(received, user).add(bytes);
+    }
+
+    public void sent(String user, long bytes) {
+        adder(sent, user).add(bytes);
+    }
+
+    public void downloadStarted() {
+        activeDownloads.incrementAndGet();
+    }
+
+    public void downloadFinished() {
+        activeDownloads.decrementAndGet();
+    }
+
+    public void eventLoopLag(String group, long nanos) {
+        Histogram histogram = eventLoopLag.get(group);
+        if (histogram == null) {
+            histogram = eventLoopLag.computeIfAbsent(group, g -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    private static LongAdder adder(ConcurrentMap<String, LongAdder> map, String key) {
+        LongAdder adder = map.get(key);
+        return adder != null ? adder : map.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return histograms(commands, Histogram::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getCommandMeanMicros() {
+        return histograms(commands, h -> h.getCount() == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(h.getSumNanos() / h.getCount()));
+    }
+
+    @Override
+    public Map<String, Long> getCommandP99Micros() {
+        return histograms(commands, h -> TimeUnit.NANOSECONDS.toMicros(h.quantile(0.99)));
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return counters(errors);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReceived() {
+        return counters(received);
+    }
+
+    @Override
+    public Map<String, Long> getBytesSent() {
+        return counters(sent);
+    }
+
+    @Override
+    public int getActiveUploads() {
+        return activeUploads.getAsInt();
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return activeDownloads.get();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getEventLoopLagP99Micros() {
+        return histograms(eventLoopLag, h -> TimeUnit.NANOSECONDS.toMicros(h.quantile(0.99)));
+    }
+
+    private static Map<String, Long> histograms(Map<?, Histogram> histograms, Function<Histogram, Long> value) {
+        Map<String, Long> values = new TreeMap<>();
+        histograms.forEach((key, histogram) -> {
+            if (histogram.getCount() > 0) {
+                values.put(key.toString(), value.apply(histogram));
+            }
+        });
+        return values;
+    }
+
+    private static Map<String, Long> counters(Map<?, LongAdder> counters) {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((key, counter) -> {
+            long count = counter.sum();
+            if (count > 0) {
+                values.put(key.toString(), count);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String prometheus() {
+        StringBuilder sb = new StringBuilder(8192);
+        header(sb, "storage_command_duration_seconds", "histogram", "Time to handle a command.");
+        commands.forEach((type, histogram) -> histogram(sb, "storage_command_duration_seconds", "command", type.name(), histogram));
+        header(sb, "storage_errors_total", "counter", "Failed commands and transfers by command type.");
+        errors.forEach((type, counter) -> sample(sb, "storage_errors_total", "command", type.name(), counter.sum()));
+        header(sb, "storage_received_bytes_total", "counter", "Bytes received by user.");
+        received.forEach((user, counter) -> sample(sb, "storage_received_bytes_total", "user", user, counter.sum()));
+        header(sb, "storage_sent_bytes_total", "counter", "Bytes sent by user.");
+        sent.forEach((user, counter) -> sample(sb, "storage_sent_bytes_total", "user", user, counter.sum()));
+        header(sb, "storage_active_uploads", "gauge", "Open upload sessions.");
+        sample(sb, "storage_active_uploads", null, null, getActiveUploads());
+        header(sb, "storage_active_downloads", "gauge", "Downloads being sent.");
+        sample(sb, "storage_active_downloads", null, null, getActiveDownloads());
+        header(sb, "storage_queue_depth", "gauge", "Commands waiting for the storage executor.");
+        sample(sb, "storage_queue_depth", null, null, getQueueDepth());
+        header(sb, "storage_event_loop_lag_seconds", "histogram", "Delay of tasks scheduled on the event loops.");
+        eventLoopLag.forEach((group, histogram) -> histogram(sb, "storage_event_loop_lag_seconds", "group", group, histogram));
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String label, String value, Histogram histogram) {
+        long[] snapshot = histogram.snapshot();
+        long cumulative = 0;
+        for (long count : snapshot) {
+            cumulative += count;
+        }
+        if (cumulative == 0) {
+            return;
+        }
+        cumulative = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            cumulative += snapshot[i];
+            String le = i < Histogram.BUCKETS ? Double.toString(Histogram.upperBound(i) / NANOS_PER_SECOND) : "+Inf";
+            sb.append(name).append("_bucket{").append(label).append("=\"").append(escape(value))
+                    .append("\",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        sample(sb, name + "_sum", label, value, histogram.getSumNanos() / NANOS_PER_SECOND);
+        sample(sb, name + "_count", label, value, cumulative);
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String value, Object sample) {
+        sb.append(name);
+        if (label != null) {
+            sb.append('{').append(label).append("=\"").append(escape(value)).append("\"}");
+        }
+        sb.append(' ').append(sample).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
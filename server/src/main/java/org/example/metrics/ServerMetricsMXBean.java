@@ -0,0 +1,30 @@
+package org.example.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServerMetrics}, published as {@code org.example:type=ServerMetrics}.
+ * Maps are keyed by command type, user or event loop group.
+ */
+public interface ServerMetricsMXBean {
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandMeanMicros();
+
+    Map<String, Long> getCommandP99Micros();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Long> getBytesReceived();
+
+    Map<String, Long> getBytesSent();
+
+    int getActiveUploads();
+
+    int getActiveDownloads();
+
+    long getQueueDepth();
+
+    Map<String, Long> getEventLoopLagP99Micros();
+}
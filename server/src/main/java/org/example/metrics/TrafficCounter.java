@@ -0,0 +1,57 @@
+package org.example.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.AttributeKey;
+
+/**
+ * Counts the bytes read from and written to channels by the user the channel is authorized as.
+ * Placed first in the pipeline, so it sees the wire bytes including frame headers and file
+ * content sent as file regions.
+ */
+@ChannelHandler.Sharable
+public class TrafficCounter extends ChannelDuplexHandler {
+
+    public static final AttributeKey<String> USER = AttributeKey.valueOf("metrics.user");
+    private static final String ANONYMOUS = "-";
+
+    private final ServerMetrics metrics;
+
+    public TrafficCounter(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            metrics.received(user(ctx), ((ByteBuf) msg).readableBytes());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long bytes = -1;
+        if (msg instanceof ByteBuf) {
+            bytes = ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            bytes = ((ByteBufHolder) msg).content().readableBytes();
+        } else if (msg instanceof FileRegion) {
+            bytes = ((FileRegion) msg).count();
+        }
+        if (bytes > 0) {
+            metrics.sent(user(ctx), bytes);
+        }
+        ctx.write(msg, promise);
+    }
+
+    private static String user(ChannelHandlerContext ctx) {
+        String user = ctx.channel().attr(USER).get();
+        return user != null ? user : ANONYMOUS;
+    }
+}
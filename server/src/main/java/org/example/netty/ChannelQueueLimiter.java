@@ -0,0 +1,68 @@
+package org.example.netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of commands of one channel waiting for the storage executor.
+ * Reading from the socket is paused when the limit is reached and resumed once the
+ * handler has caught up, so a busy channel can't fill the executor queue.
+ */
+public class ChannelQueueLimiter extends ChannelInboundHandlerAdapter {
+
+    private final int limit;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public ChannelQueueLimiter(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (pending.incrementAndGet() >= limit) {
+            ctx.channel().config().setAutoRead(false);
+        }
+        try {
+            ctx.fireChannelRead(msg);
+        } catch (RejectedExecutionException e) {
+            // the storage executor queue is full, the command is dropped here instead of leaking its content
+            processed(ctx);
+            reject(ctx, msg);
+        }
+    }
+
+    private static void reject(ChannelHandlerContext ctx, Object msg) {
+        CommandType reply = CommandType.ERROR;
+        if (msg instanceof Command) {
+            Command command = (Command) msg;
+            Object dto = command.getParameter(ParameterType.FILE_DTO);
+            if (dto instanceof FileDTO) {
+                ((FileDTO) dto).release();
+            }
+            if (command.getCommandType() == CommandType.FILE_UPLOAD || command.getCommandType() == CommandType.BATCH_UPLOAD) {
+                reply = CommandType.UPLOAD_ERROR;
+            }
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+        ctx.writeAndFlush(new Command(reply).setParameter(ParameterType.MESSAGE, "Server is busy, try again later"));
+    }
+
+    public void processed(ChannelHandlerContext ctx) {
+        if (pending.decrementAndGet() == limit / 2) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+}
@@ -13,6 +13,44 @@ public class Config {
     public static final String storagePath;
     public static final int port;
     public static final int maxObjectSize;
+    public static final boolean zeroCopy;
+    public static final int transferWindow;
+    public static final int chunkSize;
+    public static final int storageThreads;
+    public static final int storageQueueSize;
+    public static final int channelQueueSize;
+    public static final int downloadThreads;
+    public static final int downloadQueueSize;
+    public static final boolean chunkStore;
+    public static final boolean chunkStoreShared;
+    public static final int digestCacheSize;
+    public static final long listingCacheBytes;
+    public static final int listingCacheUserEntries;
+    public static final int listingPageSize;
+    public static final int trashThreads;
+    public static final boolean compression;
+    public static final String metricsHost;
+    public static final int metricsPort;
+    public static final int eventLoopProbeMillis;
+    public static final long globalWriteLimit;
+    public static final long globalReadLimit;
+    public static final long userWriteLimit;
+    public static final long userReadLimit;
+    public static final long trafficCheckInterval;
+    public static final int fairQuantum;
+    public static final String transport;
+    public static final int workerThreads;
+    public static final int soBacklog;
+    public static final boolean tcpNoDelay;
+    public static final int receiveBuffer;
+    public static final int sendBuffer;
+    public static final int writeBufferLow;
+    public static final int writeBufferHigh;
+    public static final long sessionTimeout;
+    public static final int passwordIterations;
+    public static final long authCacheTtl;
+    public static final long indexFlushInterval;
+    public static final long userQuota;
 
     static {
         Properties properties = new Properties();
@@ -24,6 +62,47 @@ public class Config {
         storagePath = properties.getProperty("storagePath");
         port = Integer.parseInt(properties.getProperty("port"));
         maxObjectSize = Integer.parseInt(properties.getProperty("maxObjectSizeMB")) * 1_000_000;
+        zeroCopy = Boolean.parseBoolean(properties.getProperty("zeroCopy", "true"));
+        transferWindow = Integer.parseInt(properties.getProperty("transferWindow", "8"));
+        chunkSize = Integer.parseInt(properties.getProperty("chunkSizeKB", "1024")) * 1024;
+        storageThreads = Integer.parseInt(properties.getProperty("storageThreads", "16"));
+        storageQueueSize = Integer.parseInt(properties.getProperty("storageQueueSize", "10000"));
+        channelQueueSize = Integer.parseInt(properties.getProperty("channelQueueSize", "32"));
+        downloadThreads = Integer.parseInt(properties.getProperty("downloadThreads", "32"));
+        downloadQueueSize = Integer.parseInt(properties.getProperty("downloadQueueSize", "256"));
+        chunkStore = Boolean.parseBoolean(properties.getProperty("chunkStore", "false"));
+        chunkStoreShared = Boolean.parseBoolean(properties.getProperty("chunkStoreShared", "false"));
+        digestCacheSize = Integer.parseInt(properties.getProperty("digestCacheSize", "10000"));
+        listingCacheBytes = Long.parseLong(properties.getProperty("listingCacheMB", "64")) * 1_000_000;
+        listingCacheUserEntries = Integer.parseInt(properties.getProperty("listingCacheUserEntries", "256"));
+        listingPageSize = Integer.parseInt(properties.getProperty("listingPageSize", "1000"));
+        trashThreads = Integer.parseInt(properties.getProperty("trashThreads", "4"));
+        compression = Boolean.parseBoolean(properties.getProperty("compression", "true"));
+        metricsHost = properties.getProperty("metricsHost", "127.0.0.1");
+        metricsPort = Integer.parseInt(properties.getProperty("metricsPort", "9404"));
+        eventLoopProbeMillis = Integer.parseInt(properties.getProperty("eventLoopProbeMillis", "100"));
+        globalWriteLimit = Long.parseLong(properties.getProperty("globalWriteLimitKB", "0")) * 1024;
+        globalReadLimit = Long.parseLong(properties.getProperty("globalReadLimitKB", "0")) * 1024;
+        userWriteLimit = Long.parseLong(properties.getProperty("userWriteLimitKB", "0")) * 1024;
+        userReadLimit = Long.parseLong(properties.getProperty("userReadLimitKB", "0")) * 1024;
+        trafficCheckInterval = Long.parseLong(properties.getProperty("trafficCheckIntervalMillis", "1000"));
+        fairQuantum = Integer.parseInt(properties.getProperty("fairQuantumKB", "64")) * 1024;
+        transport = properties.getProperty("transport", "auto");
+        workerThreads = Integer.parseInt(properties.getProperty("workerThreads", "0"));
+        soBacklog = Integer.parseInt(properties.getProperty("soBacklog", "0"));
+        tcpNoDelay = Boolean.parseBoolean(properties.getProperty("tcpNoDelay", "true"));
+        receiveBuffer = Integer.parseInt(properties.getProperty("soRcvBufKB", "0")) * 1024;
+        sendBuffer = Integer.parseInt(properties.getProperty("soSndBufKB", "0")) * 1024;
+        // unset water marks hold one chunk, a high mark below it would stall the channel on every chunk
+        int low = Integer.parseInt(properties.getProperty("writeBufferLowKB", "0")) * 1024;
+        int high = Integer.parseInt(properties.getProperty("writeBufferHighKB", "0")) * 1024;
+        writeBufferLow = low > 0 ? low : chunkSize;
+        writeBufferHigh = high > 0 ? high : Math.max(writeBufferLow, 2 * chunkSize);
+        sessionTimeout = Long.parseLong(properties.getProperty("sessionTimeoutMinutes", "30")) * 60_000;
+        passwordIterations = Integer.parseInt(properties.getProperty("passwordIterations", "100000"));
+        authCacheTtl = Long.parseLong(properties.getProperty("authCacheSeconds", "300")) * 1000;
+        indexFlushInterval = Long.parseLong(properties.getProperty("indexFlushSeconds", "30")) * 1000;
+        userQuota = Long.parseLong(properties.getProperty("userQuotaMB", "0")) * 1_000_000;
 
         try {
             File file = new File(storagePath);
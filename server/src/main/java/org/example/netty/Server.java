@@ -3,36 +3,116 @@ package org.example.netty;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.serialization.ClassResolvers;
 import io.netty.handler.codec.serialization.ObjectDecoder;
 import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
 import lombok.extern.slf4j.Slf4j;
-import org.example.service.InMemoryUserService;
+import org.example.metrics.EventLoopLagProbe;
+import org.example.metrics.MetricsEndpoint;
+import org.example.metrics.ServerMetrics;
+import org.example.metrics.TrafficCounter;
+import org.example.netty.codec.BinaryCodec;
+import org.example.netty.transport.Transport;
+import org.example.service.FileUserService;
+import org.example.service.SessionRegistry;
+import org.example.storage.ChunkStore;
+import org.example.storage.DigestCache;
+import org.example.storage.ListingCache;
+import org.example.storage.MetadataIndex;
+import org.example.storage.Quotas;
+import org.example.storage.Trash;
+import org.example.traffic.TrafficShaper;
+import org.example.transfer.UploadSessionRegistry;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class Server {
 
     public Server(int port) {
-        EventLoopGroup auth = new NioEventLoopGroup(1);
-        EventLoopGroup worker = new NioEventLoopGroup();
+        Transport transport = Transport.select(Config.transport);
+        log.info("Transport {} ({} configured)", transport, Config.transport);
+        EventLoopGroup auth = transport.newGroup(1, "auth");
+        EventLoopGroup worker = transport.newGroup(Config.workerThreads, "worker");
+        EventExecutorGroup storage = new DefaultEventExecutorGroup(Config.storageThreads, new DefaultThreadFactory("storage"),
+                Config.storageQueueSize, RejectedExecutionHandlers.reject());
+        // a chunked download holds its thread while it waits for acknowledgements
+        ExecutorService downloads = new ThreadPoolExecutor(Config.downloadThreads, Config.downloadThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Config.downloadQueueSize), new DefaultThreadFactory("download", true));
+        // a snapshot write holds its thread until it is on disk, channels don't wait for it
+        ScheduledExecutorService indexFlush = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("index-flush", true));
         try {
+            ChunkStore chunks = Config.chunkStore ? new ChunkStore(Paths.get(Config.storagePath, ".chunks"), Config.chunkStoreShared) : null;
+            UploadSessionRegistry uploads = new UploadSessionRegistry(Paths.get(Config.storagePath, ".partial"), chunks);
+            if (chunks != null) {
+                chunks.rebuild(Paths.get(Config.storagePath), uploads.chunkReferences());
+            }
+            DigestCache digests = new DigestCache(chunks, Config.digestCacheSize);
+            ListingCache listings = new ListingCache(chunks, Config.listingCacheBytes, Config.listingCacheUserEntries);
+            MetadataIndex index = new MetadataIndex(Paths.get(Config.storagePath, ".index"), chunks, indexFlush, Config.indexFlushInterval);
+            Runtime.getRuntime().addShutdownHook(new Thread(index::flush, "index-flush"));
+            Quotas quotas = new Quotas(index, Paths.get(Config.storagePath, ".quotas"), Config.userQuota);
+            quotas.register();
+            Trash trash = new Trash(Paths.get(Config.storagePath, ".trash"), chunks, Config.trashThreads);
+            ServerMetrics metrics = new ServerMetrics(uploads::getOpenSessions, () -> queueDepth(storage));
+            metrics.register();
+            EventLoopLagProbe.start("worker", worker, metrics, Config.eventLoopProbeMillis);
+            EventLoopLagProbe.start("storage", storage, metrics, Config.eventLoopProbeMillis);
+            if (Config.metricsPort > 0) {
+                MetricsEndpoint.start(transport, auth, Config.metricsHost, Config.metricsPort, metrics);
+            }
+            TrafficCounter trafficCounter = new TrafficCounter(metrics);
+            TrafficShaper traffic = new TrafficShaper(worker, Config.globalWriteLimit, Config.globalReadLimit,
+                    Config.userWriteLimit, Config.userReadLimit, Config.trafficCheckInterval, Config.fairQuantum);
+            traffic.register();
+            SessionRegistry sessions = new SessionRegistry(worker, Config.sessionTimeout);
+            FileUserService users = new FileUserService(Paths.get(Config.storagePath), Paths.get(Config.storagePath, ".users"),
+                    Config.passwordIterations, Config.authCacheTtl, sessions);
+            users.register();
             ServerBootstrap serverBootstrap = new ServerBootstrap();
             serverBootstrap.group(auth, worker)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannel())
+                    .childOption(ChannelOption.TCP_NODELAY, Config.tcpNoDelay)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(Config.writeBufferLow, Config.writeBufferHigh))
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel channel) throws Exception {
-                            channel.pipeline().addLast(
-                                    new ObjectEncoder(),
-                                    new ObjectDecoder(Config.maxObjectSize, ClassResolvers.weakCachingConcurrentResolver(null)),
-                                    new ServerCommandHandler(new InMemoryUserService())
-                            );
+                            channel.pipeline()
+                                    .addLast(trafficCounter)
+                                    .addLast(TrafficShaper.GLOBAL, traffic.global())
+                                    .addLast(new ChunkedWriteHandler())
+                                    .addLast(BinaryCodec.ENCODER, new ObjectEncoder())
+                                    .addLast(BinaryCodec.DECODER, new ObjectDecoder(Config.maxObjectSize, ClassResolvers.weakCachingConcurrentResolver(null)))
+                                    .addLast(new ChannelQueueLimiter(Config.channelQueueSize))
+                                    .addLast(storage, new ServerCommandHandler(users, sessions, uploads, chunks, digests, listings, index, quotas, trash, metrics, traffic, downloads));
                         }
                     });
+            if (Config.soBacklog > 0) {
+                serverBootstrap.option(ChannelOption.SO_BACKLOG, Config.soBacklog);
+            }
+            if (Config.receiveBuffer > 0) {
+                serverBootstrap.childOption(ChannelOption.SO_RCVBUF, Config.receiveBuffer);
+            }
+            if (Config.sendBuffer > 0) {
+                serverBootstrap.childOption(ChannelOption.SO_SNDBUF, Config.sendBuffer);
+            }
             ChannelFuture channelFuture = serverBootstrap.bind(port).sync();
             log.info("=================== Server started (port {}) ===================", port);
             channelFuture.channel().closeFuture().sync();
@@ -41,6 +121,17 @@ public class Server {
         } finally {
             auth.shutdownGracefully();
             worker.shutdownGracefully();
+            storage.shutdownGracefully();
+            downloads.shutdownNow();
+            indexFlush.shutdownNow();
+        }
+    }
+
+    private static long queueDepth(EventExecutorGroup storage) {
+        long depth = 0;
+        for (EventExecutor executor : storage) {
+            depth += ((SingleThreadEventExecutor) executor).pendingTasks();
         }
+        return depth;
     }
 }
\ No newline at end of file
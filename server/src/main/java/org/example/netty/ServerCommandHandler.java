@@ -1,47 +1,130 @@
 package org.example.netty;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.stream.ChunkedNioFile;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CodecType;
 import org.example.model.command.Command;
 import org.example.model.command.CommandType;
+import org.example.model.command.CompressionType;
 import org.example.model.command.ContentActionType;
 import org.example.model.command.ParameterType;
+import org.example.model.command.SortType;
+import org.example.model.dto.EntryDTO;
 import org.example.model.dto.FileDTO;
 import org.example.model.user.User;
+import org.example.metrics.ServerMetrics;
+import org.example.metrics.TrafficCounter;
+import org.example.netty.codec.BinaryCodec;
+import org.example.netty.transfer.ChunkBuffers;
+import org.example.netty.transfer.FileChecksum;
+import org.example.netty.transfer.TransferWindow;
+import org.example.netty.transport.Transport;
+import org.example.service.SessionRegistry;
 import org.example.service.UserService;
+import org.example.storage.ChunkStore;
+import org.example.storage.DigestCache;
+import org.example.storage.Listing;
+import org.example.storage.ListingCache;
+import org.example.storage.Manifest;
+import org.example.storage.MetadataIndex;
+import org.example.storage.Quotas;
+import org.example.storage.SearchQuery;
+import org.example.storage.Trash;
+import org.example.traffic.TrafficShaper;
+import org.example.transfer.BatchUpload;
+import org.example.transfer.ChunkOutputStream;
+import org.example.transfer.UploadSession;
+import org.example.transfer.UploadSessionRegistry;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 @Slf4j
 public class ServerCommandHandler extends SimpleChannelInboundHandler<Command> {
 
     private final UserService userService;
-    private final Semaphore semaphore;
-    private final AtomicBoolean hasError;
+    private final SessionRegistry sessions;
+    private final UploadSessionRegistry uploads;
+    private final ChunkStore chunks;
+    private final DigestCache digests;
+    private final ListingCache listings;
+    private final MetadataIndex index;
+    private final Quotas quotas;
+    private final Trash trash;
+    private final ServerMetrics metrics;
+    private final TrafficShaper traffic;
+    private final ExecutorService downloads;
+    private volatile TransferWindow downloadWindow;
+    private int transferWindow = 1;
+    private ChecksumType checksumType;
+    private int listingLimit;
+    private SortType listingSort = SortType.NAME;
+    private boolean listingDescending;
+    private String listingPrefix;
+    private final Set<String> uploadKeys = new HashSet<>();
+    private final Set<String> failedUploads = new HashSet<>();
+    private BatchUpload batch;
+    private String batchKey;
+    private String batchCurrent;
     private User user;
+    private String session;
 
-    public ServerCommandHandler(UserService userService) {
+    public ServerCommandHandler(UserService userService, SessionRegistry sessions, UploadSessionRegistry uploads, ChunkStore chunks,
+                                DigestCache digests, ListingCache listings, MetadataIndex index, Quotas quotas, Trash trash,
+                                ServerMetrics metrics, TrafficShaper traffic, ExecutorService downloads) {
         this.userService = userService;
-        semaphore = new Semaphore(1);
-        hasError = new AtomicBoolean(false);
+        this.sessions = sessions;
+        this.uploads = uploads;
+        this.chunks = chunks;
+        this.digests = digests;
+        this.listings = listings;
+        this.index = index;
+        this.quotas = quotas;
+        this.trash = trash;
+        this.metrics = metrics;
+        this.traffic = traffic;
+        this.downloads = downloads;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            super.channelRead(ctx, msg);
+        } finally {
+            ChannelQueueLimiter limiter = ctx.pipeline().get(ChannelQueueLimiter.class);
+            if (limiter != null) {
+                limiter.processed(ctx);
+            }
+        }
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Command command) {
+        long start = System.nanoTime();
         try {
             log.info("Command received: {}", command);
             if (command.getCommandType() == CommandType.AUTH_REQUEST) {
                 userAuthProcess(ctx, command);
                 return;
             }
-            if (user != null && command.getParameter(ParameterType.USER).equals(user)) {
+            if (user != null && isSessionCommand(command)) {
                 switch (command.getCommandType()) {
                     case CONTENT_REQUEST:
                         ContentActionType type = (ContentActionType) command.getParameter(ParameterType.CONTENT_ACTION);
@@ -53,39 +136,71 @@ public class ServerCommandHandler extends SimpleChannelInboundHandler<Command> {
                         }
                         switch (type) {
                             case OPEN:
-                                ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles(current)));
+                                setListingView(command);
+                                sendListing(ctx, current);
                                 break;
                             case DOWNLOAD:
-                                downloadFileProcess(ctx, path);
+                                Long offset = (Long) command.getParameter(ParameterType.OFFSET);
+                                if (Files.isDirectory(Paths.get(path))) {
+                                    downloadDirectoryStart(ctx, new File(path),
+                                            command.getParameter(ParameterType.COMPRESSION) == CompressionType.DEFLATE);
+                                    break;
+                                }
+                                downloadFileProcess(ctx, path, offset == null ? 0 : offset, (Long) command.getParameter(ParameterType.LENGTH),
+                                        Boolean.TRUE.equals(command.getParameter(ParameterType.STREAM)));
                                 break;
                             case DELETE:
-                                deleteProcess(ctx, path);
-                                ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles(current.substring(0, current.lastIndexOf("/")))));
+                                deleteProcess(ctx, current, path);
+                                sendListing(ctx, current.substring(0, current.lastIndexOf("/")));
                                 break;
                             case RENAME:
                                 renameProcess(ctx, path, (String) command.getParameter(ParameterType.NEW_NAME));
-                                ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles(current.substring(0, current.lastIndexOf("/")))));
+                                sendListing(ctx, current.substring(0, current.lastIndexOf("/")));
                                 break;
                         }
                         break;
                     case FILE_UPLOAD:
                         uploadFileProcess(ctx, command);
                         break;
+                    case TRANSFER_STATUS:
+                        transferStatusProcess(ctx, command);
+                        break;
+                    case CHUNK_QUERY:
+                        chunkQueryProcess(ctx, command);
+                        break;
+                    case LISTING:
+                        listingProcess(ctx, command);
+                        break;
                     case CREATE_DIR:
                         createDir(ctx, command);
                         break;
+                    case SEARCH:
+                        searchProcess(ctx, command);
+                        break;
+                    case USAGE:
+                        usageProcess(ctx);
+                        break;
+                    case BATCH_UPLOAD:
+                        batchUploadProcess(ctx, command);
+                        break;
                     case DOWNLOAD_ERROR:
-                        hasError.set(true);
-                        semaphore.release();
+                        if (downloadWindow != null) {
+                            downloadWindow.fail();
+                        }
                         break;
                     case NEXT_PART:
-                        semaphore.release();
+                        if (downloadWindow != null) {
+                            downloadWindow.ack((Integer) command.getParameter(ParameterType.PART));
+                        }
                         break;
                 }
             }
         } catch (Exception e) {
             log.error("Channel read exception: {}", e.getMessage(), e);
+            metrics.error(command.getCommandType());
             sendErrorMessage(ctx, "Unknown server error");
+        } finally {
+            metrics.command(command.getCommandType(), System.nanoTime() - start);
         }
     }
 
@@ -98,7 +213,9 @@ public class ServerCommandHandler extends SimpleChannelInboundHandler<Command> {
             return;
         }
         Files.createDirectory(dir.toPath());
-        ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles(current)));
+        listings.invalidate(dir.toPath().getParent());
+        index.created(user.getEmail(), userService.getRootPath(user), dir.toPath(), null);
+        sendListing(ctx, current);
     }
 
     private void renameProcess(ChannelHandlerContext ctx, String path, String newName) throws IOException {
@@ -108,163 +225,788 @@ public class ServerCommandHandler extends SimpleChannelInboundHandler<Command> {
             ctx.writeAndFlush(new Command(CommandType.ERROR).setParameter(ParameterType.MESSAGE, newName + " already exists"));
             return;
         }
-        if (src.isFile()) {
-            Files.move(src.toPath(), dst.toPath());
-        } else if (src.isDirectory()) {
-            moveDirectory(src, dst);
-            deleteFile(src);
+        try {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            copyTree(src.toPath(), dst.toPath());
+            trash.delete(src.toPath(), null);
         }
+        listings.invalidateTree(src.toPath());
+        listings.invalidate(src.toPath().getParent());
+        index.moved(user.getEmail(), userService.getRootPath(user), src.toPath(), dst.toPath());
     }
 
-    private void moveDirectory(File src, File dst) throws IOException {
-        Files.createDirectory(dst.toPath());
-        for (File f : src.listFiles()) {
-            if (f.isFile()) {
-                Files.move(f.toPath(), new File(dst + File.separator + f.getName()).toPath());
-            } else if (f.isDirectory()) {
-                moveDirectory(f, new File(dst + File.separator + f.getName()));
+    /**
+     * Copies a tree to another file system, copies of manifests take their own chunk references.
+     */
+    private void copyTree(Path src, Path dst) throws IOException {
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectory(dst.resolve(src.relativize(dir)));
+                return FileVisitResult.CONTINUE;
             }
-        }
-    }
 
-    private void deleteProcess(ChannelHandlerContext ctx, String path) throws IOException {
-        File file = new File(path);
-        deleteFile(file);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Manifest manifest = Manifest.read(chunks, file);
+                if (manifest != null) {
+                    manifest.getChunks().forEach(chunk -> chunks.ref(chunk.getHash(), user.getEmail()));
+                }
+                Files.copy(file, dst.resolve(src.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
-    private void deleteFile(File file) throws IOException {
-        File[] content = file.listFiles();
-        if (content != null) {
-            for (File f : content) {
-                deleteFile(f);
+    /**
+     * Files are deleted at once. Directories are moved to the trash and deleted in the background
+     * while the progress is sent to the client.
+     */
+    private void deleteProcess(ChannelHandlerContext ctx, String current, String path) throws IOException {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            trash.delete(file.toPath(), (deleted, total) -> {
+                if (ctx.channel().isActive()) {
+                    ctx.writeAndFlush(new Command(CommandType.DELETE_PROGRESS)
+                            .setParameter(ParameterType.CURRENT, current)
+                            .setParameter(ParameterType.DELETED, deleted)
+                            .setParameter(ParameterType.TOTAL, total));
+                }
+            });
+        } else {
+            Manifest manifest = Manifest.read(chunks, file.toPath());
+            Files.delete(file.toPath());
+            if (manifest != null) {
+                chunks.release(manifest);
             }
         }
-        Files.delete(file.toPath());
+        listings.invalidateTree(file.toPath());
+        listings.invalidate(file.toPath().getParent());
+        index.deleted(user.getEmail(), userService.getRootPath(user), file.toPath());
     }
 
-    private void downloadFileProcess(ChannelHandlerContext ctx, String path) {
-        hasError.set(false);
+    private void downloadFileProcess(ChannelHandlerContext ctx, String path, long offset, Long length, boolean stream) throws IOException {
         File file = new File(path);
         if (Files.isDirectory(file.toPath())) {
             sendErrorMessage(ctx, "Not file");
             return;
         }
-        downloadThreadStart(ctx, file);
+        Manifest manifest = Manifest.read(chunks, file.toPath());
+        long size = manifest != null ? manifest.getSize() : file.length();
+        if (offset < 0 || offset > size) {
+            offset = 0;
+        }
+        if (stream) {
+            streamFile(ctx, file, manifest, offset, length);
+        } else {
+            downloadThreadStart(ctx, file, manifest, offset);
+        }
     }
 
-    private void downloadThreadStart(ChannelHandlerContext ctx, File file) {
-        semaphore.release(semaphore.drainPermits());
-        Thread th = new Thread(() -> {
-            long size = file.length();
-            FileDTO fileDTO = FileDTO.builder()
-                    .name(file.getName())
-                    .fullSize(size)
-                    .build();
-            long readBytes = 0;
-            log.info("Download started file: {}, size {}", file.getAbsolutePath(), size);
+    /**
+     * Streams the file from the offset. With a length only that range is sent, so a file can be
+     * fetched as several ranges over parallel connections; the digest of the whole file is then sent
+     * only when the length is 0, which is used to look up the file before its ranges are requested.
+     * Clients that negotiated a checksum get a cached CRC instead of an md5 read for every download.
+     */
+    private void streamFile(ChannelHandlerContext ctx, File file, Manifest manifest, long offset, Long length) throws IOException {
+        long size = manifest != null ? manifest.getSize() : file.length();
+        long count = length == null ? size - offset : Math.min(length, size - offset);
+        String md5 = null;
+        String fileDigest = null;
+        if ((length == null || length == 0) && checksumType != null) {
+            fileDigest = digests.digest(file.toPath(), manifest, checksumType);
+        } else if (length == null || length == 0) {
+            if (manifest != null && FileChecksum.typeOf(manifest.getDigest()) == null) {
+                md5 = manifest.getDigest();
+            } else {
+                try (InputStream is = openContent(file, manifest, 0)) {
+                    md5 = DigestUtils.md5Hex(is);
+                }
+            }
+        }
+        FileDTO fileDTO = FileDTO.builder()
+                .name(file.getName())
+                .fullSize(size)
+                .offset(offset)
+                .md5(md5)
+                .fileDigest(fileDigest)
+                .isStart(true)
+                .isEnd(true)
+                .build();
+        log.info("Stream download started file: {}, size {}, offset {}, length {}, zero-copy {}", file.getAbsolutePath(), size, offset, count, Config.zeroCopy);
+        long startTime = System.currentTimeMillis();
+        ctx.write(new Command(CommandType.FILE_STREAM).setParameter(ParameterType.FILE_DTO, fileDTO));
+        if (count == 0) {
+            ctx.flush();
+            return;
+        }
+        List<Object> bodies = new ArrayList<>();
+        if (manifest == null) {
+            bodies.add(fileBody(ctx, file, offset, count));
+        } else {
+            long start = 0;
+            for (Manifest.Chunk chunk : manifest.getChunks()) {
+                long end = start + chunk.getLength();
+                if (end > offset && start < offset + count) {
+                    long from = Math.max(offset, start);
+                    bodies.add(fileBody(ctx, chunks.path(chunk.getHash()).toFile(), from - start, Math.min(end, offset + count) - from));
+                }
+                start = end;
+            }
+        }
+        for (int i = 0; i < bodies.size() - 1; i++) {
+            ctx.write(bodies.get(i));
+        }
+        metrics.downloadStarted();
+        ctx.writeAndFlush(bodies.get(bodies.size() - 1)).addListener(future -> {
+            metrics.downloadFinished();
+            if (future.isSuccess()) {
+                log.info("Download finished at {} ms", System.currentTimeMillis() - startTime);
+            } else {
+                metrics.error(CommandType.FILE_STREAM);
+                log.error("Stream download exception: {}", future.cause().getMessage(), future.cause());
+            }
+        });
+    }
+
+    /**
+     * A file region is sent in one piece, so files of users with a write limit are read in chunks
+     * the shaping handlers can pace, as are files sent over transports without file regions.
+     */
+    private Object fileBody(ChannelHandlerContext ctx, File file, long position, long count) throws IOException {
+        if (Config.zeroCopy && Transport.isFileRegionSupported(ctx.channel()) && !traffic.isWriteShaped(user.getEmail())) {
+            return new DefaultFileRegion(file, position, count);
+        }
+        return traffic.fair(new ChunkedNioFile(new RandomAccessFile(file, "r").getChannel(), position, count, 1 << 16),
+                user.getEmail(), ctx.channel());
+    }
+
+    private void downloadThreadStart(ChannelHandlerContext ctx, File file, Manifest manifest, long offset) {
+        TransferWindow window = openDownloadWindow(ctx);
+        ChecksumType type = checksumType;
+        String owner = user.getEmail();
+        startDownload(ctx, window, () -> {
+            long size = manifest != null ? manifest.getSize() : file.length();
+            long readBytes = offset;
+            int part = 0;
+            log.info("Download started file: {}, size {}, offset {}", file.getAbsolutePath(), size, offset);
             long startTime = System.currentTimeMillis();
-            try (FileInputStream is = new FileInputStream(file)) {
-                while (!fileDTO.isEnd()) {
-                    semaphore.acquire();
-                    if (hasError.get()) {
+            metrics.downloadStarted();
+            FileChecksum checksum = type != null ? new FileChecksum(type) : null;
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            try (ReadableByteChannel in = openChannel(file, manifest, offset)) {
+                do {
+                    if (!window.acquire(part + 1)) {
                         log.info("Download file thread was interrupted");
                         break;
                     }
-                    fileDTO.setStart(readBytes == 0);
-                    long l = (size - readBytes) > 30_000_000 ? 30_000_000 : size - readBytes;
-                    byte[] buffer = new byte[(int) l];
-                    readBytes += is.read(buffer, 0, (int) l);
-                    String md5 = DigestUtils.md5Hex(buffer);
-                    fileDTO.setMd5(md5);
-                    fileDTO.setContent(buffer);
-                    fileDTO.setPart(fileDTO.getPart() + 1);
+                    long l = Math.min(size - readBytes, Config.chunkSize);
+                    traffic.acquire(owner, l);
+                    ByteBuf data = ChunkBuffers.read(ctx.alloc(), in, (int) l);
+                    FileDTO fileDTO = FileDTO.builder()
+                            .name(file.getName())
+                            .fullSize(size)
+                            .offset(readBytes)
+                            .isStart(readBytes == offset)
+                            .data(data)
+                            .part(++part)
+                            .build();
+                    ChunkBuffers.sign(fileDTO, data, type, md5);
+                    if (checksum != null) {
+                        checksum.append(fileDTO.getChecksum(), l);
+                    }
+                    readBytes += l;
                     fileDTO.setEnd(readBytes == size);
-                    ctx.writeAndFlush(new Command(CommandType.FILE_DOWNLOAD).setParameter(ParameterType.FILE_DTO, fileDTO));
-                }
+                    if (checksum != null && fileDTO.isEnd()) {
+                        fileDTO.setFileDigest(checksum.digest());
+                    }
+                    ctx.writeAndFlush(new Command(CommandType.FILE_DOWNLOAD).setParameter(ParameterType.FILE_DTO, fileDTO))
+                            .addListener(future -> fileDTO.release());
+                } while (readBytes < size);
                 log.info("Download finished at {} ms", System.currentTimeMillis() - startTime);
             } catch (Exception e) {
                 log.error("Download file exception: {}", e.getMessage(), e);
+                metrics.error(CommandType.FILE_DOWNLOAD);
+                ctx.writeAndFlush(new Command(CommandType.DOWNLOAD_ERROR));
+            } finally {
+                metrics.downloadFinished();
+            }
+        });
+    }
+
+    /**
+     * Runs the download on the download pool, or fails it if the pool is saturated.
+     */
+    private void startDownload(ChannelHandlerContext ctx, TransferWindow window, Runnable download) {
+        try {
+            downloads.execute(download);
+        } catch (RejectedExecutionException e) {
+            log.warn("Download rejected, the download pool is saturated");
+            window.fail();
+            metrics.error(CommandType.FILE_DOWNLOAD);
+            ctx.writeAndFlush(new Command(CommandType.DOWNLOAD_ERROR).setParameter(ParameterType.MESSAGE, "Server is busy, try again later"));
+        }
+    }
+
+    /**
+     * Sends the directory as a ZIP archive built while it is sent, in {@code FILE_DOWNLOAD} chunks
+     * acknowledged like those of a file: one chunk is in memory, the window bounds those in flight,
+     * nothing is written to disk. The size of the archive is known at its end only, so it is the
+     * {@code fullSize} of the last chunk and 0 before. Entries are deflated if compression is asked
+     * for, otherwise deflated at level 0, which costs little more than storing them but keeps the
+     * sizes after the data, so the archive can be unpacked while it arrives.
+     */
+    private void downloadDirectoryStart(ChannelHandlerContext ctx, File dir, boolean compress) throws IOException {
+        TransferWindow window = openDownloadWindow(ctx);
+        ChecksumType type = checksumType;
+        String owner = user.getEmail();
+        Path root = dir.toPath();
+        String name = root.equals(userService.getRootPath(user)) ? "root" : dir.getName();
+        startDownload(ctx, window, () -> {
+            FileChecksum checksum = type != null ? new FileChecksum(type) : null;
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            long[] sent = new long[1];
+            int[] part = new int[1];
+            ChunkOutputStream out = new ChunkOutputStream(ctx.alloc(), Config.chunkSize, (data, end) -> {
+                try {
+                    if (!window.acquire(part[0] + 1)) {
+                        throw new InterruptedIOException("Download of " + name + " was interrupted");
+                    }
+                    traffic.acquire(owner, data.readableBytes());
+                } catch (InterruptedException e) {
+                    data.release();
+                    throw new InterruptedIOException(e.getMessage());
+                } catch (IOException e) {
+                    data.release();
+                    throw e;
+                }
+                long l = data.readableBytes();
+                FileDTO fileDTO = FileDTO.builder()
+                        .name(name + ".zip")
+                        .fullSize(end ? sent[0] + l : 0)
+                        .offset(sent[0])
+                        .isStart(sent[0] == 0)
+                        .data(data)
+                        .part(++part[0])
+                        .build();
+                ChunkBuffers.sign(fileDTO, data, type, md5);
+                if (checksum != null) {
+                    checksum.append(fileDTO.getChecksum(), l);
+                }
+                sent[0] += l;
+                fileDTO.setEnd(end);
+                if (checksum != null && end) {
+                    fileDTO.setFileDigest(checksum.digest());
+                }
+                ctx.writeAndFlush(new Command(CommandType.FILE_DOWNLOAD).setParameter(ParameterType.FILE_DTO, fileDTO))
+                        .addListener(future -> fileDTO.release());
+            });
+            log.info("Directory download started: {}, compressed {}", dir.getAbsolutePath(), compress);
+            long startTime = System.currentTimeMillis();
+            metrics.downloadStarted();
+            try {
+                ZipOutputStream zip = new ZipOutputStream(out);
+                zip.setLevel(compress ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                byte[] buffer = new byte[1 << 16];
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) throws IOException {
+                        zip.putNextEntry(zipEntry(name, root, path, attributes, true));
+                        zip.closeEntry();
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                        if (attributes.isRegularFile()) {
+                            zip.putNextEntry(zipEntry(name, root, path, attributes, false));
+                            try (InputStream is = openContent(path.toFile(), Manifest.read(chunks, path), 0)) {
+                                for (int n; (n = is.read(buffer)) > 0; ) {
+                                    zip.write(buffer, 0, n);
+                                }
+                            }
+                            zip.closeEntry();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                zip.close();
+                log.info("Directory download finished at {} ms, {} bytes", System.currentTimeMillis() - startTime, sent[0]);
+            } catch (InterruptedIOException e) {
+                log.info(e.getMessage());
+            } catch (Exception e) {
+                log.error("Directory download exception: {}", e.getMessage(), e);
+                metrics.error(CommandType.FILE_DOWNLOAD);
                 ctx.writeAndFlush(new Command(CommandType.DOWNLOAD_ERROR));
+            } finally {
+                out.abort();
+                metrics.downloadFinished();
             }
         });
-        th.setDaemon(true);
-        th.start();
     }
 
+    private static ZipEntry zipEntry(String name, Path root, Path path, BasicFileAttributes attributes, boolean directory) {
+        StringBuilder sb = new StringBuilder(name);
+        for (Path part : root.relativize(path)) {
+            if (!part.toString().isEmpty()) {
+                sb.append('/').append(part);
+            }
+        }
+        ZipEntry entry = new ZipEntry(directory ? sb.append('/').toString() : sb.toString());
+        entry.setLastModifiedTime(attributes.lastModifiedTime());
+        return entry;
+    }
+
+    /**
+     * Stops the download in progress, a channel has one download at a time.
+     */
+    private TransferWindow openDownloadWindow(ChannelHandlerContext ctx) {
+        if (downloadWindow != null) {
+            downloadWindow.fail();
+        }
+        TransferWindow window = new TransferWindow(transferWindow);
+        window.setWritable(ctx.channel().isWritable());
+        downloadWindow = window;
+        return window;
+    }
+
+    private ReadableByteChannel openChannel(File file, Manifest manifest, long offset) throws IOException {
+        if (manifest != null) {
+            return manifest.openChannel(chunks, offset);
+        }
+        return FileChannel.open(file.toPath()).position(offset);
+    }
+
+    private InputStream openContent(File file, Manifest manifest, long offset) throws IOException {
+        if (manifest != null) {
+            return manifest.openStream(chunks, offset);
+        }
+        FileInputStream is = new FileInputStream(file);
+        is.getChannel().position(offset);
+        return is;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (downloadWindow != null) {
+            downloadWindow.setWritable(ctx.channel().isWritable());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (downloadWindow != null) {
+            downloadWindow.fail();
+        }
+        uploadKeys.forEach(this::detachUpload);
+        uploadKeys.clear();
+        closeBatch();
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Commands of an authorized channel carry no credentials, or the session id of the channel.
+     * Clients sending their user with every command are still served.
+     */
+    private boolean isSessionCommand(Command command) {
+        Object token = command.getParameter(ParameterType.SESSION);
+        if (token != null) {
+            return token.equals(session);
+        }
+        Object sent = command.getParameter(ParameterType.USER);
+        return sent == null || sent instanceof User && user.getEmail().equals(((User) sent).getEmail());
+    }
+
+    /**
+     * Authorizes the channel by the session id of another channel of the client, or by credentials
+     * with a new session.
+     */
     private void userAuthProcess(ChannelHandlerContext ctx, Command command) throws Exception {
-        User user = (User) command.getParameter(ParameterType.USER);
-        if (userService.isAuthorized(user)) {
-            this.user = user;
-            ctx.writeAndFlush(new Command(CommandType.AUTH_OK));
-            ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles("root")));
+        String token = (String) command.getParameter(ParameterType.SESSION);
+        SessionRegistry.Session resumed = token != null ? sessions.resume(token, ctx.channel()) : null;
+        User user = resumed != null ? resumed.getUser() : (User) command.getParameter(ParameterType.USER);
+        if (resumed != null || user != null && userService.isAuthorized(user)) {
+            SessionRegistry.Session current = resumed != null ? resumed : sessions.open(user, ctx.channel());
+            this.session = current.getToken();
+            this.user = current.getUser();
+            ctx.channel().attr(TrafficCounter.USER).set(user.getEmail());
+            traffic.attach(ctx.channel(), user.getEmail());
+            Command authOk = new Command(CommandType.AUTH_OK).setParameter(ParameterType.SESSION, session);
+            ChecksumType checksum = (ChecksumType) command.getParameter(ParameterType.CHECKSUM);
+            if (checksum != null) {
+                checksumType = FileChecksum.isAvailable(checksum) ? checksum : ChecksumType.CRC32;
+                authOk.setParameter(ParameterType.CHECKSUM, checksumType);
+            }
+            Integer window = (Integer) command.getParameter(ParameterType.WINDOW);
+            if (window != null) {
+                transferWindow = Math.max(1, Math.min(window, Config.transferWindow));
+                authOk.setParameter(ParameterType.WINDOW, transferWindow)
+                        .setParameter(ParameterType.CHUNK_SIZE, Config.chunkSize)
+                        .setParameter(ParameterType.DEDUP, chunks != null);
+            }
+            Integer limit = (Integer) command.getParameter(ParameterType.LIMIT);
+            if (limit != null) {
+                listingLimit = Math.max(1, Math.min(limit, Config.listingPageSize));
+                authOk.setParameter(ParameterType.LIMIT, listingLimit);
+            }
+            if (command.getParameter(ParameterType.CODEC) == CodecType.BINARY) {
+                CompressionType compression = Config.compression ? (CompressionType) command.getParameter(ParameterType.COMPRESSION) : null;
+                ctx.writeAndFlush(authOk.setParameter(ParameterType.CODEC, CodecType.BINARY)
+                        .setParameter(ParameterType.COMPRESSION, compression));
+                BinaryCodec.install(ctx.pipeline(), Config.maxObjectSize, compression);
+            } else {
+                ctx.writeAndFlush(authOk);
+            }
+            sendListing(ctx, "root");
         } else {
             ctx.writeAndFlush(new Command(CommandType.AUTH_NO));
         }
     }
 
+    private void transferStatusProcess(ChannelHandlerContext ctx, Command command) throws Exception {
+        FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+        dto.release();
+        String key = uploadKey(dto.getTransferId());
+        failedUploads.remove(key);
+        UploadSession session = uploads.find(key);
+        long offset = 0;
+        if (session != null && session.getTarget().equals(Paths.get(getPathToCurrent(dto.getPath()) + dto.getName()))) {
+            // the size is reserved when the channel joins, a refused upload fails on its first chunk
+            if (!uploadKeys.contains(key) && quotas.reserve(user.getEmail(), userService.getRootPath(user), key, dto.getFullSize())) {
+                uploadKeys.add(key);
+                uploads.attach(session);
+            }
+            offset = session.resume();
+        }
+        FileDTO status = FileDTO.builder()
+                .transferId(dto.getTransferId())
+                .name(dto.getName())
+                .path(dto.getPath())
+                .fullSize(dto.getFullSize())
+                .offset(offset)
+                .build();
+        ctx.writeAndFlush(new Command(CommandType.TRANSFER_STATUS).setParameter(ParameterType.FILE_DTO, status));
+    }
+
+    /**
+     * Answers which of the queried chunk hashes the user may reference instead of sending the content.
+     */
+    @SuppressWarnings("unchecked")
+    private void chunkQueryProcess(ChannelHandlerContext ctx, Command command) {
+        List<String> known = new ArrayList<>();
+        if (chunks != null) {
+            for (String hash : (List<String>) command.getParameter(ParameterType.CHUNKS)) {
+                if (chunks.contains(hash, user.getEmail())) {
+                    known.add(hash);
+                }
+            }
+        }
+        ctx.writeAndFlush(new Command(CommandType.CHUNK_QUERY).setParameter(ParameterType.CHUNKS, known));
+    }
+
     private void uploadFileProcess(ChannelHandlerContext ctx, Command command) {
+        FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+        String key = null;
         try {
-            FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
-            String fullFilePath = getPathToCurrent(dto.getPath()) + dto.getName();
-            File file = new File(fullFilePath);
-
-            if (!DigestUtils.md5Hex(dto.getContent()).equals(dto.getMd5())) {
-                ctx.writeAndFlush(new Command(CommandType.UPLOAD_ERROR).setParameter(ParameterType.MESSAGE, "File is corrupted"));
-                Files.deleteIfExists(Paths.get(fullFilePath));
+            Path path = Paths.get(getPathToCurrent(dto.getPath()) + dto.getName());
+            key = uploadKey(dto.getTransferId() != null ? dto.getTransferId() : path.toString());
+            if (dto.getTransferId() == null && dto.isStart()) {
+                failedUploads.remove(key);
+                uploadKeys.remove(key);
+                uploads.abort(key);
+                quotas.release(user.getEmail(), key);
+            }
+            if (failedUploads.contains(key)) {
                 return;
             }
-            if (Files.exists(file.toPath()) && dto.isStart()) {
-                ctx.writeAndFlush(new Command(CommandType.UPLOAD_ERROR).setParameter(ParameterType.MESSAGE, file.getName() + " already exists"));
+            UploadSession session = uploads.find(key);
+            // the size is reserved once, when the channel starts or joins the upload
+            if (!uploadKeys.contains(key) && !quotas.reserve(user.getEmail(), userService.getRootPath(user), key, dto.getFullSize())) {
+                // the data received so far is kept, the upload can go on once there is room
+                uploadError(ctx, key, "Quota exceeded, no room for " + path.getFileName(), false);
                 return;
             }
-            try (FileOutputStream os = new FileOutputStream(file, true)) {
-                if (!dto.isEnd()) {
-                    os.write(dto.getContent());
-                    ctx.writeAndFlush(new Command(CommandType.NEXT_PART));
-                } else {
-                    os.write(dto.getContent());
-                    if (file.length() != dto.getFullSize()) {
-                        ctx.writeAndFlush(new Command(CommandType.UPLOAD_ERROR).setParameter(ParameterType.MESSAGE, "File is corrupted"));
-                        Files.deleteIfExists(Paths.get(fullFilePath));
-                    } else {
-                        ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles(dto.getPath())));
-                    }
+            if (session == null) {
+                session = uploads.findOrOpen(key, user.getEmail(), path, dto.getFullSize());
+                if (session == null) {
+                    uploadError(ctx, key, path.getFileName() + " already exists", true);
+                    return;
                 }
             }
+            if (!session.getTarget().equals(path)) {
+                // a transfer id names one file, the session is left to the channels uploading it
+                uploadError(ctx, key, "Upload " + dto.getTransferId() + " is not an upload of " + path.getFileName(), false);
+                return;
+            }
+            if (uploadKeys.add(key)) {
+                uploads.attach(session);
+            }
+            long offset = dto.getTransferId() != null ? dto.getOffset() : session.getVerified();
+            session.setFileDigest(dto.getFileDigest());
+            if (dto.getChunkHash() != null) {
+                if (!session.reference(dto.getRange(), dto.getPart(), offset, dto.getChunkHash(), checksumType, dto.getChecksum())) {
+                    uploadError(ctx, key, "Chunk of " + path.getFileName() + " is not available, send it again", false);
+                    return;
+                }
+            } else if (checksumType != null ? FileChecksum.of(checksumType, dto.contentBuffer()) != dto.getChecksum()
+                    : !Hex.encodeHexString(DigestUtils.digest(DigestUtils.getMd5Digest(), dto.contentBuffer())).equals(dto.getMd5())) {
+                uploadError(ctx, key, "File is corrupted", dto.getTransferId() == null);
+                return;
+            } else {
+                session.write(dto.getRange(), dto.getPart(), offset, dto.contentBuffer(), checksumType, dto.getChecksum());
+            }
+            if (!session.claimCompletion()) {
+                ctx.writeAndFlush(new Command(CommandType.NEXT_PART).setParameter(ParameterType.PART, session.getAckedPart(dto.getRange())));
+                return;
+            }
+            uploadKeys.remove(key);
+            if (Files.exists(path)) {
+                uploadError(ctx, key, path.getFileName() + " already exists", true);
+            } else if (uploads.complete(key)) {
+                digests.put(path, session.getFileDigest());
+                listings.invalidate(path.getParent());
+                index.created(user.getEmail(), userService.getRootPath(user), path, session.getFileDigest());
+                quotas.release(user.getEmail(), key);
+                sendListing(ctx, dto.getPath());
+            } else {
+                uploadError(ctx, key, "File is corrupted", true);
+            }
         } catch (Exception e) {
             log.error("Upload file error: {}", e.getMessage(), e);
-            ctx.writeAndFlush(new Command(CommandType.UPLOAD_ERROR).setParameter(ParameterType.MESSAGE, "Unknown error"));
+            uploadError(ctx, key, "Unknown error", false);
+        } finally {
+            dto.release();
+        }
+    }
+
+    /**
+     * A command with the manifest starts a batch, the stream of file contents follows in
+     * {@code FILE_DTO} chunks acknowledged like those of an upload. The last chunk is answered with
+     * the number of files stored and the names of those skipped, and one listing of the directory.
+     * Chunks of a batch that has failed are dropped.
+     */
+    @SuppressWarnings("unchecked")
+    private void batchUploadProcess(ChannelHandlerContext ctx, Command command) {
+        FileDTO dto = (FileDTO) command.getParameter(ParameterType.FILE_DTO);
+        try {
+            List<EntryDTO> entries = (List<EntryDTO>) command.getParameter(ParameterType.ENTRIES);
+            if (entries != null && !openBatch(ctx, (String) command.getParameter(ParameterType.CURRENT), entries)) {
+                return;
+            }
+            if (dto == null || batch == null) {
+                return;
+            }
+            if (checksumType != null ? FileChecksum.of(checksumType, dto.contentBuffer()) != dto.getChecksum()
+                    : !Hex.encodeHexString(DigestUtils.digest(DigestUtils.getMd5Digest(), dto.contentBuffer())).equals(dto.getMd5())) {
+                batchError(ctx, "File is corrupted");
+                return;
+            }
+            batch.write(dto.contentBuffer());
+            if (!dto.isEnd()) {
+                ctx.writeAndFlush(new Command(CommandType.NEXT_PART).setParameter(ParameterType.PART, dto.getPart()));
+                return;
+            }
+            if (!batch.isComplete()) {
+                batchError(ctx, "Batch ended before all of its files");
+                return;
+            }
+            log.info("Batch of {} stored {} files, skipped {}", user.getEmail(), batch.getStored(), batch.getSkipped().size());
+            ctx.writeAndFlush(new Command(CommandType.BATCH_UPLOAD)
+                    .setParameter(ParameterType.TOTAL, batch.getStored())
+                    .setParameter(ParameterType.FILES, batch.getSkipped()));
+            String current = batchCurrent;
+            closeBatch();
+            sendListing(ctx, current);
+        } catch (Exception e) {
+            log.error("Batch upload error: {}", e.getMessage(), e);
+            batchError(ctx, e instanceof IOException && e.getMessage() != null ? e.getMessage() : "Unknown error");
+        } finally {
+            if (dto != null) {
+                dto.release();
+            }
+        }
+    }
+
+    /**
+     * @return false if the batch can't be started, the client is told why
+     */
+    private boolean openBatch(ChannelHandlerContext ctx, String current, List<EntryDTO> entries) throws Exception {
+        closeBatch();
+        Path root = userService.getRootPath(user);
+        Path target = Paths.get(getPathToCurrent(current));
+        if (!Files.isDirectory(target)) {
+            batchError(ctx, current + " not found");
+            return false;
+        }
+        BatchUpload opened;
+        try {
+            opened = uploads.openBatch(target, entries, path -> {
+                listings.invalidate(path.getParent());
+                index.created(user.getEmail(), root, path, null);
+            });
+        } catch (IllegalArgumentException e) {
+            batchError(ctx, e.getMessage());
+            return false;
+        }
+        String key = uploadKey("batch:" + UUID.randomUUID());
+        if (!quotas.reserve(user.getEmail(), root, key, opened.getSize())) {
+            batchError(ctx, "Quota exceeded, no room for " + entries.size() + " files");
+            return false;
+        }
+        batch = opened;
+        batchKey = key;
+        batchCurrent = current;
+        return true;
+    }
+
+    private void batchError(ChannelHandlerContext ctx, String message) {
+        closeBatch();
+        metrics.error(CommandType.BATCH_UPLOAD);
+        ctx.writeAndFlush(new Command(CommandType.UPLOAD_ERROR).setParameter(ParameterType.MESSAGE, message));
+    }
+
+    private void closeBatch() {
+        if (batch != null) {
+            batch.abort();
+            quotas.release(user.getEmail(), batchKey);
+            batch = null;
+        }
+    }
+
+    /**
+     * Stops the upload. Unless it is aborted, the data received so far is kept and the upload
+     * can be resumed after a {@code TRANSFER_STATUS} request.
+     */
+    private void uploadError(ChannelHandlerContext ctx, String key, String message, boolean abort) {
+        if (key != null) {
+            failedUploads.add(key);
+            if (abort) {
+                uploadKeys.remove(key);
+                uploads.abort(key);
+                quotas.release(user.getEmail(), key);
+            } else if (uploadKeys.remove(key)) {
+                detachUpload(key);
+            }
+        }
+        metrics.error(CommandType.FILE_UPLOAD);
+        ctx.writeAndFlush(new Command(CommandType.UPLOAD_ERROR).setParameter(ParameterType.MESSAGE, message));
+    }
+
+    /**
+     * A suspended upload gives its reserved size back, as a client may never resume it. The size is
+     * reserved again when a channel joins the upload.
+     */
+    private void detachUpload(String key) {
+        if (uploads.detach(key)) {
+            quotas.release(user.getEmail(), key);
+        }
+    }
+
+    private String uploadKey(String id) {
+        return user.getEmail() + ":" + id;
+    }
+
+    /**
+     * Sends the listing of the directory, as its first page to clients that asked for pages at AUTH.
+     */
+    private void sendListing(ChannelHandlerContext ctx, String current) throws Exception {
+        if (listingLimit == 0) {
+            ctx.writeAndFlush(new Command(CommandType.CONTENT_RESPONSE).setAll(getUserFiles(current)));
+        } else {
+            sendPage(ctx, current, null, listingLimit);
+        }
+    }
+
+    /**
+     * Sends the page after the cursor, the client asks for the next one with the returned cursor.
+     */
+    private void listingProcess(ChannelHandlerContext ctx, Command command) throws Exception {
+        String current = (String) command.getParameter(ParameterType.CURRENT);
+        if (!Files.isDirectory(Paths.get(getPathToCurrent(current)))) {
+            sendErrorMessage(ctx, current + " not found");
+            return;
+        }
+        Integer limit = (Integer) command.getParameter(ParameterType.LIMIT);
+        setListingView(command);
+        sendPage(ctx, current, (String) command.getParameter(ParameterType.CURSOR),
+                Math.max(1, Math.min(limit != null ? limit : Math.max(listingLimit, 1), Config.listingPageSize)));
+    }
+
+    private void setListingView(Command command) {
+        SortType sort = (SortType) command.getParameter(ParameterType.SORT);
+        String prefix = (String) command.getParameter(ParameterType.PREFIX);
+        listingSort = sort != null ? sort : SortType.NAME;
+        listingDescending = Boolean.TRUE.equals(command.getParameter(ParameterType.DESCENDING));
+        listingPrefix = prefix == null || prefix.isEmpty() ? null : prefix;
+    }
+
+    private void sendPage(ChannelHandlerContext ctx, String current, String cursor, int limit) throws Exception {
+        Listing.Page page = listings.list(user.getEmail(), Paths.get(getPathToCurrent(current)))
+                .page(listingSort, listingDescending, listingPrefix, cursor, limit);
+        Command command = new Command(CommandType.LISTING)
+                .setParameter(ParameterType.CURRENT, currentPath(current))
+                .setParameter(ParameterType.ENTRIES, page.getEntries())
+                .setParameter(ParameterType.CURSOR, page.getCursor());
+        if (cursor == null) {
+            command.setParameter(ParameterType.TOTAL, page.getTotal());
+        }
+        ctx.writeAndFlush(command);
+    }
+
+    /**
+     * Answers with the matching entries of the user tree, named by their paths from the root, up to
+     * the page size. A query that can't be read is answered with an error.
+     */
+    private void searchProcess(ChannelHandlerContext ctx, Command command) throws Exception {
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse((String) command.getParameter(ParameterType.QUERY));
+        } catch (IllegalArgumentException e) {
+            sendErrorMessage(ctx, e.getMessage());
+            return;
         }
+        Integer limit = (Integer) command.getParameter(ParameterType.LIMIT);
+        int max = Math.max(1, Math.min(limit != null ? limit : Config.listingPageSize, Config.listingPageSize));
+        SearchQuery.Result result = index.search(user.getEmail(), userService.getRootPath(user), query, max);
+        ctx.writeAndFlush(new Command(CommandType.SEARCH)
+                .setParameter(ParameterType.QUERY, command.getParameter(ParameterType.QUERY))
+                .setParameter(ParameterType.ENTRIES, result.getEntries())
+                .setParameter(ParameterType.TOTAL, result.getTotal())
+                .setParameter(ParameterType.LIMIT, max));
+    }
+
+    private void usageProcess(ChannelHandlerContext ctx) throws Exception {
+        Quotas.Usage usage = quotas.usage(user.getEmail(), userService.getRootPath(user));
+        ctx.writeAndFlush(new Command(CommandType.USAGE)
+                .setParameter(ParameterType.USED, usage.getUsed())
+                .setParameter(ParameterType.RESERVED, usage.getReserved())
+                .setParameter(ParameterType.QUOTA, usage.getQuota())
+                .setParameter(ParameterType.TOTAL, usage.getFiles()));
     }
 
     private Map<ParameterType, Object> getUserFiles(String current) throws Exception {
         Map<ParameterType, Object> parameters = new HashMap<>();
-        List<String> directories = new ArrayList<>();
-        List<String> files = new ArrayList<>();
-        Files.walkFileTree(Paths.get(getPathToCurrent(current)), Collections.singleton(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (file.toFile().isDirectory()) {
-                    directories.add(file.getFileName().toString());
-                } else if (file.toFile().isFile()) {
-                    files.add(file.getFileName().toString());
-                }
-                return super.visitFile(file, attrs);
-            }
-        });
+        Listing listing = listings.list(user.getEmail(), Paths.get(getPathToCurrent(current)));
+        parameters.put(ParameterType.DIRECTORIES, listing.getDirectories());
+        parameters.put(ParameterType.FILES, listing.getFiles());
+        parameters.put(ParameterType.CURRENT, currentPath(current));
+        return parameters;
+    }
+
+    private List<String> currentPath(String current) {
         List<String> currentPath = new ArrayList<>();
         currentPath.add("root");
         if (!current.equals("root")) {
             Arrays.stream(current.split("/")).filter(str -> !str.isEmpty()).forEach(currentPath::add);
         }
-        parameters.put(ParameterType.DIRECTORIES, directories);
-        parameters.put(ParameterType.FILES, files);
-        parameters.put(ParameterType.CURRENT, currentPath);
-        return parameters;
+        return currentPath;
     }
 
     private String getPathToCurrent(String current) throws Exception {
-        StringBuilder sb = new StringBuilder(userService.getRootPath(user));
+        StringBuilder sb = new StringBuilder(userService.getRootPath(user).toString());
         sb.append(File.separator);
         if (!current.equals("root") && !current.equals("/")) {
             String[] dirs = current.split("/");
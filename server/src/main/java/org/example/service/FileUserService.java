@@ -0,0 +1,275 @@
+package org.example.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.model.user.User;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users kept in a file of the storage, one line per user:
+ * <pre>
+ * email pbkdf2-sha256 iterations salt hash
+ * </pre>
+ * separated by tabs, salt and hash in Base64. The file is read once into a concurrent index shared
+ * by all channels, and rewritten as a whole when a user is changed. A missing file is created with
+ * the demo users.
+ * <p>
+ * Hashing a password takes a while by design, so a successful authorization is remembered for a
+ * time as a fast digest of the password. A wrong password always takes the full hashing.
+ */
+@Slf4j
+public class FileUserService implements UserService, FileUserServiceMXBean {
+
+    private static final String ALGORITHM = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final Path storage;
+    private final Path file;
+    private final int iterations;
+    private final long cacheTtl;
+    private final SessionRegistry sessions;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Credential> users = new ConcurrentHashMap<>();
+    private final Map<String, Authorization> authorizations = new ConcurrentHashMap<>();
+    private final Map<String, Path> roots = new ConcurrentHashMap<>();
+
+    private static final class Credential {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Authorization {
+        private final Credential credential;
+        private final byte[] digest;
+        private final long expires;
+
+        private Authorization(Credential credential, byte[] digest, long expires) {
+            this.credential = credential;
+            this.digest = digest;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param storage    directory of the user roots
+     * @param iterations PBKDF2 iterations of new passwords, stored ones keep their own
+     * @param cacheTtl   milliseconds a successful authorization is remembered, 0 to hash every time
+     * @param sessions   sessions ended when the password of their user changes
+     */
+    public FileUserService(Path storage, Path file, int iterations, long cacheTtl, SessionRegistry sessions) throws IOException {
+        this.storage = storage.toAbsolutePath();
+        this.file = file;
+        this.iterations = iterations;
+        this.cacheTtl = cacheTtl;
+        this.sessions = sessions;
+        if (Files.exists(file)) {
+            load();
+        } else {
+            users.put("12345@email.com", credential("12345"));
+            users.put("67890@email.com", credential("67890"));
+            users.put("xxxxx@yandex.ru", credential("xxxxx"));
+            save();
+            log.info("Users file created at {}", file.toAbsolutePath());
+        }
+        log.info("{} users loaded from {}", users.size(), file.toAbsolutePath());
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=Users"));
+        } catch (JMException e) {
+            log.error("Users MBean registration exception: {}", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean isAuthorized(User user) {
+        if (user == null || user.getEmail() == null || user.getPassword() == null) {
+            return false;
+        }
+        Credential credential = users.get(user.getEmail());
+        if (credential == null) {
+            return false;
+        }
+        byte[] digest = digest(credential, user.getPassword());
+        Authorization cached = authorizations.get(user.getEmail());
+        if (cached != null && cached.credential == credential && cached.expires > System.currentTimeMillis()
+                && MessageDigest.isEqual(cached.digest, digest)) {
+            return true;
+        }
+        if (!MessageDigest.isEqual(credential.hash, hash(user.getPassword(), credential.salt, credential.iterations))) {
+            return false;
+        }
+        if (cacheTtl > 0) {
+            authorizations.put(user.getEmail(), new Authorization(credential, digest, System.currentTimeMillis() + cacheTtl));
+        }
+        return true;
+    }
+
+    /**
+     * The root directory of a user is resolved and created on the first request of the user only.
+     */
+    @Override
+    public Path getRootPath(User user) throws IOException {
+        try {
+            return roots.computeIfAbsent(user.getEmail(), email -> {
+                Path root = storage.resolve(email);
+                try {
+                    if (Files.notExists(root)) {
+                        Files.createDirectories(root);
+                        log.info("Folder for user {} created at {}", email, root);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return root;
+            });
+        } catch (UncheckedIOException e) {
+            log.error("User folder create exception: {}", e.getMessage());
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public List<String> getUsers() {
+        List<String> emails = new ArrayList<>(users.keySet());
+        Collections.sort(emails);
+        return emails;
+    }
+
+    @Override
+    public int getCachedAuthorizations() {
+        return authorizations.size();
+    }
+
+    @Override
+    public synchronized boolean addUser(String email, String password) throws IOException {
+        if (email == null || email.isEmpty() || email.startsWith(".") || email.contains("/") || email.contains("\\")
+                || email.contains("\t") || password == null || password.isEmpty() || users.containsKey(email)) {
+            return false;
+        }
+        users.put(email, credential(password));
+        save();
+        log.info("User {} added", email);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setPassword(String email, String password) throws IOException {
+        if (password == null || password.isEmpty() || !users.containsKey(email)) {
+            return false;
+        }
+        users.put(email, credential(password));
+        authorizations.remove(email);
+        sessions.invalidate(email);
+        save();
+        log.info("Password of {} changed", email);
+        return true;
+    }
+
+    /**
+     * The files of the user are kept.
+     */
+    @Override
+    public synchronized boolean removeUser(String email) throws IOException {
+        if (users.remove(email) == null) {
+            return false;
+        }
+        authorizations.remove(email);
+        roots.remove(email);
+        sessions.invalidate(email);
+        save();
+        log.info("User {} removed", email);
+        return true;
+    }
+
+    private Credential credential(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return new Credential(iterations, salt, hash(password, salt, iterations));
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Password hashing failed", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Fast digest of a password for the authorization cache, salted like the stored hash.
+     */
+    private static byte[] digest(Credential credential, String password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(credential.salt);
+            return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Password digest failed", e);
+        }
+    }
+
+    private void load() throws IOException {
+        Base64.Decoder decoder = Base64.getDecoder();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 5 || !fields[1].equals(ALGORITHM)) {
+                log.warn("Skipped malformed user line in {}", file);
+                continue;
+            }
+            users.put(fields[0], new Credential(Integer.parseInt(fields[2]), decoder.decode(fields[3]), decoder.decode(fields[4])));
+        }
+    }
+
+    /**
+     * Writes a new file next to the old one and moves it over, a crash leaves one of them whole.
+     */
+    private void save() throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write("# email, algorithm, iterations, salt, hash\n");
+            for (String email : getUsers()) {
+                Credential credential = users.get(email);
+                writer.write(email + "\t" + ALGORITHM + "\t" + credential.iterations + "\t"
+                        + encoder.encodeToString(credential.salt) + "\t" + encoder.encodeToString(credential.hash) + "\n");
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
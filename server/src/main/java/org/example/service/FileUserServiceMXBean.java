@@ -0,0 +1,24 @@
+package org.example.service;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * JMX view of {@link FileUserService}, published as {@code org.example:type=Users}, to manage
+ * accounts while the server runs.
+ */
+public interface FileUserServiceMXBean {
+
+    List<String> getUsers();
+
+    int getCachedAuthorizations();
+
+    /**
+     * @return false if the user exists or the email can't name a storage directory
+     */
+    boolean addUser(String email, String password) throws IOException;
+
+    boolean setPassword(String email, String password) throws IOException;
+
+    boolean removeUser(String email) throws IOException;
+}
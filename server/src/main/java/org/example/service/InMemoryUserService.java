@@ -4,9 +4,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.example.model.user.User;
 import org.example.netty.Config;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,17 +33,17 @@ public class InMemoryUserService implements UserService {
     }
 
     @Override
-    public String getRootPath(User user) throws Exception {
-        File file = new File(Config.storagePath + File.separator + user.getEmail());
+    public Path getRootPath(User user) throws IOException {
+        Path root = Paths.get(Config.storagePath, user.getEmail()).toAbsolutePath();
         try {
-            if (Files.notExists(file.toPath())) {
-                Files.createDirectory(file.toPath());
-                log.info("Folder for user {} created at {}", user.getEmail(), file.getAbsolutePath());
+            if (Files.notExists(root)) {
+                Files.createDirectory(root);
+                log.info("Folder for user {} created at {}", user.getEmail(), root);
             }
         } catch (IOException e) {
             log.error("User folder create exception: {}", e.getMessage());
             throw e;
         }
-        return file.getAbsolutePath();
+        return root;
     }
 }
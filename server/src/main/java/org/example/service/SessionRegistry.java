@@ -0,0 +1,137 @@
+package org.example.service;
+
+import io.netty.channel.Channel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.example.model.user.User;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions of authorized users. A session id is returned with {@code AUTH_OK}, commands of the
+ * channel need no credentials after it, and a new channel of the client is authorized with the id
+ * alone. A session outlives its channels by the timeout, so a client reconnecting in time resumes
+ * it without sending the password again.
+ */
+@Slf4j
+public class SessionRegistry {
+
+    private static final int TOKEN_BYTES = 16;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    public static class Session {
+        @Getter
+        private final String token;
+        @Getter
+        private final User user;
+        private final Set<Channel> channels = new HashSet<>();
+        private long idleSince;
+
+        private Session(String token, User user) {
+            this.token = token;
+            this.user = user;
+        }
+    }
+
+    /**
+     * @param timeout milliseconds a session without channels is kept
+     */
+    public SessionRegistry(ScheduledExecutorService executor, long timeout) {
+        this.timeout = timeout;
+        long period = Math.max(1000, timeout / 4);
+        executor.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a session of the user authorized by its credentials on the channel.
+     */
+    public Session open(User user, Channel channel) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        // only the email is kept, the password never leaves the authorization
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes),
+                User.builder().id(user.getId()).email(user.getEmail()).rootPath(user.getRootPath()).build());
+        bind(session, channel);
+        sessions.put(session.token, session);
+        return session;
+    }
+
+    /**
+     * @return the session of the id bound to one more channel, null if there is no such session or
+     * it has expired
+     */
+    public Session resume(String token, Channel channel) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            if (isExpired(session, System.currentTimeMillis())) {
+                sessions.remove(token, session);
+                return null;
+            }
+            bind(session, channel);
+        }
+        log.info("Session of {} resumed", session.user.getEmail());
+        return session;
+    }
+
+    private void bind(Session session, Channel channel) {
+        synchronized (session) {
+            session.channels.add(channel);
+        }
+        channel.closeFuture().addListener(future -> {
+            synchronized (session) {
+                if (session.channels.remove(channel) && session.channels.isEmpty()) {
+                    session.idleSince = System.currentTimeMillis();
+                }
+            }
+        });
+    }
+
+    private boolean isExpired(Session session, long now) {
+        return session.channels.isEmpty() && now - session.idleSince > timeout;
+    }
+
+    /**
+     * Ends the sessions of the user and closes their channels, so changed or removed credentials
+     * stop authorizing them.
+     */
+    public void invalidate(String email) {
+        List<Channel> channels = new ArrayList<>();
+        sessions.values().removeIf(session -> {
+            if (!session.user.getEmail().equals(email)) {
+                return false;
+            }
+            synchronized (session) {
+                channels.addAll(session.channels);
+            }
+            return true;
+        });
+        channels.forEach(Channel::close);
+        log.info("Sessions of {} invalidated, {} channels closed", email, channels.size());
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        if (sessions.values().removeIf(session -> {
+            synchronized (session) {
+                return isExpired(session, now);
+            }
+        })) {
+            log.debug("Expired sessions removed, {} left", sessions.size());
+        }
+    }
+}
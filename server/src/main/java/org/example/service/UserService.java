@@ -3,10 +3,11 @@ package org.example.service;
 import org.example.model.user.User;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 public interface UserService {
 
     boolean isAuthorized(User user);
 
-    String getRootPath(User user) throws Exception;
+    Path getRootPath(User user) throws IOException;
 }
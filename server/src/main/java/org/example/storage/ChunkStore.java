@@ -0,0 +1,194 @@
+package org.example.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * File content stored as chunks named by their SHA-256, each written once however many files
+ * contain it. User trees hold {@link Manifest manifests} instead of the content. Reference counts
+ * are not stored, they are rebuilt from the manifests and upload checkpoints when the store is
+ * opened, and a chunk is deleted when its last reference is released.
+ */
+@Slf4j
+public class ChunkStore {
+
+    private final Path root;
+    private final String id;
+    private final boolean shared;
+    private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> owners = new ConcurrentHashMap<>();
+
+    /**
+     * @param shared whether a user may reference chunks first stored by other users. Otherwise a
+     *               client can only skip sending content it has uploaded itself, so knowing the
+     *               hash of a file is not enough to get a copy of it
+     */
+    public ChunkStore(Path root, boolean shared) throws IOException {
+        this.root = root;
+        this.shared = shared;
+        Files.createDirectories(root);
+        Path idFile = root.resolve("store.properties");
+        Properties properties = new Properties();
+        if (Files.exists(idFile)) {
+            try (InputStream is = Files.newInputStream(idFile)) {
+                properties.load(is);
+            }
+        } else {
+            properties.setProperty("id", UUID.randomUUID().toString());
+            try (OutputStream os = Files.newOutputStream(idFile)) {
+                properties.store(os, null);
+            }
+        }
+        id = properties.getProperty("id");
+    }
+
+    public static String hash(ByteBuffer content) {
+        return Hex.encodeHexString(DigestUtils.digest(DigestUtils.getSha256Digest(), content.duplicate()));
+    }
+
+    /**
+     * Id written into manifests of this store, so a file that just looks like a manifest can't
+     * be used to read chunks.
+     */
+    String getId() {
+        return id;
+    }
+
+    public boolean contains(String hash, String owner) {
+        Set<String> chunkOwners = owners.get(hash);
+        return refs.containsKey(hash) && (shared || chunkOwners != null && chunkOwners.contains(owner));
+    }
+
+    /**
+     * Stores the content unless a chunk with the same hash exists and takes a reference to it.
+     *
+     * @return the chunk hash
+     */
+    public String put(ByteBuffer content, String owner) throws IOException {
+        String hash = hash(content);
+        synchronized (this) {
+            if (ref(hash, owner)) {
+                return hash;
+            }
+        }
+        Path path = path(hash);
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(hash + "." + UUID.randomUUID() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = content.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        synchronized (this) {
+            if (ref(hash, owner)) {
+                Files.delete(tmp);
+            } else {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+                refs.put(hash, 1);
+                owners.computeIfAbsent(hash, h -> ConcurrentHashMap.newKeySet()).add(owner);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Takes a reference to an existing chunk.
+     *
+     * @return false if there is no such chunk
+     */
+    public synchronized boolean ref(String hash, String owner) {
+        if (refs.computeIfPresent(hash, (h, count) -> count + 1) == null) {
+            return false;
+        }
+        owners.computeIfAbsent(hash, h -> ConcurrentHashMap.newKeySet()).add(owner);
+        return true;
+    }
+
+    public synchronized void release(String hash) {
+        if (refs.computeIfPresent(hash, (h, count) -> count > 1 ? count - 1 : null) == null) {
+            owners.remove(hash);
+            try {
+                Files.deleteIfExists(path(hash));
+            } catch (IOException e) {
+                log.error("Chunk {} delete exception: {}", hash, e.getMessage(), e);
+            }
+        }
+    }
+
+    public void release(Manifest manifest) {
+        manifest.getChunks().forEach(chunk -> release(chunk.getHash()));
+    }
+
+    public Path path(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public long size(String hash) throws IOException {
+        return Files.size(path(hash));
+    }
+
+    /**
+     * Counts the references of every manifest under the storage root and of the given upload
+     * checkpoints (chunk hashes by owner), then deletes chunks nobody refers to.
+     */
+    public synchronized void rebuild(Path storageRoot, Map<String, List<String>> uploads) throws IOException {
+        refs.clear();
+        owners.clear();
+        Files.walkFileTree(storageRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.getFileName().toString().startsWith(".") && !dir.equals(storageRoot)
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Manifest manifest = Manifest.read(ChunkStore.this, file);
+                if (manifest != null) {
+                    String owner = storageRoot.relativize(file).getName(0).toString();
+                    manifest.getChunks().forEach(chunk -> count(chunk.getHash(), owner));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        uploads.forEach((owner, hashes) -> hashes.forEach(hash -> count(hash, owner)));
+        long deleted = 0;
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (Files.isRegularFile(file) && !file.getParent().equals(root) && !refs.containsKey(name)) {
+                    Files.delete(file);
+                    deleted++;
+                }
+            }
+        }
+        log.info("Chunk store opened at {}: {} chunks, {} unreferenced deleted", root, refs.size(), deleted);
+    }
+
+    private void count(String hash, String owner) {
+        refs.merge(hash, 1, Integer::sum);
+        owners.computeIfAbsent(hash, h -> ConcurrentHashMap.newKeySet()).add(owner);
+    }
+}
@@ -0,0 +1,77 @@
+package org.example.storage;
+
+import org.example.model.command.ChecksumType;
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Whole-file checksums sent with stream downloads, least recently used ones are evicted. Entries
+ * are keyed by the size and modification time of the file too, so a replaced file is read again.
+ * Uploads put the digest they were checked with, so a file downloaded after its upload is not read
+ * twice.
+ */
+public class DigestCache {
+
+    private final ChunkStore chunks;
+    private final Map<String, String> digests;
+
+    public DigestCache(ChunkStore chunks, int capacity) {
+        this.chunks = chunks;
+        this.digests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public void put(Path file, String digest) throws IOException {
+        ChecksumType type = FileChecksum.typeOf(digest);
+        if (type != null) {
+            String key = key(file, type);
+            synchronized (this) {
+                digests.put(key, digest);
+            }
+        }
+    }
+
+    /**
+     * @return the digest of the file content (of the manifest content when it is given)
+     */
+    public String digest(Path file, Manifest manifest, ChecksumType type) throws IOException {
+        if (manifest != null && FileChecksum.typeOf(manifest.getDigest()) == type) {
+            return manifest.getDigest();
+        }
+        String key = key(file, type);
+        synchronized (this) {
+            String digest = digests.get(key);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        String digest;
+        try (InputStream is = manifest != null ? manifest.openStream(chunks, 0) : Files.newInputStream(file)) {
+            FileChecksum checksum = new FileChecksum(type);
+            checksum.update(is, Long.MAX_VALUE);
+            digest = checksum.digest();
+        }
+        synchronized (this) {
+            digests.put(key, digest);
+        }
+        return digest;
+    }
+
+    private static String key(Path file, ChecksumType type) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return file.toAbsolutePath() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis() + "|" + type;
+    }
+}
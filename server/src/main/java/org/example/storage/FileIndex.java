@@ -0,0 +1,444 @@
+package org.example.storage;
+
+import org.example.model.dto.EntryDTO;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Metadata of every file and directory of one user, by path relative to the user root with
+ * {@code /} separators. Paths are kept sorted, so a subtree is a range of them. Entries have ids
+ * too, sizes, times and kinds are kept in arrays by id, so filters on them scan memory in order.
+ * <p>
+ * Names are indexed by their trigrams, and bigrams for two-letter words: each one of a lower-cased
+ * name maps to the ascending ids of the entries having it, and a name query intersects the lists of
+ * its own instead of looking at every entry. Ids of removed entries stay in the lists until there
+ * are more of them than of live ones, then ids are given again in path order and the lists are
+ * rebuilt.
+ * <p>
+ * The bytes and count of the files are summed as entries come and go, so the usage of a user is
+ * known without a walk of the tree.
+ */
+public class FileIndex {
+
+    private static final int VERSION = 1;
+    private static final int MIN_COMPACTION = 1024;
+    private static final byte REMOVED = 0;
+    private static final byte FILE = 1;
+    private static final byte DIRECTORY = 2;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<String, Node> paths = new TreeMap<>();
+    private final Map<Integer, Postings> trigrams = new HashMap<>();
+    private final Map<Integer, Postings> bigrams = new HashMap<>();
+    private Node[] nodes = new Node[1024];
+    private byte[] kinds = new byte[1024];
+    private long[] sizes = new long[1024];
+    private long[] modified = new long[1024];
+    private int nextId;
+    private int removed;
+    private long usedBytes;
+    private int fileCount;
+    private volatile boolean dirty;
+
+    private static final class Node {
+        private final int id;
+        private String path;
+        private final String name;
+        private final String checksum;
+
+        private Node(int id, String path, String checksum) {
+            this.id = id;
+            this.path = path;
+            this.name = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Ascending entry ids, appended only.
+     */
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private interface GramConsumer {
+        void accept(int gram);
+    }
+
+    /**
+     * Adds the entry or replaces the one of the same path.
+     *
+     * @param checksum digest of the content, null if not known
+     */
+    public void put(String path, boolean directory, long size, long modified, String checksum) {
+        lock.writeLock().lock();
+        try {
+            Node old = paths.remove(path);
+            if (old != null) {
+                remove(old);
+            }
+            add(path, directory ? DIRECTORY : FILE, size, modified, checksum);
+            dirty = true;
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entry and everything under it.
+     */
+    public void removeTree(String path) {
+        lock.writeLock().lock();
+        try {
+            Node node = paths.remove(path);
+            if (node != null) {
+                remove(node);
+            }
+            NavigableMap<String, Node> subtree = subtree(path);
+            subtree.values().forEach(this::remove);
+            subtree.clear();
+            dirty = true;
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the entry and everything under it to another path. Only the moved entry is indexed
+     * again, entries under it keep their names and ids.
+     */
+    public void move(String from, String to) {
+        lock.writeLock().lock();
+        try {
+            Node node = paths.remove(from);
+            if (node == null) {
+                return;
+            }
+            NavigableMap<String, Node> subtree = subtree(from);
+            List<Node> moved = new ArrayList<>(subtree.values());
+            subtree.clear();
+            for (Node child : moved) {
+                child.path = to + child.path.substring(from.length());
+                paths.put(child.path, child);
+            }
+            Node replaced = paths.remove(to);
+            if (replaced != null) {
+                remove(replaced);
+            }
+            byte kind = kinds[node.id];
+            remove(node);
+            add(to, kind, sizes[node.id], modified[node.id], node.checksum);
+            dirty = true;
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return paths.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return sum of the sizes of the files
+     */
+    public long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getFileCount() {
+        lock.readLock().lock();
+        try {
+            return fileCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A query matching more entries than the limit returns those first in id order, which is the
+     * path order of the entries indexed before the last compaction, and counts the rest.
+     *
+     * @param under path of the directory to search in, empty for the whole tree
+     * @return matching entries sorted by path, up to the limit, and the count of all of them
+     */
+    public SearchQuery.Result search(SearchQuery query, String under, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Node> matches = new ArrayList<>();
+            int total = 0;
+            int[] ids = candidates(query);
+            if (ids == null && !under.isEmpty()) {
+                // a directory is a range of paths, the scan is limited to it
+                for (Node node : subtree(under).values()) {
+                    if (matches(query, node) && total++ < limit) {
+                        matches.add(node);
+                    }
+                }
+            } else {
+                String prefix = under.isEmpty() ? null : under + "/";
+                boolean nameFree = prefix == null && query.isNameFree();
+                int count = ids != null ? ids.length : nextId;
+                for (int i = 0; i < count; i++) {
+                    int id = ids != null ? ids[i] : i;
+                    if (kinds[id] == REMOVED || !query.matches(kinds[id] == DIRECTORY, sizes[id], modified[id])) {
+                        continue;
+                    }
+                    if (nameFree) {
+                        // matches past the limit are counted without reading their nodes
+                        if (total++ < limit) {
+                            matches.add(nodes[id]);
+                        }
+                        continue;
+                    }
+                    Node node = nodes[id];
+                    if ((prefix == null || node.path.startsWith(prefix)) && query.matches(node.name, node.checksum)
+                            && total++ < limit) {
+                        matches.add(node);
+                    }
+                }
+                matches.sort((a, b) -> a.path.compareTo(b.path));
+            }
+            List<EntryDTO> entries = new ArrayList<>(matches.size());
+            for (Node node : matches) {
+                entries.add(new EntryDTO("/" + node.path, kinds[node.id] == DIRECTORY, sizes[node.id], modified[node.id]));
+            }
+            return new SearchQuery.Result(entries, total);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean matches(SearchQuery query, Node node) {
+        return query.matches(kinds[node.id] == DIRECTORY, sizes[node.id], modified[node.id])
+                && query.matches(node.name, node.checksum);
+    }
+
+    /**
+     * Ids of the entries that may match the name words of the query: the intersection of the lists
+     * of their trigrams, or bigrams for two-letter words.
+     *
+     * @return null if no word is long enough to have one
+     */
+    private int[] candidates(SearchQuery query) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : query.getTerms()) {
+            boolean[] missing = new boolean[1];
+            Map<Integer, Postings> grams = term.length() == 2 ? bigrams : trigrams;
+            forEachGram(term, term.length() == 2 ? 2 : 3, gram -> {
+                Postings postings = grams.get(gram);
+                if (postings == null) {
+                    missing[0] = true;
+                } else {
+                    lists.add(postings);
+                }
+            });
+            if (missing[0]) {
+                return new int[0];
+            }
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        int[] ids = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+        int count = ids.length;
+        for (int i = 1; i < lists.size() && count > 0; i++) {
+            count = intersect(ids, count, lists.get(i));
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Keeps the ids found in the other list too, both are ascending.
+     *
+     * @return number of ids kept at the start of the array
+     */
+    private static int intersect(int[] ids, int count, Postings other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < other.size; i++) {
+            while (j < other.size && other.ids[j] < ids[i]) {
+                j++;
+            }
+            if (j < other.size && other.ids[j] == ids[i]) {
+                ids[kept++] = ids[i];
+            }
+        }
+        return kept;
+    }
+
+    private NavigableMap<String, Node> subtree(String path) {
+        // every path under the directory starts with "path/", '0' is the character after '/'
+        return path.isEmpty() ? paths : paths.subMap(path + "/", true, path + "0", false);
+    }
+
+    private void add(String path, byte kind, long size, long time, String checksum) {
+        if (nextId == nodes.length) {
+            int length = nodes.length * 2;
+            nodes = Arrays.copyOf(nodes, length);
+            kinds = Arrays.copyOf(kinds, length);
+            sizes = Arrays.copyOf(sizes, length);
+            modified = Arrays.copyOf(modified, length);
+        }
+        Node node = new Node(nextId++, path, checksum);
+        nodes[node.id] = node;
+        kinds[node.id] = kind;
+        sizes[node.id] = size;
+        modified[node.id] = time;
+        if (kind == FILE) {
+            usedBytes += size;
+            fileCount++;
+        }
+        paths.put(path, node);
+        forEachGram(node.name, 3, gram -> trigrams.computeIfAbsent(gram, key -> new Postings()).add(node.id));
+        forEachGram(node.name, 2, gram -> bigrams.computeIfAbsent(gram, key -> new Postings()).add(node.id));
+    }
+
+    private void remove(Node node) {
+        if (kinds[node.id] == FILE) {
+            usedBytes -= sizes[node.id];
+            fileCount--;
+        }
+        nodes[node.id] = null;
+        kinds[node.id] = REMOVED;
+        removed++;
+    }
+
+    private void compactIfSparse() {
+        if (removed > MIN_COMPACTION && removed > paths.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Gives live entries new ids in path order and rebuilds the lists without removed ones.
+     */
+    void compact() {
+        lock.writeLock().lock();
+        try {
+            byte[] oldKinds = kinds;
+            long[] oldSizes = sizes;
+            long[] oldModified = modified;
+            List<Node> live = new ArrayList<>(paths.values());
+            int length = Math.max(1024, live.size() * 2);
+            nodes = new Node[length];
+            kinds = new byte[length];
+            sizes = new long[length];
+            modified = new long[length];
+            paths.clear();
+            trigrams.clear();
+            bigrams.clear();
+            nextId = 0;
+            removed = 0;
+            usedBytes = 0;
+            fileCount = 0;
+            for (Node node : live) {
+                add(node.path, oldKinds[node.id], oldSizes[node.id], oldModified[node.id], node.checksum);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Substrings of n letters of a lower-cased string, each folded into an int. One repeated in the
+     * string is given once.
+     */
+    private static void forEachGram(String s, int n, GramConsumer consumer) {
+        if (s.length() < n) {
+            return;
+        }
+        int[] seen = new int[s.length() - n + 1];
+        int count = 0;
+        next:
+        for (int i = 0; i + n <= s.length(); i++) {
+            // a collision of two folded substrings only adds candidates that fail the name check
+            long packed = n == 2 ? (long) s.charAt(i) << 16 | s.charAt(i + 1)
+                    : (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+            int gram = (int) (packed ^ (packed >>> 29));
+            for (int j = 0; j < count; j++) {
+                if (seen[j] == gram) {
+                    continue next;
+                }
+            }
+            seen[count++] = gram;
+            consumer.accept(gram);
+        }
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            dirty = false;
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            for (Node node : paths.values()) {
+                out.writeUTF(node.path);
+                out.writeBoolean(kinds[node.id] == DIRECTORY);
+                out.writeLong(sizes[node.id]);
+                out.writeLong(modified[node.id]);
+                out.writeUTF(node.checksum == null ? "" : node.checksum);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Entries of a snapshot come in path order, so are their ids.
+     */
+    static FileIndex read(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unknown index version");
+        }
+        FileIndex index = new FileIndex();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            boolean directory = in.readBoolean();
+            long size = in.readLong();
+            long modified = in.readLong();
+            String checksum = in.readUTF();
+            index.put(path, directory, size, modified, checksum.isEmpty() ? null : checksum);
+        }
+        index.dirty = false;
+        return index;
+    }
+}
@@ -0,0 +1,196 @@
+package org.example.storage;
+
+import lombok.Value;
+import org.example.model.command.SortType;
+import org.example.model.dto.EntryDTO;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entries of one directory. Pages are read in a sort order, directories first, and continue after
+ * a cursor naming the last entry of the previous page, so entries added or removed between two
+ * pages don't shift the next one.
+ */
+public class Listing {
+
+    private final List<EntryDTO> entries;
+    private final Map<SortType, View> views = new EnumMap<>(SortType.class);
+
+    private Listing(List<EntryDTO> entries) {
+        this.entries = entries;
+    }
+
+    @Value
+    public static class Page {
+        List<EntryDTO> entries;
+        String cursor;
+        int total;
+    }
+
+    /**
+     * Reads the directory with one attribute lookup per entry, links are followed. Manifests of
+     * the chunk store are listed with the size of their content.
+     */
+    public static Listing read(Path dir, ChunkStore chunks) throws IOException {
+        List<EntryDTO> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (!attributes.isDirectory() && !attributes.isRegularFile()) {
+                    continue;
+                }
+                long size = attributes.size();
+                if (chunks != null && attributes.isRegularFile()) {
+                    Manifest manifest = Manifest.read(chunks, entry);
+                    size = manifest != null ? manifest.getSize() : size;
+                }
+                entries.add(new EntryDTO(entry.getFileName().toString(), attributes.isDirectory(), size,
+                        attributes.lastModifiedTime().toMillis()));
+            }
+        }
+        return new Listing(Collections.unmodifiableList(entries));
+    }
+
+    public List<String> getDirectories() {
+        List<String> directories = new ArrayList<>();
+        entries.stream().filter(EntryDTO::isDirectory).forEach(entry -> directories.add(entry.getName()));
+        return directories;
+    }
+
+    public List<String> getFiles() {
+        List<String> files = new ArrayList<>();
+        entries.stream().filter(entry -> !entry.isDirectory()).forEach(entry -> files.add(entry.getName()));
+        return files;
+    }
+
+    /**
+     * @param prefix only entries whose name starts with it, null for all
+     * @param cursor cursor of the previous page, null for the first page
+     * @return the page with the cursor of the next one (null after the last page), the total
+     * number of matching entries is counted for the first page only
+     */
+    public Page page(SortType sort, boolean descending, String prefix, String cursor, int limit) {
+        View view;
+        synchronized (views) {
+            view = views.computeIfAbsent(sort, View::new);
+        }
+        int size = entries.size();
+        int index = cursor == null ? 0 : view.after(decode(cursor), descending);
+        List<EntryDTO> page = new ArrayList<>(Math.min(limit, size - index));
+        for (; index < size && page.size() < limit; index++) {
+            EntryDTO entry = view.get(index, descending);
+            if (prefix == null || entry.getName().startsWith(prefix)) {
+                page.add(entry);
+            }
+        }
+        String next = null;
+        for (int i = index; i < size; i++) {
+            if (prefix == null || view.get(i, descending).getName().startsWith(prefix)) {
+                next = encode(page.get(page.size() - 1));
+                break;
+            }
+        }
+        int total = -1;
+        if (cursor == null) {
+            total = prefix == null ? size : (int) entries.stream().filter(entry -> entry.getName().startsWith(prefix)).count();
+        }
+        return new Page(page, next, total);
+    }
+
+    /**
+     * Rough heap size with the sorted views, used to cap the memory of cached listings.
+     */
+    long weight() {
+        long weight = 128;
+        for (EntryDTO entry : entries) {
+            weight += 96 + SortType.values().length * 8 + 2L * entry.getName().length();
+        }
+        return weight;
+    }
+
+    private static String encode(EntryDTO entry) {
+        return (entry.isDirectory() ? "d" : "f") + ":" + entry.getSize() + ":" + entry.getModified() + ":" + entry.getName();
+    }
+
+    private static EntryDTO decode(String cursor) {
+        String[] fields = cursor.split(":", 4);
+        return new EntryDTO(fields[3], fields[0].equals("d"), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+    }
+
+    /**
+     * Directories and files sorted by one key, read forwards or backwards.
+     */
+    private class View {
+        private final Comparator<EntryDTO> order;
+        private final List<EntryDTO> directories = new ArrayList<>();
+        private final List<EntryDTO> files = new ArrayList<>();
+
+        View(SortType sort) {
+            Comparator<EntryDTO> key;
+            switch (sort) {
+                case SIZE:
+                    key = Comparator.comparingLong(EntryDTO::getSize);
+                    break;
+                case MODIFIED:
+                    key = Comparator.comparingLong(EntryDTO::getModified);
+                    break;
+                default:
+                    key = (a, b) -> 0;
+            }
+            order = key.thenComparing(EntryDTO::getName);
+            for (EntryDTO entry : entries) {
+                (entry.isDirectory() ? directories : files).add(entry);
+            }
+            directories.sort(order);
+            files.sort(order);
+        }
+
+        EntryDTO get(int index, boolean descending) {
+            int count = directories.size();
+            if (index < count) {
+                return directories.get(descending ? count - 1 - index : index);
+            }
+            index -= count;
+            return files.get(descending ? files.size() - 1 - index : index);
+        }
+
+        /**
+         * @return index of the first entry that comes after the given one
+         */
+        int after(EntryDTO last, boolean descending) {
+            int low = 0;
+            int high = entries.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(get(middle, descending), last, descending) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private int compare(EntryDTO a, EntryDTO b, boolean descending) {
+            if (a.isDirectory() != b.isDirectory()) {
+                return a.isDirectory() ? -1 : 1;
+            }
+            return descending ? order.compare(b, a) : order.compare(a, b);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.example.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Listings of recently opened directories, so opening a directory again doesn't scan it again.
+ * The least recently used listings are evicted when a user has more than {@code userEntries} of
+ * them or when all of them take more than {@code maxBytes}. A listing is dropped when the server
+ * changes its directory, and every cached directory is watched, so changes made outside the
+ * server drop it too, sizes and modification times included.
+ */
+@Slf4j
+public class ListingCache {
+
+    private final ChunkStore chunks;
+    private final long maxBytes;
+    private final int userEntries;
+    private final WatchService watcher;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> userCounts = new HashMap<>();
+    private long bytes;
+    private long version;
+
+    private static class Entry {
+        final String user;
+        final Listing listing;
+        final long weight;
+        final WatchKey key;
+
+        Entry(String user, Listing listing, WatchKey key) {
+            this.user = user;
+            this.listing = listing;
+            this.weight = listing.weight();
+            this.key = key;
+        }
+    }
+
+    public ListingCache(ChunkStore chunks, long maxBytes, int userEntries) throws IOException {
+        this.chunks = chunks;
+        this.maxBytes = maxBytes;
+        this.userEntries = userEntries;
+        watcher = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::watch, "listing-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Listing list(String user, Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        long start;
+        synchronized (this) {
+            Entry entry = entries.get(dir);
+            if (entry != null) {
+                return entry.listing;
+            }
+            start = version;
+        }
+        // registered before the scan, so a change made during it is reported
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Listing listing = Listing.read(dir, chunks);
+        synchronized (this) {
+            if (version == start && !entries.containsKey(dir)) {
+                put(dir, new Entry(user, listing, key));
+            } else if (!entries.containsKey(dir)) {
+                key.cancel();
+            }
+        }
+        return listing;
+    }
+
+    private void put(Path dir, Entry entry) {
+        entries.put(dir, entry);
+        bytes += entry.weight;
+        if (userCounts.merge(entry.user, 1, Integer::sum) > userEntries) {
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+                Entry eldest = iterator.next();
+                if (eldest.user.equals(entry.user)) {
+                    iterator.remove();
+                    removed(eldest);
+                    break;
+                }
+            }
+        }
+        for (Iterator<Entry> iterator = entries.values().iterator(); bytes > maxBytes && iterator.hasNext(); ) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            removed(eldest);
+        }
+    }
+
+    private void removed(Entry entry) {
+        bytes -= entry.weight;
+        userCounts.computeIfPresent(entry.user, (user, count) -> count > 1 ? count - 1 : null);
+        entry.key.cancel();
+    }
+
+    /**
+     * Drops the listing of the directory.
+     */
+    public synchronized void invalidate(Path dir) {
+        version++;
+        Entry entry = entries.remove(dir.toAbsolutePath().normalize());
+        if (entry != null) {
+            removed(entry);
+        }
+    }
+
+    /**
+     * Drops the listings of the directory and of every directory under it.
+     */
+    public synchronized void invalidateTree(Path root) {
+        version++;
+        Path normalized = root.toAbsolutePath().normalize();
+        for (Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Path, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(normalized)) {
+                iterator.remove();
+                removed(entry.getValue());
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                key.pollEvents();
+                invalidate((Path) key.watchable());
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.info("Listing watcher stopped");
+        }
+    }
+}
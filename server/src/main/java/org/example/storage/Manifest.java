@@ -0,0 +1,196 @@
+package org.example.storage;
+
+import lombok.Getter;
+import lombok.Value;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * File of a user tree whose content is kept in a {@link ChunkStore}.
+ * <pre>
+ * #manifest storeId
+ * size digest
+ * (hash length)*
+ * </pre>
+ * The digest is an MD5 or a typed checksum, in the format the file was uploaded with.
+ */
+@Getter
+public class Manifest {
+
+    private static final String HEADER = "#manifest ";
+
+    private final long size;
+    private final String digest;
+    private final List<Chunk> chunks;
+
+    public Manifest(long size, String digest, List<Chunk> chunks) {
+        this.size = size;
+        this.digest = digest;
+        this.chunks = Collections.unmodifiableList(chunks);
+    }
+
+    @Value
+    public static class Chunk {
+        String hash;
+        long length;
+    }
+
+    /**
+     * @return null if the file is not a manifest of the store
+     */
+    public static Manifest read(ChunkStore store, Path file) throws IOException {
+        if (store == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        String header = HEADER + store.getId();
+        try (InputStream is = Files.newInputStream(file)) {
+            byte[] bytes = new byte[header.length() + 1];
+            int read = 0;
+            for (int n; read < bytes.length && (n = is.read(bytes, read, bytes.length - read)) > 0; ) {
+                read += n;
+            }
+            if (read < bytes.length || !new String(bytes, StandardCharsets.UTF_8).equals(header + "\n")) {
+                return null;
+            }
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            String[] summary = reader.readLine().split(" ");
+            List<Chunk> chunks = new ArrayList<>();
+            for (String line; (line = reader.readLine()) != null && !line.isEmpty(); ) {
+                String[] chunk = line.split(" ");
+                chunks.add(new Chunk(chunk[0], Long.parseLong(chunk[1])));
+            }
+            return new Manifest(Long.parseLong(summary[0]), summary[1], chunks);
+        }
+    }
+
+    public void write(ChunkStore store, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".manifest");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + store.getId() + "\n");
+            writer.write(size + " " + digest + "\n");
+            for (Chunk chunk : chunks) {
+                writer.write(chunk.getHash() + " " + chunk.getLength() + "\n");
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Content from the offset as one stream over the chunk files, each opened when it is reached.
+     */
+    public InputStream openStream(ChunkStore store, long offset) {
+        Iterator<Chunk> iterator = chunks.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private long start;
+            private Chunk next = advance();
+
+            private Chunk advance() {
+                while (iterator.hasNext()) {
+                    Chunk chunk = iterator.next();
+                    start += chunk.getLength();
+                    if (start > offset) {
+                        return chunk;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasMoreElements() {
+                return next != null;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                Chunk chunk = next;
+                long chunkStart = start - chunk.getLength();
+                next = advance();
+                try {
+                    FileChannel channel = FileChannel.open(store.path(chunk.getHash()));
+                    channel.position(Math.max(0, offset - chunkStart));
+                    return Channels.newInputStream(channel);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Content from the offset as one channel over the chunk files, for reads into direct buffers.
+     */
+    public ReadableByteChannel openChannel(ChunkStore store, long offset) {
+        return new ChunkChannel(store, offset);
+    }
+
+    private class ChunkChannel implements ReadableByteChannel {
+        private final ChunkStore store;
+        private int index;
+        private long position;
+        private FileChannel current;
+        private boolean open = true;
+
+        private ChunkChannel(ChunkStore store, long offset) {
+            this.store = store;
+            while (index < chunks.size() && offset >= chunks.get(index).getLength()) {
+                offset -= chunks.get(index++).getLength();
+            }
+            this.position = offset;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (true) {
+                if (current == null) {
+                    if (index >= chunks.size()) {
+                        return -1;
+                    }
+                    current = FileChannel.open(store.path(chunks.get(index).getHash()));
+                    current.position(position);
+                    position = 0;
+                }
+                int read = current.read(dst);
+                if (read >= 0) {
+                    return read;
+                }
+                current.close();
+                current = null;
+                index++;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
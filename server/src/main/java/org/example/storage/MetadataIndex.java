@@ -0,0 +1,189 @@
+package org.example.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File indexes of the users, kept up to date by the commands that change the user trees, so a
+ * search never walks the tree. The index of a user is loaded from its snapshot on the first use,
+ * or built by one walk of the tree if there is none. Changed indexes are written back now and then
+ * and on {@link #flush}; changes made after the last snapshot of a crashed server are lost, a
+ * snapshot is deleted to have the index built again.
+ */
+@Slf4j
+public class MetadataIndex {
+
+    private final Path dir;
+    private final ChunkStore chunks;
+    private final Map<String, FileIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * @param dir           directory of the snapshots
+     * @param executor      runs the writes of the changed indexes, blocked while they last
+     * @param flushInterval milliseconds between writes of the changed indexes
+     */
+    public MetadataIndex(Path dir, ChunkStore chunks, ScheduledExecutorService executor, long flushInterval) throws IOException {
+        this.dir = dir;
+        this.chunks = chunks;
+        Files.createDirectories(dir);
+        executor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Indexes a new file or directory, or the new content of a file.
+     *
+     * @param checksum whole-file digest, null if not known
+     */
+    public void created(String user, Path root, Path path, String checksum) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        get(user, root).put(key(root, path), attributes.isDirectory(), size(path, attributes),
+                attributes.lastModifiedTime().toMillis(), checksum);
+    }
+
+    public void deleted(String user, Path root, Path path) throws IOException {
+        get(user, root).removeTree(key(root, path));
+    }
+
+    public void moved(String user, Path root, Path from, Path to) throws IOException {
+        get(user, root).move(key(root, from), key(root, to));
+    }
+
+    /**
+     * @param limit most entries returned, the total counts all of them
+     */
+    public SearchQuery.Result search(String user, Path root, SearchQuery query, int limit) throws IOException {
+        return get(user, root).search(query, query.getDirectory(), limit);
+    }
+
+    /**
+     * @return users whose index is in memory, with their indexes
+     */
+    public Map<String, FileIndex> getLoaded() {
+        return Collections.unmodifiableMap(indexes);
+    }
+
+    /**
+     * Writes the snapshots of the indexes changed since their last one.
+     */
+    public void flush() {
+        indexes.forEach((user, index) -> {
+            if (index.isDirty()) {
+                try {
+                    write(user, index);
+                } catch (IOException e) {
+                    log.error("Index snapshot of {} failed: {}", user, e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the index of the user, loaded or built on the first call
+     */
+    public FileIndex get(String user, Path root) throws IOException {
+        try {
+            return indexes.computeIfAbsent(user, key -> {
+                try {
+                    return load(user, root);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private FileIndex load(String user, Path root) throws IOException {
+        Path snapshot = dir.resolve(user + ".idx");
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                FileIndex index = FileIndex.read(in);
+                log.info("Index of {} loaded, {} entries", user, index.size());
+                return index;
+            } catch (IOException e) {
+                log.warn("Index snapshot of {} is unreadable, building it again: {}", user, e.getMessage());
+            }
+        }
+        long start = System.currentTimeMillis();
+        FileIndex index = build(root);
+        write(user, index);
+        log.info("Index of {} built in {} ms, {} entries", user, System.currentTimeMillis() - start, index.size());
+        return index;
+    }
+
+    private FileIndex build(Path root) throws IOException {
+        FileIndex index = new FileIndex();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (!dir.equals(root)) {
+                    index.put(key(root, dir), true, 0, attributes.lastModifiedTime().toMillis(), null);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isRegularFile()) {
+                    Manifest manifest = chunks != null ? Manifest.read(chunks, file) : null;
+                    index.put(key(root, file), false, manifest != null ? manifest.getSize() : attributes.size(),
+                            attributes.lastModifiedTime().toMillis(), manifest != null ? manifest.getDigest() : null);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        // ids in path order, like those of a loaded snapshot
+        index.compact();
+        return index;
+    }
+
+    private void write(String user, FileIndex index) throws IOException {
+        Path snapshot = dir.resolve(user + ".idx");
+        Path tmp = dir.resolve(user + ".idx.tmp");
+        synchronized (index) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                index.write(out);
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private long size(Path path, BasicFileAttributes attributes) throws IOException {
+        if (attributes.isDirectory()) {
+            return 0;
+        }
+        Manifest manifest = chunks != null ? Manifest.read(chunks, path) : null;
+        return manifest != null ? manifest.getSize() : attributes.size();
+    }
+
+    private static String key(Path root, Path path) {
+        StringBuilder sb = new StringBuilder();
+        for (Path name : root.relativize(path)) {
+            sb.append(sb.length() == 0 ? "" : "/").append(name);
+        }
+        return sb.toString();
+    }
+}
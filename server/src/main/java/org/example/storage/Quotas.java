@@ -0,0 +1,197 @@
+package org.example.storage;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage quotas of the users. An upload is let in at its start if the stored bytes, the bytes
+ * reserved by the other uploads of the user in progress and its declared size fit in the quota; its
+ * size stays reserved until it completes or is aborted. Stored bytes are the file sizes summed by
+ * the {@link MetadataIndex}, so a check reads two counters whatever the number of files.
+ * <p>
+ * Quotas of single users are kept in a properties file of the storage, email to bytes, the others
+ * have the default one.
+ */
+@Slf4j
+public class Quotas implements QuotasMXBean {
+
+    private final MetadataIndex index;
+    private final Path file;
+    private volatile long defaultQuota;
+    private final Map<String, Long> quotas = new ConcurrentHashMap<>();
+    private final Map<String, Reservations> reservations = new ConcurrentHashMap<>();
+
+    private static final class Reservations {
+        private final Map<String, Long> uploads = new HashMap<>();
+        private long bytes;
+    }
+
+    @Value
+    public static class Usage {
+        long used;
+        long reserved;
+        int files;
+        long quota;
+    }
+
+    /**
+     * @param defaultQuota bytes of a user without a quota of its own, 0 for none
+     */
+    public Quotas(MetadataIndex index, Path file, long defaultQuota) throws IOException {
+        this.index = index;
+        this.file = file;
+        this.defaultQuota = defaultQuota;
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (InputStream is = Files.newInputStream(file)) {
+                properties.load(is);
+            }
+            properties.stringPropertyNames().forEach(user -> quotas.put(user, Long.parseLong(properties.getProperty(user))));
+        }
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=Quotas"));
+        } catch (JMException e) {
+            log.error("Quotas MBean registration exception: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reserves the size of an upload if it fits in the quota. An upload reserved already is let in
+     * again without a check, so every chunk of it may ask.
+     *
+     * @param key upload key, unique among the uploads of the user
+     * @return false if the upload doesn't fit
+     */
+    public boolean reserve(String user, Path root, String key, long size) throws IOException {
+        Reservations reserved = reservations.computeIfAbsent(user, u -> new Reservations());
+        synchronized (reserved) {
+            if (reserved.uploads.containsKey(key)) {
+                return true;
+            }
+        }
+        long quota = quota(user);
+        // the index is loaded out of the lock, its first load may walk the tree
+        long used = quota > 0 ? index.get(user, root).getUsedBytes() : 0;
+        synchronized (reserved) {
+            if (reserved.uploads.containsKey(key)) {
+                return true;
+            }
+            if (quota > 0 && used + reserved.bytes + size > quota) {
+                log.info("Upload of {} bytes refused to {}, {} used, {} reserved of {}", size, user, used, reserved.bytes, quota);
+                return false;
+            }
+            reserved.uploads.put(key, size);
+            reserved.bytes += size;
+            return true;
+        }
+    }
+
+    /**
+     * Frees the size reserved for an upload, once it is stored or given up.
+     */
+    public void release(String user, String key) {
+        Reservations reserved = reservations.get(user);
+        if (reserved != null) {
+            synchronized (reserved) {
+                Long size = reserved.uploads.remove(key);
+                if (size != null) {
+                    reserved.bytes -= size;
+                }
+            }
+        }
+    }
+
+    public Usage usage(String user, Path root) throws IOException {
+        FileIndex files = index.get(user, root);
+        Reservations reserved = reservations.get(user);
+        long bytes = 0;
+        if (reserved != null) {
+            synchronized (reserved) {
+                bytes = reserved.bytes;
+            }
+        }
+        return new Usage(files.getUsedBytes(), bytes, files.getFileCount(), quota(user));
+    }
+
+    private long quota(String user) {
+        return quotas.getOrDefault(user, defaultQuota);
+    }
+
+    @Override
+    public long getDefaultQuota() {
+        return defaultQuota;
+    }
+
+    @Override
+    public void setDefaultQuota(long bytes) {
+        defaultQuota = bytes;
+    }
+
+    @Override
+    public Map<String, Long> getUserQuotas() {
+        return new TreeMap<>(quotas);
+    }
+
+    @Override
+    public synchronized void setUserQuota(String user, long bytes) throws IOException {
+        quotas.put(user, bytes);
+        save();
+        log.info("Quota of {} set to {} bytes", user, bytes);
+    }
+
+    @Override
+    public synchronized void clearUserQuota(String user) throws IOException {
+        if (quotas.remove(user) != null) {
+            save();
+            log.info("Quota of {} cleared", user);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getUsage() {
+        Map<String, Long> usage = new TreeMap<>();
+        index.getLoaded().forEach((user, files) -> usage.put(user, files.getUsedBytes()));
+        return usage;
+    }
+
+    @Override
+    public Map<String, Long> getReserved() {
+        Map<String, Long> reserved = new TreeMap<>();
+        reservations.forEach((user, uploads) -> {
+            synchronized (uploads) {
+                if (uploads.bytes > 0) {
+                    reserved.put(user, uploads.bytes);
+                }
+            }
+        });
+        return reserved;
+    }
+
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        quotas.forEach((user, bytes) -> properties.setProperty(user, Long.toString(bytes)));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            properties.store(os, "user quotas in bytes");
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
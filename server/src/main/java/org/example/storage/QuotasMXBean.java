@@ -0,0 +1,34 @@
+package org.example.storage;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * JMX view of {@link Quotas}, published as {@code org.example:type=Quotas}. Quotas are in bytes,
+ * 0 for none.
+ */
+public interface QuotasMXBean {
+
+    long getDefaultQuota();
+
+    void setDefaultQuota(long bytes);
+
+    /**
+     * @return quotas set for single users
+     */
+    Map<String, Long> getUserQuotas();
+
+    void setUserQuota(String user, long bytes) throws IOException;
+
+    void clearUserQuota(String user) throws IOException;
+
+    /**
+     * @return bytes stored by the users whose index is loaded
+     */
+    Map<String, Long> getUsage();
+
+    /**
+     * @return bytes reserved by uploads in progress, by user
+     */
+    Map<String, Long> getReserved();
+}
@@ -0,0 +1,157 @@
+package org.example.storage;
+
+import lombok.Getter;
+import lombok.Value;
+import org.example.model.dto.EntryDTO;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Query of the {@code SEARCH} command, words separated by spaces. Plain words must all be found in
+ * the name, ignoring case; the others are filters:
+ * <pre>
+ * size&gt;10M size&lt;1G           size bounds, with an optional K, M or G suffix
+ * after:2021-06-01 before:...  modification date bounds
+ * type:file type:dir           kind of entry
+ * checksum:crc32c:0a1b2c3d     whole-file digest, known for uploaded files
+ * in:/photos/2021              directory to search in
+ * </pre>
+ */
+public class SearchQuery {
+
+    @Getter
+    private final List<String> terms = new ArrayList<>();
+    @Getter
+    private String directory = "";
+    private long minSize = -1;
+    private long maxSize = Long.MAX_VALUE;
+    private long after = Long.MIN_VALUE;
+    private long before = Long.MAX_VALUE;
+    private Boolean directories;
+    private String checksum;
+
+    @Value
+    public static class Result {
+        List<EntryDTO> entries;
+        int total;
+    }
+
+    /**
+     * @throws IllegalArgumentException with a message for the user if a word can't be read
+     */
+    public static SearchQuery parse(String query) {
+        SearchQuery parsed = new SearchQuery();
+        if (query == null || query.trim().isEmpty()) {
+            throw new IllegalArgumentException("Empty search query");
+        }
+        for (String word : query.trim().split("\\s+")) {
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("size>")) {
+                parsed.minSize = size(word.substring(5)) + 1;
+            } else if (lower.startsWith("size<")) {
+                parsed.maxSize = size(word.substring(5)) - 1;
+            } else if (lower.startsWith("after:")) {
+                parsed.after = date(word.substring(6)) + 86_400_000L;
+            } else if (lower.startsWith("before:")) {
+                parsed.before = date(word.substring(7));
+            } else if (lower.equals("type:file") || lower.equals("type:dir")) {
+                parsed.directories = lower.equals("type:dir");
+            } else if (lower.startsWith("checksum:")) {
+                parsed.checksum = lower.substring(9);
+            } else if (lower.startsWith("in:")) {
+                parsed.directory = directory(word.substring(3));
+            } else {
+                parsed.terms.add(lower);
+            }
+        }
+        // longest words first, their trigrams are the rarest
+        Collections.sort(parsed.terms, (a, b) -> b.length() - a.length());
+        return parsed;
+    }
+
+    /**
+     * @return true if the name and checksum of an entry need no check
+     */
+    boolean isNameFree() {
+        return terms.isEmpty() && checksum == null;
+    }
+
+    /**
+     * Directories have no size, a size bound leaves them out.
+     */
+    boolean matches(boolean directory, long size, long modified) {
+        return (directories == null || directories == directory)
+                && (minSize < 0 && maxSize == Long.MAX_VALUE || !directory && size >= minSize && size <= maxSize)
+                && modified >= after && modified < before;
+    }
+
+    /**
+     * @param name lower-cased name of the entry
+     */
+    boolean matches(String name, String checksum) {
+        if (this.checksum != null && !this.checksum.equalsIgnoreCase(checksum)) {
+            return false;
+        }
+        for (String term : terms) {
+            if (!name.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long size(String value) {
+        long unit = 1;
+        String number = value;
+        if (!value.isEmpty()) {
+            switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+                case 'K':
+                    unit = 1024;
+                    break;
+                case 'M':
+                    unit = 1024 * 1024;
+                    break;
+                case 'G':
+                    unit = 1024 * 1024 * 1024;
+                    break;
+            }
+            number = unit == 1 ? value : value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(number) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong size in search query: " + value);
+        }
+    }
+
+    /**
+     * @return start of the day in the server time zone
+     */
+    private static long date(String value) {
+        try {
+            return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Wrong date in search query, expected YYYY-MM-DD: " + value);
+        }
+    }
+
+    private static String directory(String value) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : value.split("/")) {
+            if (name.isEmpty() || sb.length() == 0 && name.equals("root")) {
+                continue;
+            }
+            if (name.equals(".") || name.equals("..")) {
+                throw new IllegalArgumentException("Wrong directory in search query: " + value);
+            }
+            sb.append(sb.length() == 0 ? "" : "/").append(name);
+        }
+        return sb.toString();
+    }
+}
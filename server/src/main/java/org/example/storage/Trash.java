@@ -0,0 +1,177 @@
+package org.example.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes trees in the background. A tree is first renamed into the trash directory, so it is gone
+ * from the user tree when {@link #delete} returns, and then deleted by a pool of threads, one task
+ * per directory. Trees left in the trash by a restart are deleted when the trash is opened, the
+ * chunk store did not count their manifests, so no references are released for them.
+ */
+@Slf4j
+public class Trash {
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final Path root;
+    private final ChunkStore chunks;
+    private final ForkJoinPool pool;
+
+    public interface Progress {
+        /**
+         * Called from the deleting threads now and then, and once with deleted == total at the end.
+         */
+        void update(long deleted, long total);
+    }
+
+    public Trash(Path root, ChunkStore chunks, int threads) throws IOException {
+        this.root = root;
+        this.chunks = chunks;
+        this.pool = new ForkJoinPool(threads);
+        Files.createDirectories(root);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path left : stream) {
+                pool.execute(() -> reclaim(left, false, null));
+            }
+        }
+    }
+
+    /**
+     * Moves the tree to the trash and deletes it in the background. A tree on another file system
+     * than the trash is deleted where it is.
+     *
+     * @param progress null if nobody waits for the deletion
+     */
+    public void delete(Path tree, Progress progress) throws IOException {
+        Path trashed = root.resolve(UUID.randomUUID().toString());
+        try {
+            Files.move(tree, trashed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            trashed = tree;
+        }
+        Path target = trashed;
+        pool.execute(() -> reclaim(target, chunks != null, progress));
+    }
+
+    private void reclaim(Path tree, boolean release, Progress progress) {
+        long total = progress != null ? count(tree) : 0;
+        Reclaim reclaim = new Reclaim(release, progress, total);
+        reclaim.new DeleteDirectory(tree).invoke();
+        log.info("Deleted {}: {} entries", tree, reclaim.deleted.get());
+        if (progress != null) {
+            progress.update(total, total);
+        }
+    }
+
+    private static long count(Path tree) {
+        AtomicLong count = new AtomicLong();
+        try {
+            Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    count.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    count.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.error("Trash count exception: {}", e.getMessage(), e);
+        }
+        return count.get();
+    }
+
+    /**
+     * State of one deletion shared by its directory tasks. Entries that can't be deleted are
+     * logged and left in the trash until the next restart.
+     */
+    private class Reclaim {
+        private final boolean release;
+        private final Progress progress;
+        private final long total;
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong reported = new AtomicLong(System.nanoTime());
+
+        Reclaim(boolean release, Progress progress, long total) {
+            this.release = release;
+            this.progress = progress;
+            this.total = total;
+        }
+
+        private void delete(Path path) {
+            try {
+                Manifest manifest = release && !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) ? Manifest.read(chunks, path) : null;
+                Files.delete(path);
+                if (manifest != null) {
+                    chunks.release(manifest);
+                }
+            } catch (IOException e) {
+                log.error("Trash delete exception: {}", e.getMessage(), e);
+                return;
+            }
+            long count = deleted.incrementAndGet();
+            long last = reported.get();
+            long now = System.nanoTime();
+            if (progress != null && now - last >= PROGRESS_INTERVAL && reported.compareAndSet(last, now)) {
+                progress.update(Math.min(count, total), total);
+            }
+        }
+
+        private class DeleteDirectory extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Path dir;
+
+            DeleteDirectory(Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                    List<DeleteDirectory> subdirectories = new ArrayList<>();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                        for (Path entry : stream) {
+                            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                                subdirectories.add(new DeleteDirectory(entry));
+                            } else {
+                                delete(entry);
+                            }
+                        }
+                    } catch (IOException e) {
+                        log.error("Trash list exception: {}", e.getMessage(), e);
+                    }
+                    invokeAll(subdirectories);
+                }
+                delete(dir);
+            }
+        }
+    }
+}
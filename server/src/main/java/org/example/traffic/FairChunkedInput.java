@@ -0,0 +1,82 @@
+package org.example.traffic;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Chunked input whose chunks wait for their turn in the {@link FairScheduler}. While a chunk waits,
+ * no chunk is returned and the {@link ChunkedWriteHandler} suspends, the grant resumes it.
+ */
+class FairChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private final ChunkedInput<ByteBuf> input;
+    private final FairScheduler scheduler;
+    private final String user;
+    private final Channel channel;
+    private final int chunkSize;
+    private FairScheduler.Ticket ticket;
+    private volatile boolean granted;
+
+    FairChunkedInput(ChunkedInput<ByteBuf> input, FairScheduler scheduler, String user, Channel channel, int chunkSize) {
+        this.input = input;
+        this.scheduler = scheduler;
+        this.user = user;
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return input.isEndOfInput();
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (ticket != null) {
+            scheduler.cancel(ticket);
+            ticket = null;
+        }
+        input.close();
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (ticket == null) {
+            long bytes = input.length() < 0 ? chunkSize : Math.min(chunkSize, input.length() - input.progress());
+            // resumed from a task, the grant may run inside this call while the handler is flushing
+            ticket = scheduler.submit(user, bytes, () -> {
+                granted = true;
+                ChunkedWriteHandler writer = channel.pipeline().get(ChunkedWriteHandler.class);
+                if (writer != null) {
+                    channel.eventLoop().execute(writer::resumeTransfer);
+                }
+            });
+        }
+        if (!granted) {
+            return null;
+        }
+        granted = false;
+        ticket = null;
+        return input.readChunk(allocator);
+    }
+
+    @Override
+    public long length() {
+        return input.length();
+    }
+
+    @Override
+    public long progress() {
+        return input.progress();
+    }
+}
@@ -0,0 +1,196 @@
+package org.example.traffic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deficit round robin over users, paced to a byte rate. Senders ask for permission to send a
+ * chunk and are granted in turns: each turn a user may send up to a quantum of bytes more than it
+ * did not use in its last turns, so users with big chunks and users with small ones get the same
+ * share of the rate. With a rate of 0 chunks are granted at once.
+ */
+class FairScheduler {
+
+    private final ScheduledExecutorService timer;
+    private final Map<String, Flow> flows = new HashMap<>();
+    private final ArrayDeque<Flow> active = new ArrayDeque<>();
+    private long rate;
+    private int quantum;
+    private double tokens;
+    private long refilled = System.nanoTime();
+    private boolean wakeup;
+
+    static class Ticket {
+        private final long bytes;
+        private final Runnable grant;
+        private boolean cancelled;
+
+        private Ticket(long bytes, Runnable grant) {
+            this.bytes = bytes;
+            this.grant = grant;
+        }
+    }
+
+    private static class Flow {
+        private final String user;
+        private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+        private long deficit;
+        private boolean credited;
+
+        private Flow(String user) {
+            this.user = user;
+        }
+    }
+
+    FairScheduler(ScheduledExecutorService timer, long rate, int quantum) {
+        this.timer = timer;
+        this.rate = rate;
+        this.quantum = Math.max(1, quantum);
+    }
+
+    /**
+     * Queues a chunk of the user. The grant is run once it may be sent, on the calling thread if
+     * that is at once.
+     */
+    Ticket submit(String user, long bytes, Runnable grant) {
+        Ticket ticket = new Ticket(bytes, grant);
+        List<Runnable> granted;
+        synchronized (this) {
+            if (rate == 0 && active.isEmpty()) {
+                granted = Collections.singletonList(grant);
+            } else {
+                Flow flow = flows.computeIfAbsent(user, Flow::new);
+                if (flow.queue.isEmpty()) {
+                    active.add(flow);
+                }
+                flow.queue.add(ticket);
+                granted = dispatch();
+            }
+        }
+        granted.forEach(Runnable::run);
+        return ticket;
+    }
+
+    /**
+     * Blocks until the chunk of the user may be sent.
+     */
+    void acquire(String user, long bytes) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Ticket ticket = submit(user, bytes, latch::countDown);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            cancel(ticket);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops a chunk that is no longer going to be sent, its grant is not run.
+     */
+    synchronized void cancel(Ticket ticket) {
+        ticket.cancelled = true;
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    void setRate(long rate) {
+        List<Runnable> granted;
+        synchronized (this) {
+            this.rate = Math.max(0, rate);
+            tokens = Math.min(tokens, burst());
+            granted = dispatch();
+        }
+        granted.forEach(Runnable::run);
+    }
+
+    synchronized void setQuantum(int quantum) {
+        this.quantum = Math.max(1, quantum);
+    }
+
+    synchronized int getQueuedUsers() {
+        return active.size();
+    }
+
+    /**
+     * Grants chunks in turns while there are tokens, tokens may go negative by the last chunk, so
+     * a chunk bigger than the burst is not held back forever. Out of tokens, a dispatch is
+     * scheduled for when they are back.
+     */
+    private List<Runnable> dispatch() {
+        List<Runnable> granted = new ArrayList<>();
+        refill();
+        while (!active.isEmpty()) {
+            Flow flow = active.peek();
+            if (!flow.credited) {
+                flow.deficit += quantum;
+                flow.credited = true;
+            }
+            Ticket head;
+            while ((head = flow.queue.peek()) != null) {
+                if (head.cancelled) {
+                    flow.queue.poll();
+                    continue;
+                }
+                if (head.bytes > flow.deficit) {
+                    break;
+                }
+                if (rate > 0 && tokens <= 0) {
+                    scheduleWakeup();
+                    return granted;
+                }
+                flow.queue.poll();
+                flow.deficit -= head.bytes;
+                if (rate > 0) {
+                    tokens -= head.bytes;
+                }
+                granted.add(head.grant);
+            }
+            active.poll();
+            flow.credited = false;
+            if (flow.queue.isEmpty()) {
+                flows.remove(flow.user);
+            } else {
+                active.add(flow);
+            }
+        }
+        return granted;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(burst(), tokens + rate * (now - refilled) / 1e9);
+        }
+        refilled = now;
+    }
+
+    private double burst() {
+        return Math.max(quantum, rate / 10.0);
+    }
+
+    private void scheduleWakeup() {
+        if (wakeup) {
+            return;
+        }
+        wakeup = true;
+        long delay = Math.max(TimeUnit.MILLISECONDS.toNanos(1), (long) ((1 - tokens) * 1e9 / rate));
+        timer.schedule(() -> {
+            List<Runnable> granted;
+            synchronized (this) {
+                wakeup = false;
+                granted = dispatch();
+            }
+            granted.forEach(Runnable::run);
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+}
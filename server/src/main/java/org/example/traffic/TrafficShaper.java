@@ -0,0 +1,236 @@
+package org.example.traffic;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Bandwidth limits of the server and of each user.
+ * <ul>
+ * <li>Reads of all channels share the global read limit of one Netty shaping handler.</li>
+ * <li>Channels of one user share a Netty shaping handler with the limits of the user, added to the
+ * pipeline at authorization and released with the last channel of the user.</li>
+ * <li>File chunks sent to all users share the global write limit through a {@link FairScheduler},
+ * so one user with many downloads gets no more of it than a user with one.</li>
+ * </ul>
+ */
+@Slf4j
+public class TrafficShaper implements TrafficShaperMXBean {
+
+    public static final String GLOBAL = "globalShaper";
+    public static final String USER = "userShaper";
+    private static final int STREAM_CHUNK_SIZE = 1 << 16;
+
+    private final ScheduledExecutorService executor;
+    private final long checkInterval;
+    private final GlobalTrafficShapingHandler global;
+    private final FairScheduler scheduler;
+    private final Map<String, UserShaper> users = new HashMap<>();
+    private final Map<String, long[]> userLimits = new ConcurrentHashMap<>();
+    private volatile long userWriteLimit;
+    private volatile long userReadLimit;
+    private volatile int fairQuantum;
+
+    private static class UserShaper {
+        private final GlobalTrafficShapingHandler handler;
+        private int channels;
+
+        private UserShaper(GlobalTrafficShapingHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    public TrafficShaper(ScheduledExecutorService executor, long globalWriteLimit, long globalReadLimit,
+                         long userWriteLimit, long userReadLimit, long checkInterval, int fairQuantum) {
+        this.executor = executor;
+        this.checkInterval = checkInterval;
+        this.userWriteLimit = userWriteLimit;
+        this.userReadLimit = userReadLimit;
+        this.fairQuantum = fairQuantum;
+        this.global = new GlobalTrafficShapingHandler(executor, 0, globalReadLimit, checkInterval);
+        this.scheduler = new FairScheduler(executor, globalWriteLimit, fairQuantum);
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=TrafficShaper"));
+        } catch (JMException e) {
+            log.error("Traffic shaper MBean registration exception: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Shared handler of all channels, added to the pipeline under {@link #GLOBAL}.
+     */
+    public ChannelHandler global() {
+        return global;
+    }
+
+    /**
+     * Puts the channel under the limits of the user, a channel authorized again keeps its user.
+     */
+    public void attach(Channel channel, String user) {
+        if (channel.pipeline().get(USER) != null) {
+            return;
+        }
+        GlobalTrafficShapingHandler handler;
+        synchronized (users) {
+            UserShaper shaper = users.computeIfAbsent(user, key -> new UserShaper(
+                    new GlobalTrafficShapingHandler(executor, writeLimit(key), readLimit(key), checkInterval)));
+            shaper.channels++;
+            handler = shaper.handler;
+        }
+        channel.closeFuture().addListener(future -> detach(user));
+        channel.pipeline().addAfter(GLOBAL, USER, handler);
+    }
+
+    private void detach(String user) {
+        synchronized (users) {
+            UserShaper shaper = users.get(user);
+            if (shaper != null && --shaper.channels == 0) {
+                users.remove(user);
+                shaper.handler.release();
+            }
+        }
+    }
+
+    /**
+     * @return whether files sent to the user have to go out in chunks the shaping handlers can pace,
+     * instead of one file region
+     */
+    public boolean isWriteShaped(String user) {
+        return scheduler.getRate() > 0 || writeLimit(user) > 0;
+    }
+
+    /**
+     * Blocks until the chunk of the user may be sent under the global write limit.
+     */
+    public void acquire(String user, long bytes) throws InterruptedException {
+        scheduler.acquire(user, bytes);
+    }
+
+    /**
+     * @return the input, or the input reading its chunks in turn with the other users under the
+     * global write limit
+     */
+    public ChunkedInput<ByteBuf> fair(ChunkedInput<ByteBuf> input, String user, Channel channel) {
+        return scheduler.getRate() > 0 ? new FairChunkedInput(input, scheduler, user, channel, STREAM_CHUNK_SIZE) : input;
+    }
+
+    private long writeLimit(String user) {
+        long[] limits = userLimits.get(user);
+        return limits != null ? limits[0] : userWriteLimit;
+    }
+
+    private long readLimit(String user) {
+        long[] limits = userLimits.get(user);
+        return limits != null ? limits[1] : userReadLimit;
+    }
+
+    private void reconfigure() {
+        synchronized (users) {
+            users.forEach((user, shaper) -> shaper.handler.configure(writeLimit(user), readLimit(user)));
+        }
+    }
+
+    @Override
+    public long getGlobalWriteLimit() {
+        return scheduler.getRate();
+    }
+
+    @Override
+    public void setGlobalWriteLimit(long limit) {
+        log.info("Global write limit set to {} B/s", limit);
+        scheduler.setRate(limit);
+    }
+
+    @Override
+    public long getGlobalReadLimit() {
+        return global.getReadLimit();
+    }
+
+    @Override
+    public void setGlobalReadLimit(long limit) {
+        log.info("Global read limit set to {} B/s", limit);
+        global.setReadLimit(Math.max(0, limit));
+    }
+
+    @Override
+    public long getUserWriteLimit() {
+        return userWriteLimit;
+    }
+
+    @Override
+    public void setUserWriteLimit(long limit) {
+        log.info("User write limit set to {} B/s", limit);
+        userWriteLimit = Math.max(0, limit);
+        reconfigure();
+    }
+
+    @Override
+    public long getUserReadLimit() {
+        return userReadLimit;
+    }
+
+    @Override
+    public void setUserReadLimit(long limit) {
+        log.info("User read limit set to {} B/s", limit);
+        userReadLimit = Math.max(0, limit);
+        reconfigure();
+    }
+
+    @Override
+    public int getFairQuantum() {
+        return fairQuantum;
+    }
+
+    @Override
+    public void setFairQuantum(int bytes) {
+        fairQuantum = Math.max(1, bytes);
+        scheduler.setQuantum(fairQuantum);
+    }
+
+    @Override
+    public Map<String, String> getUserLimits() {
+        Map<String, String> limits = new TreeMap<>();
+        userLimits.forEach((user, pair) -> limits.put(user, pair[0] + "/" + pair[1]));
+        return limits;
+    }
+
+    @Override
+    public void setUserLimits(String user, long writeLimit, long readLimit) {
+        log.info("Limits of {} set to {}/{} B/s", user, writeLimit, readLimit);
+        userLimits.put(user, new long[]{Math.max(0, writeLimit), Math.max(0, readLimit)});
+        reconfigure();
+    }
+
+    @Override
+    public void clearUserLimits(String user) {
+        userLimits.remove(user);
+        reconfigure();
+    }
+
+    @Override
+    public int getConnectedUsers() {
+        synchronized (users) {
+            return users.size();
+        }
+    }
+
+    @Override
+    public int getQueuedUsers() {
+        return scheduler.getQueuedUsers();
+    }
+}
@@ -0,0 +1,43 @@
+package org.example.traffic;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link TrafficShaper}, published as {@code org.example:type=TrafficShaper}, so
+ * limits can be changed while the server runs. Limits are in bytes per second, 0 for none.
+ */
+public interface TrafficShaperMXBean {
+
+    long getGlobalWriteLimit();
+
+    void setGlobalWriteLimit(long limit);
+
+    long getGlobalReadLimit();
+
+    void setGlobalReadLimit(long limit);
+
+    long getUserWriteLimit();
+
+    void setUserWriteLimit(long limit);
+
+    long getUserReadLimit();
+
+    void setUserReadLimit(long limit);
+
+    int getFairQuantum();
+
+    void setFairQuantum(int bytes);
+
+    /**
+     * @return limits set for single users, as "write/read"
+     */
+    Map<String, String> getUserLimits();
+
+    void setUserLimits(String user, long writeLimit, long readLimit);
+
+    void clearUserLimits(String user);
+
+    int getConnectedUsers();
+
+    int getQueuedUsers();
+}
@@ -0,0 +1,193 @@
+package org.example.transfer;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.example.model.dto.EntryDTO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Many files uploaded as one stream: a manifest of entries (paths relative to the target
+ * directory with {@code /} separators, sizes and times, directories first), then the contents of
+ * the files one after another in manifest order, cut into chunks regardless of file boundaries.
+ * <p>
+ * Files are written one at a time to a staging file that is moved into the tree when its last byte
+ * arrives, so a file is either whole or absent. Files that already exist are skipped, their bytes
+ * are read and dropped. Missing directories are created on the way.
+ */
+@Slf4j
+public class BatchUpload {
+
+    private final Path staging;
+    private final Path target;
+    private final List<EntryDTO> entries;
+    private final Listener listener;
+    @Getter
+    private final long size;
+    @Getter
+    private final List<String> skipped = new ArrayList<>();
+    @Getter
+    private int stored;
+    private int next;
+    private EntryDTO current;
+    private Path currentPath;
+    private FileChannel out;
+    private long remaining;
+
+    public interface Listener {
+        /**
+         * Called for every file and directory added to the tree.
+         */
+        void stored(Path path) throws IOException;
+    }
+
+    /**
+     * @throws IllegalArgumentException if an entry has a path outside the target or a negative size
+     */
+    BatchUpload(Path staging, Path target, List<EntryDTO> entries, Listener listener) {
+        long size = 0;
+        for (EntryDTO entry : entries) {
+            resolve(target, entry.getName());
+            if (entry.getSize() < 0) {
+                throw new IllegalArgumentException("Wrong size of " + entry.getName());
+            }
+            size += entry.isDirectory() ? 0 : entry.getSize();
+        }
+        this.staging = staging;
+        this.target = target;
+        this.entries = entries;
+        this.listener = listener;
+        this.size = size;
+    }
+
+    /**
+     * Writes the next bytes of the stream to the files they belong to.
+     *
+     * @throws IOException if there are more bytes than the manifest declares
+     */
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            advance();
+            if (remaining == 0) {
+                throw new IOException("More data than the manifest declares");
+            }
+            int length = (int) Math.min(remaining, data.remaining());
+            if (out != null) {
+                ByteBuffer slice = data.duplicate();
+                slice.limit(slice.position() + length);
+                while (slice.hasRemaining()) {
+                    out.write(slice);
+                }
+            }
+            data.position(data.position() + length);
+            remaining -= length;
+            if (remaining == 0) {
+                finish();
+            }
+        }
+        // directories and empty files after the last bytes
+        advance();
+    }
+
+    /**
+     * @return true if every entry of the manifest has been written or skipped
+     */
+    public boolean isComplete() {
+        return next == entries.size() && remaining == 0;
+    }
+
+    /**
+     * Drops the file being written, files stored already stay.
+     */
+    public void abort() {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            Files.deleteIfExists(staging);
+        } catch (IOException e) {
+            log.error("Batch upload abort exception: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Goes on to the next file with bytes to receive, on the way creates directories and stores
+     * empty files.
+     */
+    private void advance() throws IOException {
+        while (remaining == 0 && next < entries.size()) {
+            EntryDTO entry = entries.get(next++);
+            Path path = resolve(target, entry.getName());
+            if (entry.isDirectory()) {
+                createDirectories(path);
+                continue;
+            }
+            current = entry;
+            currentPath = path;
+            remaining = entry.getSize();
+            if (Files.exists(path)) {
+                skipped.add(entry.getName());
+            } else {
+                out = FileChannel.open(staging, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            if (remaining == 0) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.close();
+        out = null;
+        Files.setLastModifiedTime(staging, FileTime.fromMillis(current.getModified()));
+        createDirectories(currentPath.getParent());
+        try {
+            // no replacing, a file created meanwhile by another channel is kept
+            Files.move(staging, currentPath);
+        } catch (FileAlreadyExistsException e) {
+            skipped.add(current.getName());
+            Files.delete(staging);
+            return;
+        }
+        stored++;
+        listener.stored(currentPath);
+    }
+
+    private void createDirectories(Path dir) throws IOException {
+        Deque<Path> missing = new ArrayDeque<>();
+        for (Path parent = dir; !parent.equals(target) && Files.notExists(parent); parent = parent.getParent()) {
+            missing.push(parent);
+        }
+        for (Path parent : missing) {
+            Files.createDirectory(parent);
+            listener.stored(parent);
+        }
+    }
+
+    private static Path resolve(Path target, String name) {
+        Path path = target;
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..") || part.indexOf('\\') >= 0 || part.indexOf('\0') >= 0) {
+                throw new IllegalArgumentException("Wrong path in batch: " + name);
+            }
+            path = path.resolve(part);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,91 @@
+package org.example.transfer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output cut into chunks of a fixed size that are handed over as they fill, so a stream whose
+ * length is known at its end only, like an archive built while it is sent, needs one chunk in
+ * memory. A full chunk is held back until more is written, so the last one is handed over on
+ * {@link #close} marked as the end.
+ */
+public class ChunkOutputStream extends OutputStream {
+
+    private final ByteBufAllocator alloc;
+    private final int chunkSize;
+    private final Sink sink;
+    private ByteBuf current;
+    private boolean closed;
+
+    public interface Sink {
+        /**
+         * Takes over the chunk, it is released by the sink.
+         */
+        void chunk(ByteBuf data, boolean end) throws IOException;
+    }
+
+    public ChunkOutputStream(ByteBufAllocator alloc, int chunkSize, Sink sink) {
+        this.alloc = alloc;
+        this.chunkSize = chunkSize;
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        writable().writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuf buf = writable();
+            int length = Math.min(len, buf.writableBytes());
+            buf.writeBytes(b, off, length);
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Hands over the last chunk, empty if nothing has been written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ByteBuf last = current != null ? current : alloc.directBuffer(0);
+        current = null;
+        sink.chunk(last, true);
+    }
+
+    /**
+     * Drops the chunk being filled, nothing more is handed over.
+     */
+    public void abort() {
+        closed = true;
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    private ByteBuf writable() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && !current.isWritable()) {
+            ByteBuf full = current;
+            current = null;
+            sink.chunk(full, false);
+        }
+        if (current == null) {
+            current = alloc.directBuffer(chunkSize, chunkSize);
+        }
+        return current;
+    }
+}
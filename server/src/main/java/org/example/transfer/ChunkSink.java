@@ -0,0 +1,142 @@
+package org.example.transfer;
+
+import org.example.netty.transfer.FileChecksum;
+import org.example.storage.ChunkStore;
+import org.example.storage.Manifest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Stores every part as a chunk of the {@link ChunkStore} and writes a manifest to the target.
+ * Parts whose content is already stored are only referenced, so they are neither sent nor written.
+ */
+class ChunkSink implements UploadSink {
+
+    private final ChunkStore store;
+    private final String owner;
+    private final TreeMap<Long, Manifest.Chunk> chunks = new TreeMap<>();
+
+    ChunkSink(ChunkStore store, String owner) {
+        this.store = store;
+        this.owner = owner;
+    }
+
+    /**
+     * Restores the chunks of a checkpoint, their references are counted when the store is opened.
+     */
+    ChunkSink(ChunkStore store, String owner, Properties meta) {
+        this(store, owner);
+        for (String entry : chunkEntries(meta)) {
+            String[] fields = entry.split(":");
+            chunks.put(Long.parseLong(fields[0]), new Manifest.Chunk(fields[1], Long.parseLong(fields[2])));
+        }
+    }
+
+    static List<String> chunkHashes(Properties meta) {
+        List<String> hashes = new ArrayList<>();
+        for (String entry : chunkEntries(meta)) {
+            hashes.add(entry.split(":")[1]);
+        }
+        return hashes;
+    }
+
+    private static List<String> chunkEntries(Properties meta) {
+        String value = meta.getProperty("chunks", "");
+        List<String> entries = new ArrayList<>();
+        Collections.addAll(entries, value.isEmpty() ? new String[0] : value.split(","));
+        return entries;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer content) throws IOException {
+        long length = content.remaining();
+        put(offset, new Manifest.Chunk(store.put(content, owner), length));
+    }
+
+    @Override
+    public long reference(long offset, String hash) throws IOException {
+        if (!store.contains(hash, owner) || !store.ref(hash, owner)) {
+            return -1;
+        }
+        long length = store.size(hash);
+        put(offset, new Manifest.Chunk(hash, length));
+        return length;
+    }
+
+    private void put(long offset, Manifest.Chunk chunk) {
+        Manifest.Chunk replaced = chunks.put(offset, chunk);
+        if (replaced != null) {
+            store.release(replaced.getHash());
+        }
+    }
+
+    @Override
+    public void truncate(long verified) {
+        Map<Long, Manifest.Chunk> tail = chunks.tailMap(verified, true);
+        tail.values().forEach(chunk -> store.release(chunk.getHash()));
+        tail.clear();
+    }
+
+    @Override
+    public void save(Properties meta) {
+        StringBuilder sb = new StringBuilder();
+        chunks.forEach((offset, chunk) -> sb.append(sb.length() == 0 ? "" : ",")
+                .append(offset).append(':').append(chunk.getHash()).append(':').append(chunk.getLength()));
+        meta.setProperty("owner", owner);
+        meta.setProperty("chunks", sb.toString());
+    }
+
+    /**
+     * Writes the manifest if the chunks cover the file without gaps or overlaps and match its digest.
+     * An unverified digest is checked by reading the chunks back, nothing is written but the manifest.
+     */
+    @Override
+    public boolean commit(Path target, long fullSize, long written, String fileDigest, boolean verified) throws IOException {
+        List<Manifest.Chunk> list = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Manifest.Chunk> entry : chunks.entrySet()) {
+            if (entry.getKey() != position) {
+                discard();
+                return false;
+            }
+            list.add(entry.getValue());
+            position += entry.getValue().getLength();
+        }
+        if (position != fullSize) {
+            discard();
+            return false;
+        }
+        String digest = fileDigest;
+        if (!verified) {
+            try (InputStream is = new Manifest(fullSize, null, list).openStream(store, 0)) {
+                digest = FileChecksum.digest(fileDigest, is);
+            }
+        }
+        if (fileDigest != null && !fileDigest.equals(digest)) {
+            discard();
+            return false;
+        }
+        new Manifest(fullSize, digest, list).write(store, target);
+        chunks.clear();
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void discard() {
+        chunks.values().forEach(chunk -> store.release(chunk.getHash()));
+        chunks.clear();
+    }
+}
@@ -0,0 +1,82 @@
+package org.example.transfer;
+
+import org.example.netty.transfer.FileChecksum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Writes the content to a partial file which is opened once and preallocated to its full size.
+ */
+class PartialFileSink implements UploadSink {
+
+    private final Path partial;
+    private final FileChannel channel;
+
+    PartialFileSink(Path partial, long fullSize) throws IOException {
+        this.partial = partial;
+        RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw");
+        try {
+            file.setLength(fullSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        channel = file.getChannel();
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer content) throws IOException {
+        long position = offset;
+        while (content.hasRemaining()) {
+            position += channel.write(content, position);
+        }
+    }
+
+    @Override
+    public long reference(long offset, String hash) {
+        return -1;
+    }
+
+    @Override
+    public void truncate(long verified) {
+    }
+
+    @Override
+    public void save(Properties meta) {
+    }
+
+    @Override
+    public boolean commit(Path target, long fullSize, long written, String fileDigest, boolean verified) throws IOException {
+        channel.close();
+        // the file is preallocated, its size tells nothing of what has been written
+        boolean valid = written == fullSize && Files.size(partial) == fullSize;
+        if (valid && !verified && fileDigest != null) {
+            try (InputStream is = Files.newInputStream(partial)) {
+                valid = fileDigest.equals(FileChecksum.digest(fileDigest, is));
+            }
+        }
+        if (valid) {
+            Files.move(partial, target);
+        }
+        Files.deleteIfExists(partial);
+        return valid;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public void discard() throws IOException {
+        channel.close();
+        Files.deleteIfExists(partial);
+    }
+}
@@ -0,0 +1,289 @@
+package org.example.transfer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.model.command.ChecksumType;
+import org.example.netty.transfer.FileChecksum;
+import org.example.storage.ChunkStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * One file being uploaded. Every part is written to the {@link UploadSink} at its own offset, so
+ * parts may arrive in any order. The verified offset (end of the contiguous range written from the
+ * start of the file) is checkpointed next to the partial file, so an interrupted upload can be
+ * resumed from it. A file may be sent as several ranges over several channels, part numbers are
+ * counted per range.
+ * <p>
+ * Parts sent with a CRC are folded into a whole-file checksum as the written range grows, so a
+ * typed file digest is checked when the last part arrives, without reading the file again.
+ */
+@Slf4j
+public class UploadSession {
+
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private final String id;
+    private final UploadSink sink;
+    private final Path meta;
+    private final Path target;
+    private final long fullSize;
+    private final Map<Integer, BitSet> parts = new HashMap<>();
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private final TreeMap<Long, long[]> checksums = new TreeMap<>();
+    private FileChecksum checksum;
+    private String fileDigest;
+    private long verified;
+    private long checkpoint;
+    private int channels;
+    private boolean completed;
+
+    UploadSession(String id, UploadSink sink, Path meta, Path target, long fullSize, String fileDigest, long verified) {
+        this.id = id;
+        this.sink = sink;
+        this.meta = meta;
+        this.target = target;
+        this.fullSize = fullSize;
+        this.fileDigest = fileDigest;
+        this.verified = verified;
+        this.checkpoint = verified;
+        log.info("Upload session {} opened for {}, size {}, verified {}", id, target, fullSize, verified);
+    }
+
+    static Properties readMeta(Path meta) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(meta)) {
+            properties.load(is);
+        }
+        return properties;
+    }
+
+    static UploadSession load(String id, Path partial, Path meta, ChunkStore store) throws IOException {
+        Properties properties = readMeta(meta);
+        long fullSize = Long.parseLong(properties.getProperty("fullSize"));
+        UploadSink sink;
+        if (properties.getProperty("owner") == null) {
+            sink = new PartialFileSink(partial, fullSize);
+        } else if (store != null) {
+            sink = new ChunkSink(store, properties.getProperty("owner"), properties);
+        } else {
+            throw new IOException("Upload " + id + " needs the chunk store");
+        }
+        UploadSession session = new UploadSession(id, sink, meta, Paths.get(properties.getProperty("target")), fullSize,
+                properties.getProperty("fileDigest"), Long.parseLong(properties.getProperty("verified")));
+        String checksum = properties.getProperty("checksum");
+        if (checksum != null) {
+            String[] fields = checksum.split(":");
+            session.checksum = new FileChecksum(ChecksumType.valueOf(fields[0]), Long.parseLong(fields[1], 16), Long.parseLong(fields[2]));
+        }
+        return session;
+    }
+
+    /**
+     * @param type type of the part checksum, null if the part was checked by MD5
+     */
+    public synchronized void write(int range, int part, long offset, ByteBuffer content, ChecksumType type, long value) throws IOException {
+        BitSet rangeParts = parts.computeIfAbsent(range, r -> new BitSet());
+        if (rangeParts.get(part)) {
+            return;
+        }
+        int length = content.remaining();
+        if (offset < 0 || offset + length > fullSize) {
+            throw new IOException("Part " + part + " is out of file bounds");
+        }
+        if (offset + length > verified) {
+            sink.write(offset, content);
+            written(offset, length);
+            fold(type, offset, length, value);
+        }
+        rangeParts.set(part);
+        if (verified - checkpoint >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes a part with content the server already has instead of content sent by the client.
+     *
+     * @return false if the content is not available, then the part has to be sent
+     */
+    public synchronized boolean reference(int range, int part, long offset, String hash, ChecksumType type, long value) throws IOException {
+        BitSet rangeParts = parts.computeIfAbsent(range, r -> new BitSet());
+        if (rangeParts.get(part)) {
+            return true;
+        }
+        if (offset < 0 || offset >= fullSize) {
+            throw new IOException("Part " + part + " is out of file bounds");
+        }
+        if (offset >= verified) {
+            long length = sink.reference(offset, hash);
+            if (length < 0) {
+                return false;
+            }
+            written(offset, length);
+            fold(type, offset, length, value);
+        }
+        rangeParts.set(part);
+        if (verified - checkpoint >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+        return true;
+    }
+
+    private void written(long offset, long length) {
+        ranges.merge(offset, offset + length, Math::max);
+        Map.Entry<Long, Long> written;
+        while ((written = ranges.firstEntry()) != null && written.getKey() <= verified) {
+            verified = Math.max(verified, written.getValue());
+            ranges.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Appends the part checksum to the whole-file checksum once every part before it is appended.
+     * Parts that don't start where a folded part ends (a range resumed at another offset) are
+     * never folded, the file is then read to check its digest.
+     */
+    private void fold(ChecksumType type, long offset, long length, long value) {
+        if (type == null || length == 0) {
+            return;
+        }
+        if (checksum == null || checksum.getType() != type) {
+            checksum = new FileChecksum(type);
+            checksums.clear();
+        }
+        if (offset < checksum.getLength()) {
+            return;
+        }
+        checksums.put(offset, new long[]{value, length});
+        Map.Entry<Long, long[]> next;
+        while ((next = checksums.firstEntry()) != null && next.getKey() <= checksum.getLength()) {
+            checksums.pollFirstEntry();
+            if (next.getKey() == checksum.getLength()) {
+                checksum.append(next.getValue()[0], next.getValue()[1]);
+            }
+        }
+    }
+
+    public synchronized int getAckedPart(int range) {
+        BitSet rangeParts = parts.get(range);
+        return rangeParts == null ? 0 : rangeParts.nextClearBit(1) - 1;
+    }
+
+    /**
+     * Returns true once, to the writer whose part completed the file. Parts sent with checksums
+     * complete it only with the file digest, which a client uploading ranges in parallel sends
+     * after all of them.
+     */
+    public synchronized boolean claimCompletion() {
+        if (completed || parts.isEmpty() || verified != fullSize || checksum != null && fileDigest == null) {
+            return false;
+        }
+        completed = true;
+        return true;
+    }
+
+    public synchronized void setFileDigest(String fileDigest) {
+        if (fileDigest != null) {
+            this.fileDigest = fileDigest;
+        }
+    }
+
+    /**
+     * Starts a new attempt: part numbers are counted from 1 again, data up to the verified offset is kept.
+     *
+     * @return the verified offset to continue from
+     */
+    public synchronized long resume() {
+        parts.clear();
+        ranges.clear();
+        checksums.tailMap(verified, true).clear();
+        sink.truncate(verified);
+        return verified;
+    }
+
+    synchronized void checkpoint() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("target", target.toString());
+        properties.setProperty("fullSize", String.valueOf(fullSize));
+        properties.setProperty("verified", String.valueOf(verified));
+        if (fileDigest != null) {
+            properties.setProperty("fileDigest", fileDigest);
+        }
+        if (checksum != null) {
+            properties.setProperty("checksum", checksum.getType() + ":" + Long.toHexString(checksum.getValue()) + ":" + checksum.getLength());
+        }
+        sink.save(properties);
+        try (OutputStream os = Files.newOutputStream(meta)) {
+            properties.store(os, id);
+        }
+        checkpoint = verified;
+    }
+
+    synchronized void suspend() {
+        try {
+            checkpoint();
+            sink.close();
+            log.info("Upload session {} suspended at {}", id, verified);
+        } catch (IOException e) {
+            log.error("Upload session {} suspend exception: {}", id, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks that the content has the declared size and digest, then moves it to its target. The
+     * content is only read when the digest can't be checked against the folded checksum.
+     */
+    synchronized boolean finish() throws IOException {
+        boolean folded = checksum != null && checksum.getLength() == fullSize && checksum.getType() == FileChecksum.typeOf(fileDigest);
+        boolean valid;
+        if (folded && !checksum.digest().equals(fileDigest)) {
+            sink.discard();
+            valid = false;
+        } else {
+            valid = sink.commit(target, fullSize, verified, fileDigest, folded);
+        }
+        Files.deleteIfExists(meta);
+        log.info("Upload session {} finished, valid {}", id, valid);
+        return valid;
+    }
+
+    synchronized void abort() {
+        try {
+            sink.discard();
+            Files.deleteIfExists(meta);
+        } catch (IOException e) {
+            log.error("Upload session {} abort exception: {}", id, e.getMessage(), e);
+        }
+    }
+
+    synchronized void attach() {
+        channels++;
+    }
+
+    synchronized boolean detach() {
+        return --channels <= 0;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public synchronized String getFileDigest() {
+        return fileDigest;
+    }
+
+    public synchronized long getVerified() {
+        return verified;
+    }
+}
@@ -0,0 +1,169 @@
+package org.example.transfer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.model.dto.EntryDTO;
+import org.example.storage.ChunkStore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open upload sessions of all channels. Sessions that are not open are looked up in the
+ * partial directory, so an upload can be resumed after a reconnect or a server restart.
+ * With a chunk store uploads are stored as chunks, otherwise as partial files.
+ */
+@Slf4j
+public class UploadSessionRegistry {
+
+    private final Path partialRoot;
+    private final ChunkStore store;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public UploadSessionRegistry(Path partialRoot, ChunkStore store) throws IOException {
+        this.partialRoot = partialRoot;
+        this.store = store;
+        if (Files.notExists(partialRoot)) {
+            Files.createDirectories(partialRoot);
+        }
+        // a batch can't be resumed, files of the batches cut by a restart are dropped
+        try (DirectoryStream<Path> batches = Files.newDirectoryStream(partialRoot, "batch-*")) {
+            for (Path batch : batches) {
+                Files.delete(batch);
+            }
+        }
+    }
+
+    public int getOpenSessions() {
+        return sessions.size();
+    }
+
+    public synchronized UploadSession find(String key) throws IOException {
+        UploadSession session = sessions.get(key);
+        if (session == null && isResumable(key)) {
+            session = UploadSession.load(key, partial(key), meta(key), store);
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    /**
+     * A checkpoint of a partial file is only of use with the file, chunks of a chunk upload are
+     * listed in the checkpoint itself.
+     */
+    private boolean isResumable(String key) throws IOException {
+        return Files.exists(meta(key)) && (Files.exists(partial(key)) || UploadSession.readMeta(meta(key)).getProperty("owner") != null);
+    }
+
+    public synchronized UploadSession open(String key, String owner, Path target, long fullSize) throws IOException {
+        UploadSink sink = store != null ? new ChunkSink(store, owner) : new PartialFileSink(partial(key), fullSize);
+        UploadSession session = new UploadSession(key, sink, meta(key), target, fullSize, null, 0);
+        sessions.put(key, session);
+        return session;
+    }
+
+    /**
+     * Finds the session or opens a new one, unless its target already exists. Ranges of one file
+     * uploaded over several channels may arrive at the same time, so both are done under one lock.
+     *
+     * @return null if there is no session and the target exists
+     */
+    public synchronized UploadSession findOrOpen(String key, String owner, Path target, long fullSize) throws IOException {
+        UploadSession session = find(key);
+        if (session == null && !Files.exists(target)) {
+            session = open(key, owner, target, fullSize);
+        }
+        return session;
+    }
+
+    /**
+     * Registers a channel writing to the session, a session is suspended when its last channel detaches.
+     */
+    public synchronized void attach(UploadSession session) {
+        session.attach();
+    }
+
+    /**
+     * @return true if the session was suspended, its last channel has detached
+     */
+    public synchronized boolean detach(String key) {
+        UploadSession session = sessions.get(key);
+        if (session != null && session.detach()) {
+            suspend(key);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean complete(String key) throws IOException {
+        UploadSession session = sessions.remove(key);
+        return session != null && session.finish();
+    }
+
+    public synchronized void suspend(String key) {
+        UploadSession session = sessions.remove(key);
+        if (session != null) {
+            session.suspend();
+        }
+    }
+
+    public synchronized void abort(String key) {
+        UploadSession session = sessions.remove(key);
+        if (session != null) {
+            session.abort();
+            return;
+        }
+        try {
+            Files.deleteIfExists(partial(key));
+            Files.deleteIfExists(meta(key));
+        } catch (IOException e) {
+            log.error("Upload {} abort exception: {}", key, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param target directory the paths of the entries are relative to
+     * @throws IllegalArgumentException if an entry can't be stored in the target
+     */
+    public BatchUpload openBatch(Path target, List<EntryDTO> entries, BatchUpload.Listener listener) {
+        return new BatchUpload(partialRoot.resolve("batch-" + UUID.randomUUID()), target, entries, listener);
+    }
+
+    /**
+     * Chunk hashes referenced by checkpointed uploads, by owner.
+     */
+    public Map<String, List<String>> chunkReferences() throws IOException {
+        Map<String, List<String>> references = new HashMap<>();
+        try (DirectoryStream<Path> metas = Files.newDirectoryStream(partialRoot, "*.properties")) {
+            for (Path meta : metas) {
+                Properties properties = UploadSession.readMeta(meta);
+                String owner = properties.getProperty("owner");
+                if (owner != null) {
+                    references.computeIfAbsent(owner, o -> new ArrayList<>()).addAll(ChunkSink.chunkHashes(properties));
+                }
+            }
+        }
+        return references;
+    }
+
+    private Path partial(String key) {
+        return partialRoot.resolve(fileName(key) + ".part");
+    }
+
+    private Path meta(String key) {
+        return partialRoot.resolve(fileName(key) + ".properties");
+    }
+
+    private static String fileName(String key) {
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
@@ -0,0 +1,41 @@
+package org.example.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Where the content of an {@link UploadSession} is written.
+ */
+interface UploadSink {
+
+    void write(long offset, ByteBuffer content) throws IOException;
+
+    /**
+     * Uses content the server already stores for the given offset.
+     *
+     * @return the length of the content, or -1 if it is not available
+     */
+    long reference(long offset, String hash) throws IOException;
+
+    /**
+     * Drops content written past the verified offset.
+     */
+    void truncate(long verified);
+
+    void save(Properties meta);
+
+    /**
+     * Checks the content and moves it to the target.
+     *
+     * @param written  bytes written from the start of the file without a gap
+     * @param verified whether the digest is already checked, then the content is not read
+     * @return false if the content does not have the declared size or digest
+     */
+    boolean commit(Path target, long fullSize, long written, String fileDigest, boolean verified) throws IOException;
+
+    void close() throws IOException;
+
+    void discard() throws IOException;
+}
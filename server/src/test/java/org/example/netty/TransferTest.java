@@ -0,0 +1,349 @@
+package org.example.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.example.metrics.ServerMetrics;
+import org.example.metrics.TrafficCounter;
+import org.example.model.command.ChecksumType;
+import org.example.model.command.CodecType;
+import org.example.model.command.Command;
+import org.example.model.command.CommandType;
+import org.example.model.command.ContentActionType;
+import org.example.model.command.ParameterType;
+import org.example.model.dto.FileDTO;
+import org.example.model.user.User;
+import org.example.netty.codec.BinaryCodec;
+import org.example.netty.codec.BinaryCommandDecoder;
+import org.example.netty.codec.BinaryCommandEncoder;
+import org.example.netty.transfer.FileChecksum;
+import org.example.service.SessionRegistry;
+import org.example.service.UserService;
+import org.example.storage.ChunkStore;
+import org.example.storage.DigestCache;
+import org.example.storage.ListingCache;
+import org.example.storage.MetadataIndex;
+import org.example.storage.Quotas;
+import org.example.storage.Trash;
+import org.example.traffic.TrafficShaper;
+import org.example.transfer.UploadSessionRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Authorization, uploads and chunked downloads through the binary codec and the command handler on embedded
+ * channels: every chunk buffer is released, and the pooled direct memory does not grow with the
+ * size of the file.
+ */
+public class TransferTest {
+
+    private static final User USER = User.builder().email("test@example.org").password("test").build();
+    private static final long MEMORY_BOUND = 32 << 20;
+
+    private final Random random = new Random(42);
+    private Path root;
+    private ScheduledExecutorService executor;
+    private EmbeddedChannel server;
+    private EmbeddedChannel client;
+    private ChecksumType checksumType;
+    private Quotas quotas;
+
+    @BeforeClass
+    public static void installLeakDetection() {
+        LeakDetection.install();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("transfer-test");
+        Files.createDirectories(root.resolve(USER.getEmail()));
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("test", true));
+        // downloads run on the test thread, the window lets every chunk of a test file out without an ack
+        connect(ImmediateEventExecutor.INSTANCE, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.finishAndReleaseAll();
+        server.finishAndReleaseAll();
+        executor.shutdownNow();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        assertEquals("leaked buffers", 0, LeakDetection.leaks());
+    }
+
+    /**
+     * Starts a handler as a server would, with a new registry and store on the same storage root.
+     */
+    private void connect(ExecutorService downloads, boolean chunkStore) throws IOException {
+        UserService users = new UserService() {
+            @Override
+            public boolean isAuthorized(User user) {
+                return USER.equals(user);
+            }
+
+            @Override
+            public Path getRootPath(User user) {
+                return root.resolve(USER.getEmail());
+            }
+        };
+        ChunkStore chunks = chunkStore ? new ChunkStore(root.resolve(".chunks"), false) : null;
+        UploadSessionRegistry uploads = new UploadSessionRegistry(root.resolve(".partial"), chunks);
+        if (chunks != null) {
+            chunks.rebuild(root, uploads.chunkReferences());
+        }
+        MetadataIndex index = new MetadataIndex(root.resolve(".index"), chunks, executor, 60_000);
+        quotas = new Quotas(index, root.resolve(".quotas"), 0);
+        TrafficShaper traffic = new TrafficShaper(executor, 0, 0, 0, 0, 1000, 1 << 16);
+        ServerCommandHandler handler = new ServerCommandHandler(users, new SessionRegistry(executor, 60_000), uploads, chunks,
+                new DigestCache(chunks, 100), new ListingCache(chunks, 1 << 20, 16), index,
+                quotas, new Trash(root.resolve(".trash"), null, 1),
+                new ServerMetrics(uploads::getOpenSessions, () -> 0),
+                traffic, downloads);
+        server = new EmbeddedChannel();
+        server.pipeline()
+                .addLast(BinaryCodec.ENCODER, new BinaryCommandEncoder())
+                .addLast(BinaryCodec.DECODER, new BinaryCommandDecoder(Config.maxObjectSize))
+                .addLast(TrafficShaper.GLOBAL, traffic.global())
+                .addLast(handler);
+        client = new EmbeddedChannel(new BinaryCommandEncoder(), new BinaryCommandDecoder(Config.maxObjectSize));
+        checksumType = FileChecksum.preferred();
+        List<Command> replies = send(new Command(CommandType.AUTH_REQUEST)
+                .setParameter(ParameterType.USER, USER)
+                .setParameter(ParameterType.CODEC, CodecType.BINARY)
+                .setParameter(ParameterType.CHECKSUM, checksumType)
+                .setParameter(ParameterType.WINDOW, Config.transferWindow));
+        assertEquals(CommandType.AUTH_OK, replies.get(0).getCommandType());
+    }
+
+    /**
+     * @return the replies of the server, the caller releases their file content
+     */
+    private List<Command> send(Command command) {
+        client.writeOutbound(command);
+        for (ByteBuf frame; (frame = client.readOutbound()) != null; ) {
+            server.writeInbound(frame);
+        }
+        for (ByteBuf frame; (frame = server.readOutbound()) != null; ) {
+            client.writeInbound(frame);
+        }
+        List<Command> replies = new ArrayList<>();
+        for (Command reply; (reply = client.readInbound()) != null; ) {
+            replies.add(reply);
+        }
+        return replies;
+    }
+
+    @Test
+    public void authorizedChannelIsShapedAndCountedForItsUser() {
+        assertEquals(USER.getEmail(), server.attr(TrafficCounter.USER).get());
+        assertNotNull(server.pipeline().get(TrafficShaper.USER));
+    }
+
+    @Test
+    public void uploadReleasesEveryChunk() throws Exception {
+        int chunkSize = Config.chunkSize;
+        int chunks = 128;
+        byte[] content = new byte[chunkSize];
+        FileChecksum fileChecksum = new FileChecksum(checksumType);
+        long before = LeakDetection.usedDirectMemory();
+        long peak = before;
+        for (int part = 1; part <= chunks; part++) {
+            random.nextBytes(content);
+            ByteBuf data = ByteBufAllocator.DEFAULT.directBuffer(chunkSize).writeBytes(content);
+            long checksum = FileChecksum.of(checksumType, content, 0, chunkSize);
+            fileChecksum.append(checksum, chunkSize);
+            FileDTO dto = FileDTO.builder()
+                    .name("up.bin")
+                    .path("root")
+                    .fullSize((long) chunks * chunkSize)
+                    .transferId("up")
+                    .offset((long) (part - 1) * chunkSize)
+                    .isStart(part == 1)
+                    .isEnd(part == chunks)
+                    .checksum(checksum)
+                    .fileDigest(part == chunks ? fileChecksum.digest() : null)
+                    .data(data)
+                    .part(part)
+                    .build();
+            List<Command> replies = send(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, dto));
+            assertEquals(0, data.refCnt());
+            assertEquals(part < chunks ? CommandType.NEXT_PART : CommandType.CONTENT_RESPONSE, replies.get(0).getCommandType());
+            peak = Math.max(peak, LeakDetection.usedDirectMemory());
+        }
+        assertTrue("direct memory grew by " + (peak - before), peak - before <= MEMORY_BOUND);
+        Path stored = root.resolve(USER.getEmail()).resolve("up.bin");
+        try (InputStream is = Files.newInputStream(stored)) {
+            assertEquals(fileChecksum.digest(), FileChecksum.digest(fileChecksum.digest(), is));
+        }
+    }
+
+    @Test
+    public void chunkedDownloadReleasesEveryChunk() throws Exception {
+        // a file the window sends at once, downloaded until far more than the window went through
+        byte[] content = new byte[Config.chunkSize * Config.transferWindow - 3];
+        random.nextBytes(content);
+        Files.write(root.resolve(USER.getEmail()).resolve("down.bin"), content);
+        long before = LeakDetection.usedDirectMemory();
+        long peak = before;
+        for (int i = 0; i < 16; i++) {
+            List<Command> replies = send(new Command(CommandType.CONTENT_REQUEST)
+                    .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.DOWNLOAD)
+                    .setParameter(ParameterType.CURRENT, "down.bin"));
+            peak = Math.max(peak, LeakDetection.usedDirectMemory());
+            byte[] received = new byte[content.length];
+            int offset = 0;
+            for (Command reply : replies) {
+                assertEquals(CommandType.FILE_DOWNLOAD, reply.getCommandType());
+                FileDTO dto = (FileDTO) reply.getParameter(ParameterType.FILE_DTO);
+                assertEquals(offset, dto.getOffset());
+                assertEquals(FileChecksum.of(checksumType, dto.contentBuffer()), dto.getChecksum());
+                int length = dto.contentLength();
+                dto.contentBuffer().get(received, offset, length);
+                offset += length;
+                ByteBuf data = dto.getData();
+                dto.release();
+                assertEquals(0, data.refCnt());
+                assertTrue(send(new Command(CommandType.NEXT_PART).setParameter(ParameterType.PART, dto.getPart())).isEmpty());
+            }
+            assertTrue(((FileDTO) replies.get(replies.size() - 1).getParameter(ParameterType.FILE_DTO)).isEnd());
+            assertArrayEquals(content, received);
+        }
+        assertTrue("direct memory grew by " + (peak - before), peak - before <= MEMORY_BOUND);
+    }
+
+    @Test
+    public void downloadRejectedWhenPoolIsSaturated() throws Exception {
+        ExecutorService saturated = Executors.newSingleThreadExecutor();
+        saturated.shutdown();
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+        connect(saturated, false);
+        Files.write(root.resolve(USER.getEmail()).resolve("busy.bin"), new byte[1024]);
+        List<Command> replies = send(new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.DOWNLOAD)
+                .setParameter(ParameterType.CURRENT, "busy.bin"));
+        assertEquals(1, replies.size());
+        assertEquals(CommandType.DOWNLOAD_ERROR, replies.get(0).getCommandType());
+        assertFalse(((String) replies.get(0).getParameter(ParameterType.MESSAGE)).isEmpty());
+    }
+
+    @Test
+    public void chunkStoreUploadResumesAfterRestart() throws Exception {
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+        connect(ImmediateEventExecutor.INSTANCE, true);
+        int chunkSize = Config.chunkSize;
+        byte[] content = new byte[6 * chunkSize];
+        random.nextBytes(content);
+        for (int chunk = 0; chunk < 3; chunk++) {
+            assertEquals(CommandType.NEXT_PART, uploadChunk("resumed.bin", content, chunk, chunk + 1).get(0).getCommandType());
+        }
+        // the channel drops, the upload is suspended and the server restarts
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+        connect(ImmediateEventExecutor.INSTANCE, true);
+        FileDTO query = FileDTO.builder()
+                .transferId("resumed")
+                .name("resumed.bin")
+                .path("root")
+                .fullSize((long) content.length)
+                .build();
+        List<Command> replies = send(new Command(CommandType.TRANSFER_STATUS).setParameter(ParameterType.FILE_DTO, query));
+        assertEquals(CommandType.TRANSFER_STATUS, replies.get(0).getCommandType());
+        FileDTO status = (FileDTO) replies.get(0).getParameter(ParameterType.FILE_DTO);
+        status.release();
+        assertEquals(3L * chunkSize, status.getOffset());
+        for (int chunk = 3; chunk < 6; chunk++) {
+            replies = uploadChunk("resumed.bin", content, chunk, chunk - 2);
+        }
+        assertEquals(CommandType.CONTENT_RESPONSE, replies.get(0).getCommandType());
+
+        replies = send(new Command(CommandType.CONTENT_REQUEST)
+                .setParameter(ParameterType.CONTENT_ACTION, ContentActionType.DOWNLOAD)
+                .setParameter(ParameterType.CURRENT, "resumed.bin"));
+        byte[] received = new byte[content.length];
+        int offset = 0;
+        for (Command reply : replies) {
+            FileDTO dto = (FileDTO) reply.getParameter(ParameterType.FILE_DTO);
+            int length = dto.contentLength();
+            dto.contentBuffer().get(received, offset, length);
+            offset += length;
+            dto.release();
+        }
+        assertArrayEquals(content, received);
+    }
+
+    @Test
+    public void suspendedUploadReleasesItsReservation() throws Exception {
+        byte[] content = new byte[4 * Config.chunkSize];
+        random.nextBytes(content);
+        uploadChunk("dropped.bin", content, 0, 1);
+        assertEquals(Long.valueOf(content.length), quotas.getReserved().get(USER.getEmail()));
+        server.close();
+        assertEquals(0L, quotas.getReserved().getOrDefault(USER.getEmail(), 0L).longValue());
+    }
+
+    /**
+     * Sends one chunk of a file uploaded under its name as the transfer id, the last one with the file digest.
+     */
+    private List<Command> uploadChunk(String name, byte[] content, int chunk, int part) {
+        int chunkSize = Config.chunkSize;
+        boolean end = (chunk + 1) * chunkSize >= content.length;
+        String digest = null;
+        if (end) {
+            FileChecksum fileChecksum = new FileChecksum(checksumType);
+            fileChecksum.update(content, 0, content.length);
+            digest = fileChecksum.digest();
+        }
+        FileDTO dto = FileDTO.builder()
+                .name(name)
+                .path("root")
+                .fullSize((long) content.length)
+                .transferId(name.substring(0, name.indexOf('.')))
+                .offset((long) chunk * chunkSize)
+                .isStart(chunk == 0)
+                .isEnd(end)
+                .checksum(FileChecksum.of(checksumType, content, chunk * chunkSize, chunkSize))
+                .fileDigest(digest)
+                .data(ByteBufAllocator.DEFAULT.directBuffer(chunkSize).writeBytes(content, chunk * chunkSize, chunkSize))
+                .part(part)
+                .build();
+        return send(new Command(CommandType.FILE_UPLOAD).setParameter(ParameterType.FILE_DTO, dto));
+    }
+}